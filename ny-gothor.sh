@@ -0,0 +1,38 @@
+#!/bin/sh
+# Fast launcher for Ny'Gothor. Builds the game into build/, records a class-data-sharing archive of its classes
+# on the first run, then starts the game from the archive.
+#   ./ny-gothor.sh [--server [port]]   play, or host games
+#   ./ny-gothor.sh --benchmark         measure time to first prompt (see StartupBenchmark)
+set -e
+cd "$(dirname "$0")"
+
+BUILD=build
+JAR=$BUILD/ny-gothor.jar
+ARCHIVE=$BUILD/ny-gothor.jsa
+
+# Keep in step with StartupBenchmark.FAST_FLAGS. Hosted servers run for long enough to want the full JIT
+FAST_FLAGS="-XX:TieredStopAtLevel=1 -XX:+UseSerialGC -Xshare:auto"
+if [ "$1" = "--server" ]; then
+    FAST_FLAGS="-Xshare:auto"
+fi
+
+# Rebuild when a source or the content pack is newer than the jar, the old archive no longer matches it.
+# The default pack goes in the jar, so the game runs from any folder (see ContentPacks)
+if [ ! -f "$JAR" ] || [ -n "$(find src content -newer "$JAR")" ]; then
+    rm -rf "$BUILD/classes" "$ARCHIVE"
+    mkdir -p "$BUILD/classes"
+    javac -encoding UTF-8 -d "$BUILD/classes" src/*.java
+    cp -R content "$BUILD/classes/"
+    jar --create --file "$JAR" --main-class Ny_Gothor -C "$BUILD/classes" .
+fi
+
+if [ "$1" = "--benchmark" ]; then
+    exec java -cp "$JAR" StartupBenchmark "$JAR" "$ARCHIVE"
+fi
+
+# Record the archive with a run to the main menu and straight out
+if [ ! -f "$ARCHIVE" ]; then
+    echo 4 | java -XX:ArchiveClassesAtExit="$ARCHIVE" $FAST_FLAGS -jar "$JAR" > /dev/null
+fi
+
+exec java -XX:SharedArchiveFile="$ARCHIVE" $FAST_FLAGS -jar "$JAR" "$@"
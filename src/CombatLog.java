@@ -0,0 +1,716 @@
+/* TITLE: CombatLog
+ DESCRIPTION:
+    Every exchange of blows in a fight, recorded for analysis (-Dnygothor.combatlog=true): the monster, the
+    weapon chosen, the dodge and attack rolls, the damage each side dealt, both healths before and after, and
+    how the exchange ended. Records are fixed width and stored by column in memory-mapped segment files, each
+    column a packed array of its own, so writing one is a handful of stores into the page cache and reading a
+    column back is a straight scan over mapped memory. Names are kept once per segment in a small table and
+    recorded as its index. The count of records in a segment's header is only moved on, and the segment forced
+    to disk, every FLUSH_RECORDS records and every FLUSH_MILLIS, so a reader only ever sees whole records. The
+    forcing is done on the flusher thread without the log's monitor, so fights go on recording meanwhile.
+    A segment is written in place at its full capacity, and cut down to the records it holds as the game exits.
+    The reader maps the segments read-only and splits them into ranges summed in parallel, each copying only
+    the columns it needs out of the mapping in blocks (java Ny_Gothor --combatlog [folder]).
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+public class CombatLog {
+
+    // Record every exchange in a fight (-Dnygothor.combatlog)
+    static final boolean ENABLED = Boolean.getBoolean("nygothor.combatlog");
+
+    // Records per segment file (-Dnygothor.combatlog.segment)
+    static final int SEGMENT_RECORDS = Integer.getInteger("nygothor.combatlog.segment", 1 << 20);
+
+    // Records written before the header count is moved on and the segment forced to disk
+    static final int FLUSH_RECORDS = 4096;
+
+    // Longest a record waits to be flushed (-Dnygothor.combatlog.flush)
+    static final long FLUSH_MILLIS = Long.getLong("nygothor.combatlog.flush", 1000);
+
+    // Columns, by index, widest first so every column starts aligned to its width
+    static final int TIME = 0; // Epoch millis
+    static final int SESSION = 1;
+    static final int MONSTER_HEALTH_BEFORE = 2;
+    static final int MONSTER_HEALTH_AFTER = 3;
+    static final int PLAYER_HEALTH_BEFORE = 4;
+    static final int PLAYER_HEALTH_AFTER = 5;
+    static final int DAMAGE_DEALT = 6; // By the player's weapon, 0 on a miss
+    static final int DAMAGE_TAKEN = 7; // By the monster, 0 on a miss or if it died first
+    static final int MONSTER = 8; // Index in the segment's name table
+    static final int WEAPON = 9;
+    static final int DODGE_ROLL = 10;
+    static final int ATTACK_ROLL = 11; // NO_ROLL if the monster died before it could attack
+    static final int OUTCOME = 12;
+    static final int COLUMN_COUNT = 13;
+    static final int[] COLUMN_WIDTHS = {8, 8, 4, 4, 4, 4, 4, 4, 1, 1, 1, 1, 1};
+
+    static final int NO_ROLL = -1;
+
+    // How an exchange ended
+    static final int OUTCOME_CONTINUES = 0;
+    static final int OUTCOME_KILLED = 1;
+    static final int OUTCOME_DIED = 2;
+
+    // Segment layout, little endian:
+    //   int magic "NYGC", int version, int capacity, int record count, int name count,
+    //   at NAMES_OFFSET the name table (NAME_SLOTS names of NAME_BYTES, padded with zeros),
+    //   from COLUMNS_OFFSET each column in turn, capacity values long
+    static final int MAGIC = 0x4E594743; // "NYGC"
+    static final int FILE_VERSION = 1;
+    static final int COUNT_OFFSET = 12;
+    static final int NAME_COUNT_OFFSET = 16;
+    static final int NAMES_OFFSET = 64;
+    static final int NAME_BYTES = 32;
+    static final int COLUMNS_OFFSET = 8192;
+    static final int NAME_SLOTS = (COLUMNS_OFFSET - NAMES_OFFSET) / NAME_BYTES; // As many as fit before the columns
+    static final int UNKNOWN_NAME = 0xFF; // Name table full, never a slot
+    static final boolean LAYOUT_CHECKED = checkLayout();
+
+    // Totals in a summary, by index
+    static final int EXCHANGES = 0;
+    static final int HITS = 1;
+    static final int DEALT = 2;
+    static final int TAKEN = 3;
+    static final int KILLS = 4;
+    static final int DEATHS = 5;
+    static final int SUMMARY_FIELDS = 6;
+    static final int SUMMARY_STRIDE = 8; // Totals of one name code, kept to a cache line
+
+    static final String SEGMENT_PREFIX = "combat-";
+    static final String SEGMENT_SUFFIX = ".seg";
+    static final String COMPACTING_SUFFIX = ".tmp"; // Segment being cut down, replaces the segment once written
+
+    // Records summed by one task, and copied out of the mapping at a time
+    static final int SCAN_RECORDS = 1 << 16;
+    static final int SCAN_BLOCK = 4096;
+
+    // Segment being written, guarded by the class monitor
+    static combatSegment current;
+    static int nextSequence = -1; // Number of the next segment file, found when the first is made
+
+    // Forces segments to disk, set by start
+    static ScheduledExecutorService flusher;
+
+    //#region Recording
+
+    // Starts flushing in the background, segments are only made once there is a fight to record
+    public static synchronized void start(){
+
+        flusher = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "combat-log-flush");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher.scheduleAtFixedRate(CombatLog::flush, FLUSH_MILLIS, FLUSH_MILLIS, TimeUnit.MILLISECONDS);
+
+        // Records since the last flush are kept on the way out
+        Runtime.getRuntime().addShutdownHook(new Thread(CombatLog::close, "combat-log-close"));
+
+        return;
+    } // END start
+
+
+    // Records an exchange of blows once both sides have had their turn, with the healths before it started
+    public static void record(player player, int roomIndex, items weapon, int dodgeRoll, int attackRoll, int monsterHealthBefore, int playerHealthBefore){
+
+        if(!ENABLED){
+            return;
+        }
+
+        int monsterHealth = Ny_Gothor.getRoomMonsterHealth(player, roomIndex);
+        int playerHealth = Ny_Gothor.getPlayerHealth(player);
+        int outcome = monsterHealth <= 0 ? OUTCOME_KILLED : Ny_Gothor.isPlayerDead(player) ? OUTCOME_DIED : OUTCOME_CONTINUES;
+
+        try{
+            session session = GameSession.current();
+            append(System.currentTimeMillis(), session != null ? GameSession.getSessionId(session) : 0,
+                Ny_Gothor.getMonsterName(Ny_Gothor.getRoomMonster(player, roomIndex)), Ny_Gothor.getItemName(weapon),
+                dodgeRoll, attackRoll, monsterHealthBefore, monsterHealth, playerHealthBefore, playerHealth,
+                Math.max(0, monsterHealthBefore - monsterHealth), Math.max(0, playerHealthBefore - playerHealth), outcome);
+        }catch(IOException e){
+            System.err.println("Combat log stopped recording: " + e.getMessage());
+        }
+
+        return;
+    } // END record
+
+
+    // Writes a record into the current segment, starting the next when it is full
+    public static void append(long time, long session, String monster, String weapon, int dodgeRoll, int attackRoll,
+            int monsterHealthBefore, int monsterHealthAfter, int playerHealthBefore, int playerHealthAfter, int damageDealt, int damageTaken, int outcome) throws IOException{
+
+        combatSegment full = null;
+        combatSegment due = null;
+
+        synchronized(CombatLog.class){
+            if(current == null || current.count == current.capacity){
+                full = current;
+                current = createSegment(getLogPath(), SEGMENT_RECORDS);
+            }
+
+            writeRecord(current, time, session, monster, weapon, dodgeRoll, attackRoll, monsterHealthBefore, monsterHealthAfter,
+                playerHealthBefore, playerHealthAfter, damageDealt, damageTaken, outcome);
+
+            if(current.count - current.requestedCount >= FLUSH_RECORDS){
+                due = current;
+            }
+        }
+
+        // Forced without the monitor, the full segment here as its records must all be counted before it is let go
+        if(full != null){
+            flushSegment(full);
+        }
+        if(due != null){
+            flushLater(due);
+        }
+
+        return;
+    } // END append
+
+
+    // Stores the record's columns at the end of the segment, called holding the class monitor
+    public static void writeRecord(combatSegment segment, long time, long session, String monster, String weapon, int dodgeRoll, int attackRoll,
+            int monsterHealthBefore, int monsterHealthAfter, int playerHealthBefore, int playerHealthAfter, int damageDealt, int damageTaken, int outcome){
+
+        MappedByteBuffer file = segment.file;
+        int i = segment.count;
+
+        file.putLong(segment.offsets[TIME] + i * 8, time);
+        file.putLong(segment.offsets[SESSION] + i * 8, session);
+        file.putInt(segment.offsets[MONSTER_HEALTH_BEFORE] + i * 4, monsterHealthBefore);
+        file.putInt(segment.offsets[MONSTER_HEALTH_AFTER] + i * 4, monsterHealthAfter);
+        file.putInt(segment.offsets[PLAYER_HEALTH_BEFORE] + i * 4, playerHealthBefore);
+        file.putInt(segment.offsets[PLAYER_HEALTH_AFTER] + i * 4, playerHealthAfter);
+        file.putInt(segment.offsets[DAMAGE_DEALT] + i * 4, damageDealt);
+        file.putInt(segment.offsets[DAMAGE_TAKEN] + i * 4, damageTaken);
+        file.put(segment.offsets[MONSTER] + i, (byte)nameCode(segment, monster));
+        file.put(segment.offsets[WEAPON] + i, (byte)nameCode(segment, weapon));
+        file.put(segment.offsets[DODGE_ROLL] + i, (byte)dodgeRoll);
+        file.put(segment.offsets[ATTACK_ROLL] + i, (byte)attackRoll);
+        file.put(segment.offsets[OUTCOME] + i, (byte)outcome);
+        segment.count++;
+
+        return;
+    } // END writeRecord
+
+
+    // Gets the name's index in the segment's table, adding it the first time it is recorded
+    public static int nameCode(combatSegment segment, String name){
+
+        Integer code = segment.names.get(name);
+        if(code != null){
+            return code;
+        }
+        if(segment.names.size() == NAME_SLOTS){
+            return UNKNOWN_NAME;
+        }
+
+        code = segment.names.size();
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        int offset = NAMES_OFFSET + code * NAME_BYTES;
+        for(int i = 0; i < NAME_BYTES; i++){
+            segment.file.put(offset + i, i < bytes.length && i < NAME_BYTES - 1 ? bytes[i] : 0);
+        }
+        segment.names.put(name, code);
+        segment.file.putInt(NAME_COUNT_OFFSET, segment.names.size());
+
+        return code;
+    } // END nameCode
+
+
+    public static void flush(){
+
+        combatSegment segment;
+        synchronized(CombatLog.class){
+            segment = current;
+        }
+        if(segment != null){
+            flushSegment(segment);
+        }
+
+        return;
+    } // END flush
+
+
+    // Flushes the segment being written and cuts it down to the records it holds, on the way out
+    public static void close(){
+
+        combatSegment segment;
+        int count;
+        synchronized(CombatLog.class){
+            segment = current;
+            current = null;
+            count = segment == null ? 0 : segment.count;
+        }
+        if(segment == null){
+            return;
+        }
+
+        flushSegment(segment);
+        try{
+            compactSegment(segment, count);
+        }catch(IOException e){
+            System.err.println("Could not cut down combat log segment " + segment.path + ": " + e.getMessage());
+        }
+
+        return;
+    } // END close
+
+
+    // Hands the segment to the flusher thread, so the fight that filled it does not wait on the disk
+    public static void flushLater(combatSegment segment){
+
+        if(flusher == null){
+            flushSegment(segment);
+            return;
+        }
+        flusher.execute(() -> flushSegment(segment));
+
+        return;
+    } // END flushLater
+
+
+    // Forces the records written so far to disk, then moves the header count on to cover them. Only reading the
+    // count and moving it on take the monitor, records go on being written while the disk catches up
+    public static void flushSegment(combatSegment segment){
+
+        int count;
+        synchronized(CombatLog.class){
+            count = segment.count;
+            if(count == segment.requestedCount){
+                return; // Covered by a flush already started
+            }
+            segment.requestedCount = count;
+        }
+
+        // Records before the count, so a reader never sees a count ahead of its records
+        segment.file.force();
+
+        synchronized(CombatLog.class){
+            if(count <= segment.flushedCount){
+                return; // A later flush finished first
+            }
+            segment.file.putInt(COUNT_OFFSET, count);
+            segment.flushedCount = count;
+        }
+        segment.file.force(0, NAMES_OFFSET);
+
+        return;
+    } // END flushSegment
+
+    //#endregion
+
+
+
+
+
+    //#region Segments
+
+    // The name table must end before the columns start, and its codes stay clear of UNKNOWN_NAME
+    public static boolean checkLayout(){
+
+        if(NAMES_OFFSET + NAME_SLOTS * NAME_BYTES > COLUMNS_OFFSET || NAME_SLOTS > UNKNOWN_NAME){
+            throw new AssertionError("Combat log name table of " + NAME_SLOTS + " names runs into the columns at " + COLUMNS_OFFSET);
+        }
+
+        return true;
+    } // END checkLayout
+
+
+    // Gets the folder segments are written to (-Dnygothor.combatlog.dir to move it)
+    public static Path getLogPath(){
+
+        String property = System.getProperty("nygothor.combatlog.dir");
+        if(property != null){
+            return Paths.get(property);
+        }
+
+        return Paths.get(System.getProperty("user.home"), "Documents", "Ny-Gothor Stats", "combat");
+    } // END getLogPath
+
+
+    // Maps a new segment file after the last one in the folder
+    public static combatSegment createSegment(Path folder, int capacity) throws IOException{
+
+        // Offsets are ints, a mapping is at most 2GB anyway
+        if(capacity <= 0 || segmentBytes(capacity) > Integer.MAX_VALUE){
+            throw new IllegalArgumentException("Combat log segments of " + capacity + " records do not fit in one mapping");
+        }
+
+        Files.createDirectories(folder);
+        if(nextSequence < 0){
+            nextSequence = findNextSequence(folder);
+        }
+
+        combatSegment segment = new combatSegment();
+        segment.capacity = capacity;
+        segment.offsets = columnOffsets(capacity);
+        segment.names = new HashMap<>();
+
+        // A new file is sparse, pages are only allocated as records reach them. Another server writing to the
+        // same folder may have taken the number, the next free one after the folder's newest is tried instead
+        while(segment.file == null){
+            Path path = folder.resolve(String.format("%s%06d%s", SEGMENT_PREFIX, nextSequence++, SEGMENT_SUFFIX));
+            try(FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)){
+                segment.file = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes(capacity));
+                segment.path = path;
+            }catch(FileAlreadyExistsException e){
+                nextSequence = Math.max(nextSequence, findNextSequence(folder));
+            }
+        }
+        segment.file.order(ByteOrder.LITTLE_ENDIAN);
+
+        segment.file.putInt(4, FILE_VERSION);
+        segment.file.putInt(8, capacity);
+        segment.file.putInt(COUNT_OFFSET, 0);
+        segment.file.putInt(0, MAGIC);
+
+        return segment;
+    } // END createSegment
+
+
+    // Gets the number after the newest segment in the folder
+    public static int findNextSequence(Path folder) throws IOException{
+
+        int next = 0;
+        for(Path file : listSegments(folder)){
+            next = Math.max(next, parseSequence(file) + 1);
+        }
+
+        return next;
+    } // END findNextSequence
+
+
+    // Rewrites a finished segment with room for only the records it holds, the sparse file was made at full
+    // capacity. Written beside it and moved over it, so a reader sees either the whole old or new segment
+    public static void compactSegment(combatSegment segment, int count) throws IOException{
+
+        if(count == segment.capacity){
+            return;
+        }
+
+        Path compacted = segment.path.resolveSibling(segment.path.getFileName() + COMPACTING_SUFFIX);
+        try(FileChannel channel = FileChannel.open(compacted, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)){
+            MappedByteBuffer file = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes(count));
+            file.order(ByteOrder.LITTLE_ENDIAN);
+
+            // Header and name table as they are, then each column cut to the count
+            file.put(0, segment.file, 0, COLUMNS_OFFSET);
+            file.putInt(8, count);
+            file.putInt(COUNT_OFFSET, count);
+            int[] offsets = columnOffsets(count);
+            for(int c = 0; c < COLUMN_COUNT; c++){
+                file.put(offsets[c], segment.file, segment.offsets[c], COLUMN_WIDTHS[c] * count);
+            }
+            file.force();
+        }
+
+        Files.move(compacted, segment.path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        return;
+    } // END compactSegment
+
+
+    // Gets where each column starts for a segment of the capacity
+    public static int[] columnOffsets(int capacity){
+
+        int[] offsets = new int[COLUMN_COUNT];
+        long offset = COLUMNS_OFFSET;
+        for(int c = 0; c < COLUMN_COUNT; c++){
+            offsets[c] = (int)offset;
+            offset += (long)COLUMN_WIDTHS[c] * capacity;
+        }
+
+        return offsets;
+    } // END columnOffsets
+
+
+    public static long segmentBytes(int capacity){
+
+        long bytes = COLUMNS_OFFSET;
+        for(int c = 0; c < COLUMN_COUNT; c++){
+            bytes += (long)COLUMN_WIDTHS[c] * capacity;
+        }
+
+        return bytes;
+    } // END segmentBytes
+
+
+    // Gets the segment files in the folder, oldest first
+    public static List<Path> listSegments(Path folder) throws IOException{
+
+        List<Path> segments = new ArrayList<>();
+        if(!Files.isDirectory(folder)){
+            return segments;
+        }
+
+        try(DirectoryStream<Path> files = Files.newDirectoryStream(folder, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)){
+            for(Path file : files){
+                segments.add(file);
+            }
+        }
+        segments.sort(null);
+
+        return segments;
+    } // END listSegments
+
+
+    public static int parseSequence(Path file){
+
+        String name = file.getFileName().toString();
+        try{
+            return Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+        }catch(NumberFormatException e){
+            return -1;
+        }
+    } // END parseSequence
+
+    //#endregion
+
+
+
+
+
+    //#region Reading
+
+    // Maps a segment read-only, its columns are views of the mapping covering the flushed records
+    public static combatColumns openSegment(Path path) throws IOException{
+
+        MappedByteBuffer file;
+        try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)){
+            file = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        file.order(ByteOrder.LITTLE_ENDIAN);
+
+        if(file.capacity() < COLUMNS_OFFSET || file.getInt(0) != MAGIC || file.getInt(4) != FILE_VERSION){
+            throw new IOException(path + " is not a combat log segment");
+        }
+
+        combatColumns columns = new combatColumns();
+        columns.path = path;
+        columns.count = file.getInt(COUNT_OFFSET);
+
+        int nameCount = file.getInt(NAME_COUNT_OFFSET);
+        columns.names = new String[nameCount];
+        for(int n = 0; n < nameCount; n++){
+            int offset = NAMES_OFFSET + n * NAME_BYTES;
+            int length = 0;
+            while(length < NAME_BYTES && file.get(offset + length) != 0){
+                length++;
+            }
+            byte[] name = new byte[length];
+            file.get(offset, name);
+            columns.names[n] = new String(name, StandardCharsets.UTF_8);
+        }
+
+        int[] offsets = columnOffsets(file.getInt(8));
+        columns.columns = new ByteBuffer[COLUMN_COUNT];
+        for(int c = 0; c < COLUMN_COUNT; c++){
+            columns.columns[c] = file.slice(offsets[c], COLUMN_WIDTHS[c] * columns.count).order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        return columns;
+    } // END openSegment
+
+
+    public static IntBuffer getIntColumn(combatColumns segment, int column){
+        return segment.columns[column].asIntBuffer();
+    } // END getIntColumn
+
+
+    public static ByteBuffer getByteColumn(combatColumns segment, int column){
+        return segment.columns[column];
+    } // END getByteColumn
+
+
+    public static String getName(combatColumns segment, int code){
+        return code < segment.names.length ? segment.names[code] : "(other)";
+    } // END getName
+
+
+    // Totals per monster and per weapon over every segment in the folder, reading only the columns they need
+    public static String summarise(Path folder, ForkJoinPool pool) throws IOException, InterruptedException{
+
+        Map<String, long[]> monsters = new TreeMap<>();
+        Map<String, long[]> weapons = new TreeMap<>();
+        long records = 0;
+        long bytes = 0;
+        long start = System.nanoTime();
+
+        // A task per range of a segment, so a folder of one big segment is summed in parallel too
+        List<Callable<long[][]>> tasks = new ArrayList<>();
+        List<combatColumns> taskSegments = new ArrayList<>();
+        for(Path path : listSegments(folder)){
+            combatColumns segment = openSegment(path);
+            int count = segment.count;
+
+            for(int from = 0; from < count; from += SCAN_RECORDS){
+                int first = from;
+                int last = Math.min(count, from + SCAN_RECORDS);
+                tasks.add(() -> scanSegment(segment, first, last));
+                taskSegments.add(segment);
+            }
+            records += count;
+            bytes += (long)count * (COLUMN_WIDTHS[MONSTER] + COLUMN_WIDTHS[WEAPON] + COLUMN_WIDTHS[OUTCOME] + COLUMN_WIDTHS[DAMAGE_DEALT] + COLUMN_WIDTHS[DAMAGE_TAKEN]);
+        }
+
+        // Totals come back by name code within their segment, and are merged by name
+        List<Future<long[][]>> results = pool.invokeAll(tasks);
+        for(int t = 0; t < tasks.size(); t++){
+            long[][] totals;
+            try{
+                totals = results.get(t).get();
+            }catch(ExecutionException e){
+                throw new IllegalStateException("Summing " + taskSegments.get(t).path + " failed", e.getCause());
+            }
+
+            mergeByName(taskSegments.get(t), totals[0], monsters);
+            mergeByName(taskSegments.get(t), totals[1], weapons);
+        }
+
+        long nanos = Math.max(1, System.nanoTime() - start);
+
+        StringBuilder text = new StringBuilder();
+        text.append(String.format("Combat log: %d exchanges in %s, %.1fms (%.0f MB/s of the columns read)%n", records, folder, nanos / 1e6, bytes * 1e3 / nanos));
+
+        text.append("By monster:\n");
+        for(Map.Entry<String, long[]> entry : monsters.entrySet()){
+            long[] totals = entry.getValue();
+            text.append(String.format(" - %s: %d exchanges, %.1f%% hit, %.1f damage to it and %.1f to the player per exchange, %d killed, %d players killed%n",
+                entry.getKey(), totals[EXCHANGES], 100.0 * totals[HITS] / totals[EXCHANGES], (double)totals[DEALT] / totals[EXCHANGES],
+                (double)totals[TAKEN] / totals[EXCHANGES], totals[KILLS], totals[DEATHS]));
+        }
+
+        text.append("By weapon:\n");
+        for(Map.Entry<String, long[]> entry : weapons.entrySet()){
+            long[] totals = entry.getValue();
+            text.append(String.format(" - %s: %d exchanges, %.1f%% hit, %.1f damage per exchange, %d killing blows%n",
+                entry.getKey(), totals[EXCHANGES], 100.0 * totals[HITS] / totals[EXCHANGES], (double)totals[DEALT] / totals[EXCHANGES], totals[KILLS]));
+        }
+
+        return text.toString();
+    } // END summarise
+
+
+    // Sums a range of a segment's records into totals by monster and by weapon name code, SUMMARY_STRIDE
+    // apart. The columns are copied out of the mapping a block at a time and summed from the arrays
+    public static long[][] scanSegment(combatColumns segment, int from, int to){
+
+        long[] byMonster = new long[256 * SUMMARY_STRIDE];
+        long[] byWeapon = new long[256 * SUMMARY_STRIDE];
+
+        // Views of its own, as other ranges of the segment are read at the same time
+        ByteBuffer monster = getByteColumn(segment, MONSTER).duplicate();
+        ByteBuffer weapon = getByteColumn(segment, WEAPON).duplicate();
+        ByteBuffer outcome = getByteColumn(segment, OUTCOME).duplicate();
+        IntBuffer dealt = getIntColumn(segment, DAMAGE_DEALT);
+        IntBuffer taken = getIntColumn(segment, DAMAGE_TAKEN);
+
+        byte[] monsters = new byte[SCAN_BLOCK];
+        byte[] weapons = new byte[SCAN_BLOCK];
+        byte[] outcomes = new byte[SCAN_BLOCK];
+        int[] dealtDamage = new int[SCAN_BLOCK];
+        int[] takenDamage = new int[SCAN_BLOCK];
+
+        for(int block = from; block < to; block += SCAN_BLOCK){
+            int length = Math.min(SCAN_BLOCK, to - block);
+            monster.get(block, monsters, 0, length);
+            weapon.get(block, weapons, 0, length);
+            outcome.get(block, outcomes, 0, length);
+            dealt.get(block, dealtDamage, 0, length);
+            taken.get(block, takenDamage, 0, length);
+
+            for(int i = 0; i < length; i++){
+                int m = (monsters[i] & 0xFF) * SUMMARY_STRIDE;
+                int w = (weapons[i] & 0xFF) * SUMMARY_STRIDE;
+                int damage = dealtDamage[i];
+                int hit = damage > 0 ? 1 : 0;
+                int result = outcomes[i];
+                int killed = result == OUTCOME_KILLED ? 1 : 0;
+
+                byMonster[m + EXCHANGES]++;
+                byMonster[m + HITS] += hit;
+                byMonster[m + DEALT] += damage;
+                byMonster[m + TAKEN] += takenDamage[i];
+                byMonster[m + KILLS] += killed;
+                byMonster[m + DEATHS] += result == OUTCOME_DIED ? 1 : 0;
+
+                byWeapon[w + EXCHANGES]++;
+                byWeapon[w + HITS] += hit;
+                byWeapon[w + DEALT] += damage;
+                byWeapon[w + KILLS] += killed;
+            }
+        }
+
+        return new long[][]{byMonster, byWeapon};
+    } // END scanSegment
+
+
+    // Adds a segment's totals, indexed by its name codes, to the totals by name
+    public static void mergeByName(combatColumns segment, long[] byCode, Map<String, long[]> byName){
+
+        for(int code = 0; code < 256; code++){
+            int base = code * SUMMARY_STRIDE;
+            if(byCode[base + EXCHANGES] == 0){
+                continue;
+            }
+
+            long[] totals = byName.computeIfAbsent(getName(segment, code), key -> new long[SUMMARY_FIELDS]);
+            for(int f = 0; f < SUMMARY_FIELDS; f++){
+                totals[f] += byCode[base + f];
+            }
+        }
+
+        return;
+    } // END mergeByName
+
+    //#endregion
+
+}
+
+
+class combatSegment{
+    Path path;
+    MappedByteBuffer file;
+    int capacity; // Records the file has room for
+    int count; // Records written
+    int requestedCount; // Records the last flush to start is forcing to disk
+    int flushedCount; // Records covered by the count in the header
+    int[] offsets; // Where each column starts
+    Map<String, Integer> names; // Index of each name in the file's table
+}
+
+// A segment mapped for reading, each column a view of the mapping (see CombatLog.openSegment)
+class combatColumns{
+    Path path;
+    int count;
+    String[] names;
+    ByteBuffer[] columns;
+}
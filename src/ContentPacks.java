@@ -0,0 +1,495 @@
+/* TITLE: ContentPacks
+ DESCRIPTION:
+    Loads the items, monsters and descriptions of the game from a content pack file into immutable tables that
+    every session shares. Reloading parses the file again and swaps the shared reference in one step: running
+    games keep the pack they started with, new games pick up the new one. Each pack has an id worked out from
+    its text, which saves record, so a game read back finds the pack it was made from while that pack is still
+    loaded. The default pack is packaged with the classes, so the game runs from any folder.
+ */
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.lang.ref.WeakReference;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class ContentPacks {
+
+    // Pack used when -Dnygothor.content is not given, relative to the working directory or the game's folder
+    static final String DEFAULT_PACK = "content/default.pack";
+
+    // The default pack as packaged with the classes, used when there is no pack file to be found
+    static final String DEFAULT_RESOURCE = "/" + DEFAULT_PACK;
+
+    // Pack that new games are created with
+    static final AtomicReference<contentPack> CURRENT = new AtomicReference<>();
+
+    // Each loaded pack gets the next version, so anything built from a pack can tell when it is stale
+    static final AtomicInteger VERSIONS = new AtomicInteger();
+
+    // Packs loaded so far by id, for games read back from a save (guarded by itself). Weak, so a pack no game uses can go
+    static final Map<String, WeakReference<contentPack>> LOADED = new HashMap<>();
+
+    //#region Loading
+
+    // Gets the current pack, parsing it on first use
+    public static contentPack current(){
+
+        contentPack pack = CURRENT.get();
+        if(pack != null){
+            return pack;
+        }
+
+        // Only the first caller parses, everyone else waits for its result
+        synchronized(CURRENT){
+            if(CURRENT.get() == null){
+                try{
+                    Path file = locatePack();
+                    CURRENT.set(file != null ? load(file) : loadDefault());
+                }catch(IOException e){
+                    throw new UncheckedIOException("Could not load content pack", e);
+                }
+            }
+        }
+
+        return CURRENT.get();
+    } // END current
+
+
+    // Parses the pack file again and swaps it in for new games, the old pack is kept if the file is invalid
+    public static contentPack reload() throws IOException{
+
+        Path file = locatePack();
+        contentPack pack = file != null ? load(file) : loadDefault();
+        CURRENT.set(pack);
+
+        return pack;
+    } // END reload
+
+
+    // Finds the pack file to load, null when only the packaged default pack is there
+    public static Path locatePack(){
+
+        String property = System.getProperty("nygothor.content");
+        if(property != null){
+            return Paths.get(property);
+        }
+
+        Path local = Paths.get(DEFAULT_PACK);
+        if(Files.exists(local)){
+            return local;
+        }
+
+        // Next to the folder the classes were loaded from (eg. out/../content/default.pack)
+        try{
+            Path codePath = Paths.get(ContentPacks.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+            Path besideCode = codePath.toAbsolutePath().getParent().resolve(DEFAULT_PACK);
+            if(Files.exists(besideCode)){
+                return besideCode;
+            }
+        }catch(Exception e){
+            // No usable code location, the packaged pack is used
+        }
+
+        return null;
+    } // END locatePack
+
+
+    // Reads and parses a pack file
+    public static contentPack load(Path file) throws IOException{
+
+        if(!Files.exists(file)){
+            throw new IOException("No pack file at " + file);
+        }
+
+        return parse(Files.readAllLines(file, StandardCharsets.UTF_8), file.toString());
+    } // END load
+
+
+    // Reads and parses the default pack packaged with the classes
+    public static contentPack loadDefault() throws IOException{
+
+        InputStream stream = ContentPacks.class.getResourceAsStream(DEFAULT_RESOURCE);
+        if(stream == null){
+            throw new IOException("No pack file found and " + DEFAULT_PACK + " is not packaged with the game (set -Dnygothor.content)");
+        }
+
+        List<String> lines = new ArrayList<>();
+        try(BufferedReader reader = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8))){
+            String line;
+            while((line = reader.readLine()) != null){
+                lines.add(line);
+            }
+        }
+
+        return parse(lines, "packaged " + DEFAULT_PACK);
+    } // END loadDefault
+
+
+    // Builds a pack from its lines, throws with the line number when an entry is invalid
+    public static contentPack parse(List<String> lines, String source){
+
+        List<items> starterItems = new ArrayList<>();
+        List<items> cavernItems = new ArrayList<>();
+        List<monsterTemplate> monsters = new ArrayList<>();
+        List<String> roomDescriptions = new ArrayList<>();
+        List<String> pathDescriptions = new ArrayList<>();
+        Set<String> itemNames = new HashSet<>();
+        monsterTemplate boss = null;
+
+        for(int i = 0; i < lines.size(); i++){
+            // Lines come without their terminator, anything else at the end may be part of a description
+            String line = lines.get(i).stripLeading();
+            String where = source + ":" + (i + 1);
+
+            // Skip blank lines and comments
+            if(line.isBlank() || line.startsWith("#")){
+                continue;
+            }
+
+            int space = line.indexOf(' ');
+            String keyword = space < 0 ? line : line.substring(0, space);
+            String rest = space < 0 ? "" : line.substring(space + 1).stripLeading();
+
+            if(keyword.equals("starter") || keyword.equals("item")){
+                items item = parseItem(rest, where);
+                if(!itemNames.add(Ny_Gothor.getItemName(item))){
+                    throw new IllegalArgumentException(where + ": item " + Ny_Gothor.getItemName(item) + " is declared twice");
+                }
+
+                if(keyword.equals("starter")){
+                    starterItems.add(item);
+                }else{
+                    cavernItems.add(item);
+                }
+            }else if(keyword.equals("monster")){
+                monsters.add(parseMonster(rest, where));
+            }else if(keyword.equals("boss")){
+                if(boss != null){
+                    throw new IllegalArgumentException(where + ": only one boss can be declared");
+                }
+                boss = parseMonster(rest, where);
+            }else if(keyword.equals("room") || keyword.equals("path")){
+                if(rest.isBlank()){
+                    throw new IllegalArgumentException(where + ": " + keyword + " needs a description");
+                }
+
+                if(keyword.equals("room")){
+                    roomDescriptions.add(rest);
+                }else{
+                    pathDescriptions.add(rest);
+                }
+            }else{
+                throw new IllegalArgumentException(where + ": unknown entry '" + keyword + "'");
+            }
+        }
+
+        // Every table is needed to build a cavern
+        if(starterItems.isEmpty() || cavernItems.isEmpty() || monsters.isEmpty() || boss == null || roomDescriptions.isEmpty() || pathDescriptions.isEmpty()){
+            throw new IllegalArgumentException(source + ": a pack needs at least one starter, item, monster, boss, room and path");
+        }
+        if(monsters.size() + 1 > Byte.MAX_VALUE){
+            throw new IllegalArgumentException(source + ": too many monsters, at most " + (Byte.MAX_VALUE - 1));
+        }
+
+        // The boss is always the last monster
+        monsters.add(boss);
+
+        return register(new contentPack(VERSIONS.incrementAndGet(), createId(lines), source,
+            starterItems.toArray(new items[0]),
+            cavernItems.toArray(new items[0]),
+            monsters.toArray(new monsterTemplate[0]),
+            roomDescriptions.toArray(new String[0]),
+            pathDescriptions.toArray(new String[0])));
+    } // END parse
+
+
+    // Parses "<name> <damage>"
+    public static items parseItem(String entry, String where){
+
+        String[] fields = entry.split("\\s+");
+        if(fields.length != 2){
+            throw new IllegalArgumentException(where + ": expected <name> <damage>");
+        }
+
+        return new items(fields[0], parseNumber(fields[1], where));
+    } // END parseItem
+
+
+    // Parses "<name> <health> <damage> <sanity> <attack> <dodge>", the last three being min-max ranges
+    public static monsterTemplate parseMonster(String entry, String where){
+
+        String[] fields = entry.split("\\s+");
+        if(fields.length != 6){
+            throw new IllegalArgumentException(where + ": expected <name> <health> <damage> <sanity> <attack> <dodge>");
+        }
+
+        int[] sanity = parseRange(fields[3], where);
+        int[] attack = parseRange(fields[4], where);
+        int[] dodge = parseRange(fields[5], where);
+
+        return new monsterTemplate(fields[0], parseNumber(fields[1], where), parseNumber(fields[2], where),
+            sanity[0], sanity[1], attack[0], attack[1], dodge[0], dodge[1]);
+    } // END parseMonster
+
+
+    // Parses "min-max" (or a single number) into {min, max}
+    public static int[] parseRange(String field, String where){
+
+        int dash = field.indexOf('-');
+        if(dash < 0){
+            int value = parseNumber(field, where);
+            return new int[]{value, value};
+        }
+
+        int min = parseNumber(field.substring(0, dash), where);
+        int max = parseNumber(field.substring(dash + 1), where);
+        if(min > max){
+            throw new IllegalArgumentException(where + ": range " + field + " has min above max");
+        }
+
+        return new int[]{min, max};
+    } // END parseRange
+
+
+    // Parses a number that cannot be negative
+    public static int parseNumber(String field, String where){
+
+        if(!Ny_Gothor.isInteger(field)){
+            throw new IllegalArgumentException(where + ": '" + field + "' is not a number");
+        }
+
+        return Integer.parseInt(field);
+    } // END parseNumber
+
+    //#endregion
+
+
+
+
+
+    //#region Pack ids
+
+    // Id of a pack's text, the same for the same text whenever and wherever it is loaded
+    public static String createId(List<String> lines){
+
+        try{
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for(String line : lines){
+                digest.update(line.getBytes(StandardCharsets.UTF_8));
+                digest.update((byte)'\n');
+            }
+
+            StringBuilder id = new StringBuilder();
+            byte[] hash = digest.digest();
+            for(int i = 0; i < 8; i++){
+                id.append(String.format("%02x", hash[i]));
+            }
+
+            return id.toString();
+        }catch(NoSuchAlgorithmException e){
+            throw new AssertionError(e); // Every Java platform has SHA-256
+        }
+    } // END createId
+
+
+    // Keeps the pack to be found by its id, returns it
+    public static contentPack register(contentPack pack){
+
+        synchronized(LOADED){
+            LOADED.values().removeIf(ref -> ref.get() == null);
+            LOADED.put(pack.id, new WeakReference<>(pack));
+        }
+
+        return pack;
+    } // END register
+
+
+    // Gets the pack a saved game was made from, or the current pack for new games if it is no longer loaded
+    public static contentPack find(String id){
+
+        synchronized(LOADED){
+            WeakReference<contentPack> ref = id == null ? null : LOADED.get(id);
+            contentPack pack = ref == null ? null : ref.get();
+            if(pack != null){
+                return pack;
+            }
+        }
+
+        return GenerationParams.currentPack();
+    } // END find
+
+
+    // Gets the pack's own record of an item read back from a save, so items still match the pack's by identity.
+    // An item the pack does not have (the save was made from another pack) is kept as it was read
+    public static items sameItem(contentPack pack, items item){
+
+        if(item == null){
+            return null;
+        }
+        items own = pack.itemsByName.get(Ny_Gothor.getItemName(item));
+
+        return own != null ? own : item;
+    } // END sameItem
+
+    //#endregion
+
+
+
+
+
+    //#region Hot reload
+
+    // Starts a background thread that reloads the pack whenever its file changes
+    public static Thread watch(){
+
+        Path located = locatePack();
+        if(located == null){
+            System.err.println("Content pack not watched, there is no pack file (set -Dnygothor.content)");
+            return null;
+        }
+        Path file = located.toAbsolutePath();
+
+        Thread watcher = new Thread(() -> watchPack(file), "content-pack-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+
+        return watcher;
+    } // END watch
+
+
+    // Waits on changes to the pack's folder and reloads when the pack itself changed
+    public static void watchPack(Path file){
+
+        try(WatchService service = FileSystems.getDefault().newWatchService()){
+            file.getParent().register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+
+            while(true){
+                WatchKey key = service.take();
+
+                boolean changed = false;
+                for(WatchEvent<?> event : key.pollEvents()){
+                    if(file.getFileName().equals(event.context())){
+                        changed = true;
+                    }
+                }
+                key.reset();
+
+                if(changed){
+                    try{
+                        contentPack pack = reload();
+                        System.err.println("Content pack reloaded as version " + getContentVersion(pack));
+                    }catch(IOException | IllegalArgumentException e){
+                        System.err.println("Content pack not reloaded, keeping version " + getContentVersion(current()) + ": " + e.getMessage());
+                    }
+                }
+            }
+        }catch(IOException e){
+            System.err.println("Content pack watcher stopped: " + e.getMessage());
+        }catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+
+        return;
+    } // END watchPack
+
+    //#endregion
+
+
+
+
+
+    //#region Get methods
+
+        // Content pack methods (read only, shared by every session)
+        public static int getContentVersion(contentPack c) {return c.version;}
+        public static String getContentId(contentPack c) {return c.id;}
+        public static items[] getContentStarterItems(contentPack c) {return c.starterItems;}
+        public static items[] getContentItems(contentPack c) {return c.items;}
+        public static monsterTemplate[] getContentMonsters(contentPack c) {return c.monsters;}
+        public static String[] getContentRoomDescriptions(contentPack c) {return c.roomDescriptions;}
+        public static String[] getContentPathDescriptions(contentPack c) {return c.pathDescriptions;}
+
+    //#endregion
+
+}
+
+
+// Tables are never written after parsing, every session reads the same arrays
+class contentPack{
+    final int version;
+    final String id; // From the pack's text, see ContentPacks.createId
+    final String source;
+
+    final items[] starterItems;
+    final items[] items; // Found in the cavern, at most one of each
+    final monsterTemplate[] monsters; // Boss always last
+    final String[] roomDescriptions;
+    final String[] pathDescriptions;
+    final Map<String, items> itemsByName; // Starter items and cavern items
+
+    contentPack(int version, String id, String source, items[] starterItems, items[] items, monsterTemplate[] monsters, String[] roomDescriptions, String[] pathDescriptions){
+        this.version = version;
+        this.id = id;
+        this.source = source;
+        this.starterItems = starterItems;
+        this.items = items;
+        this.monsters = monsters;
+        this.roomDescriptions = roomDescriptions;
+        this.pathDescriptions = pathDescriptions;
+
+        this.itemsByName = new HashMap<>();
+        for(items item : starterItems){
+            itemsByName.put(Ny_Gothor.getItemName(item), item);
+        }
+        for(items item : items){
+            itemsByName.put(Ny_Gothor.getItemName(item), item);
+        }
+    }
+}
+
+// A kind of monster as declared in the pack, stats are rolled within the ranges once per game
+class monsterTemplate{
+    final String name;
+    final int health;
+    final int damage;
+
+    final int minSanityImpact;
+    final int maxSanityImpact;
+    final int minAttackChance;
+    final int maxAttackChance;
+    final int minDodgeChance;
+    final int maxDodgeChance;
+
+    monsterTemplate(String name, int health, int damage, int minSanityImpact, int maxSanityImpact, int minAttackChance, int maxAttackChance, int minDodgeChance, int maxDodgeChance){
+        this.name = name;
+        this.health = health;
+        this.damage = damage;
+        this.minSanityImpact = minSanityImpact;
+        this.maxSanityImpact = maxSanityImpact;
+        this.minAttackChance = minAttackChance;
+        this.maxAttackChance = maxAttackChance;
+        this.minDodgeChance = minDodgeChance;
+        this.maxDodgeChance = maxDodgeChance;
+    }
+}
@@ -0,0 +1,229 @@
+/* TITLE: GameBroadcast
+ DESCRIPTION:
+    Lets spectators watch a hosted game. Every frame the player's session writes is copied once into a shared
+    ring of bytes, and each spectator's thread writes to its socket straight out of that ring, so a frame is
+    never copied per viewer. The player only ever writes into the ring: a spectator that falls a whole ring
+    behind is skipped ahead to the live output, and one whose bytes were written over while being sent is
+    dropped, so a slow viewer can never hold up the game.
+ */
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.invoke.VarHandle;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+public class GameBroadcast {
+
+    // Bytes of output kept for spectators, rounded up to a power of two (-Dnygothor.spectate.buffer)
+    static final int RING_SIZE = Integer.highestOneBit(Math.max(1024, Integer.getInteger("nygothor.spectate.buffer", 65536) * 2 - 1));
+
+    // Time a spectator rests when the game has written nothing new
+    static final long POLL_NANOS = 5_000_000;
+
+    static final byte[] SKIPPED_TEXT = GameOutput.encode("\n[Too far behind, skipping to the live game]\n");
+    static final byte[] DROPPED_TEXT = GameOutput.encode("\n[Disconnected for falling too far behind]\n");
+    static final byte[] ENDED_TEXT = GameOutput.encode("\n[The game has ended]\n");
+
+    //#region Broadcasting
+
+    // Gets the broadcast of a sink, starting one the first time someone watches
+    public static synchronized broadcast open(outputSink sink){
+
+        if(sink.broadcast == null){
+            broadcast broadcast = new broadcast();
+            broadcast.ring = new byte[RING_SIZE];
+            broadcast.mask = RING_SIZE - 1;
+            broadcast.claimed = new AtomicLong();
+            broadcast.published = new AtomicLong();
+            broadcast.viewers = new AtomicInteger();
+            sink.broadcast = broadcast;
+        }
+
+        return sink.broadcast;
+    } // END open
+
+
+    // Copies a frame into the ring, only the session's own thread may call this
+    public static void publish(broadcast broadcast, byte[] frame, int offset, int length){
+
+        // A frame bigger than the ring only keeps its end
+        if(length > broadcast.ring.length){
+            offset += length - broadcast.ring.length;
+            length = broadcast.ring.length;
+        }
+
+        // Claim the bytes before writing them, so a spectator sending from there can tell it was written over
+        long start = broadcast.published.get();
+        broadcast.claimed.lazySet(start + length);
+        VarHandle.storeStoreFence();
+
+        int position = (int)(start & broadcast.mask);
+        int firstPart = Math.min(length, broadcast.ring.length - position);
+        System.arraycopy(frame, offset, broadcast.ring, position, firstPart);
+        System.arraycopy(frame, offset + firstPart, broadcast.ring, 0, length - firstPart);
+
+        broadcast.published.lazySet(start + length);
+
+        return;
+    } // END publish
+
+
+    // Marks the broadcast as over, spectators are told once they have caught up
+    public static void close(broadcast broadcast){
+        broadcast.closed = true;
+
+        return;
+    } // END close
+
+
+    // Sends the live output to a spectator until the game ends, returns false if the spectator was dropped
+    public static boolean watch(broadcast broadcast, OutputStream out) throws IOException{
+
+        int capacity = broadcast.ring.length;
+        long cursor = broadcast.published.get(); // Join live
+        broadcast.viewers.incrementAndGet();
+
+        try{
+            while(true){
+                long available = broadcast.published.get();
+
+                if(available == cursor){
+                    // Closed after the last frame was published, so a frame that landed since the check above is sent first
+                    if(broadcast.closed && broadcast.published.get() == cursor){
+                        out.write(ENDED_TEXT);
+                        out.flush();
+                        return true;
+                    }
+                    LockSupport.parkNanos(POLL_NANOS);
+                    continue;
+                }
+
+                // Fell a whole ring behind, skip to the live output
+                if(available - cursor > capacity){
+                    out.write(SKIPPED_TEXT);
+                    cursor = available;
+                    continue;
+                }
+
+                // Send straight from the ring, up to its end at most
+                int position = (int)(cursor & broadcast.mask);
+                int length = (int)Math.min(available - cursor, capacity - position);
+                out.write(broadcast.ring, position, length);
+                out.flush();
+
+                // The game wrote over the bytes while they were being sent, what went out may be garbled
+                VarHandle.acquireFence();
+                if(broadcast.claimed.get() - cursor > capacity){
+                    return false;
+                }
+
+                cursor += length;
+            }
+        }finally{
+            broadcast.viewers.decrementAndGet();
+        }
+    } // END watch
+
+    //#endregion
+
+
+
+
+
+    //#region Spectator server
+
+    // Accepts spectators on a port of their own, each picks a game being played to watch
+    public static void serveSpectators(int port) throws IOException{
+
+        ServerSocket server = new ServerSocket(port);
+        System.err.println("Ny'Gothor spectators on port " + server.getLocalPort());
+
+        Thread acceptor = new Thread(() -> {
+            try(server){
+                while(true){
+                    Socket socket = server.accept();
+                    socket.setTcpNoDelay(true);
+
+                    Thread spectator = new Thread(() -> runSpectator(socket), "spectator-" + socket.getPort());
+                    spectator.setDaemon(true);
+                    spectator.start();
+                }
+            }catch(IOException e){
+                System.err.println("Spectator server stopped: " + e.getMessage());
+            }
+        }, "spectator-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        return;
+    } // END serveSpectators
+
+
+    // Lists the games being played and streams the chosen one to the spectator
+    public static void runSpectator(Socket socket){
+
+        try(socket){
+            OutputStream out = socket.getOutputStream();
+            session viewer = GameSession.createSocketSession(socket, false);
+
+            // Pick a game
+            session watched = null;
+            while(watched == null){
+                StringBuilder text = new StringBuilder("Games being played:\n");
+                for(session session : GameServer.SESSIONS.values()){
+                    broadcast broadcast = getSinkBroadcast(GameSession.getSessionOutput(session));
+                    int viewers = broadcast == null ? 0 : broadcast.viewers.get();
+                    text.append(" - ").append(GameSession.getSessionId(session)).append(" (").append(viewers).append(" watching)\n");
+                }
+                text.append("Enter a game number to watch.\n");
+                out.write(text.toString().getBytes(StandardCharsets.UTF_8));
+                out.flush();
+
+                String choice = GameSession.readLine(viewer).trim();
+                if(Ny_Gothor.isInteger(choice)){
+                    watched = GameServer.SESSIONS.get(Long.parseLong(choice));
+                }
+            }
+
+            if(!watch(open(GameSession.getSessionOutput(watched)), out)){
+                out.write(DROPPED_TEXT);
+                out.flush();
+            }
+        }catch(IOException | RuntimeException e){
+            // Spectator left
+        }
+
+        return;
+    } // END runSpectator
+
+    //#endregion
+
+
+
+
+
+    //#region Get/Set methods
+
+        // Sink methods
+        public static broadcast getSinkBroadcast(outputSink s) {return s.broadcast;}
+
+    //#endregion
+
+}
+
+
+class broadcast{
+    byte[] ring; // Shared by every spectator, only the player's thread writes to it
+    int mask;
+
+    AtomicLong claimed; // Bytes the player has started writing
+    AtomicLong published; // Bytes the player has finished writing
+    volatile boolean closed;
+
+    AtomicInteger viewers;
+}
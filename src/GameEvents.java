@@ -0,0 +1,346 @@
+/* TITLE: GameEvents
+ DESCRIPTION:
+    Events published as a game's state changes: health and sanity, moving room, monsters hurt and slain, items
+    offered and taken, the altar reached, the game won or lost. Each session writes its events into its own
+    pre-allocated ring, so publishing is a few array stores and never blocks or allocates. Consumers are
+    attached to a ring and drained in batches on the dispatch thread, off the turn: GameStatistics counts them
+    when statistics are kept, and -Dnygothor.events.log prints them. A consumer that falls a whole ring behind
+    skips ahead and is told how many events it missed.
+ */
+
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+public class GameEvents {
+
+    // Event types
+    static final int PLAYER_HEALTH = 0;
+    static final int PLAYER_SANITY = 1;
+    static final int PLAYER_DIED = 2;
+    static final int INCANTATION_SPOKEN = 3;
+    static final int ROOM_ENTERED = 4;
+    static final int MONSTER_HEALTH = 5;
+    static final int MONSTER_SLAIN = 6;
+    static final int ITEM_TAKEN = 7;
+    static final int ITEM_OFFERED = 8; // Value 1 if the player took it, 0 if not
+    static final int KILLED_BY = 9; // Value is the name code of the monster
+    static final int PLAYER_INSANE = 10; // Value is the player's sanity
+    static final int ALTAR_REACHED = 11; // Value is the turns taken
+    static final int GAME_WON = 12; // Value is the turns taken
+    static final String[] EVENT_NAMES = {"PLAYER_HEALTH", "PLAYER_SANITY", "PLAYER_DIED", "INCANTATION_SPOKEN", "ROOM_ENTERED", "MONSTER_HEALTH", "MONSTER_SLAIN", "ITEM_TAKEN",
+        "ITEM_OFFERED", "KILLED_BY", "PLAYER_INSANE", "ALTAR_REACHED", "GAME_WON"};
+
+    // Events kept per session, rounded up to a power of two (-Dnygothor.events.ring)
+    static final int RING_SIZE = Integer.highestOneBit(Math.max(2, Integer.getInteger("nygothor.events.ring", 1024) * 2 - 1));
+
+    // Most events handed to a consumer in one batch
+    static final int BATCH_SIZE = 256;
+
+    // Time the dispatch thread rests when no ring has anything new
+    static final long IDLE_PARK_NANOS = 1_000_000;
+
+    // Print every event to stderr (-Dnygothor.events.log=true)
+    static final boolean LOG = Boolean.getBoolean("nygothor.events.log");
+
+    static final CopyOnWriteArrayList<eventConsumer> CONSUMERS = new CopyOnWriteArrayList<>();
+
+    // Names events carry as codes (eg. the monster that killed a player), a code is never reused
+    static final ConcurrentHashMap<String, Integer> NAME_CODES = new ConcurrentHashMap<>();
+    static final CopyOnWriteArrayList<String> NAMES = new CopyOnWriteArrayList<>();
+
+    static Thread dispatcher;
+
+    //#region Publishing
+
+    // Creates the ring a session publishes its events into
+    public static eventRing createRing(long sessionId){
+
+        eventRing ring = new eventRing();
+        ring.sessionId = sessionId;
+        ring.mask = RING_SIZE - 1;
+        ring.types = new int[RING_SIZE];
+        ring.rooms = new int[RING_SIZE];
+        ring.values = new long[RING_SIZE];
+        ring.times = new long[RING_SIZE];
+        ring.published = new AtomicLong();
+
+        return ring;
+    } // END createRing
+
+
+    // Publishes an event for the session on this thread. Threads with no session bound (eg. a world being
+    // generated ahead of time) have no player watching, so their events are dropped
+    public static void publish(int type, int room, long value){
+
+        session session = GameSession.current();
+        if(session != null){
+            publish(GameSession.getSessionEvents(session), type, room, value);
+        }
+
+        return;
+    } // END publish
+
+
+    // Publishes an event into the ring, only the session's own thread may call this
+    public static void publish(eventRing ring, int type, int room, long value){
+
+        long sequence = ring.next;
+        int slot = (int)(sequence & ring.mask);
+
+        ring.types[slot] = type;
+        ring.rooms[slot] = room;
+        ring.values[slot] = value;
+        ring.times[slot] = System.nanoTime();
+
+        // Ordered store, consumers that see the new count also see the slot
+        ring.next = sequence + 1;
+        ring.published.lazySet(sequence + 1);
+
+        return;
+    } // END publish
+
+
+    // Marks the ring as finished, consumers are detached once they have drained it
+    public static void close(eventRing ring){
+        ring.closed = true;
+
+        return;
+    } // END close
+
+
+    // Gets the code an event carries for the name, only the first use of a name allocates
+    public static int nameCode(String name){
+
+        Integer code = NAME_CODES.get(name);
+        if(code != null){
+            return code;
+        }
+
+        synchronized(NAMES){
+            code = NAME_CODES.get(name);
+            if(code == null){
+                // Listed before the code is handed out, so a consumer can always look it up
+                code = NAMES.size();
+                NAMES.add(name);
+                NAME_CODES.put(name, code);
+            }
+        }
+
+        return code;
+    } // END nameCode
+
+
+    public static String getName(long code){
+        return NAMES.get((int)code);
+    } // END getName
+
+    //#endregion
+
+
+
+
+
+    //#region Consuming
+
+    // Attaches a consumer to the ring, it only sees events published from now on
+    public static eventConsumer attach(eventRing ring, eventHandler handler){
+
+        eventConsumer consumer = new eventConsumer();
+        consumer.ring = ring;
+        consumer.handler = handler;
+        consumer.next = ring.published.get();
+        consumer.types = new int[BATCH_SIZE];
+        consumer.rooms = new int[BATCH_SIZE];
+        consumer.values = new long[BATCH_SIZE];
+        consumer.times = new long[BATCH_SIZE];
+
+        CONSUMERS.add(consumer);
+        startDispatcher();
+
+        return consumer;
+    } // END attach
+
+
+    // Stops handing events to the consumer
+    public static void detach(eventConsumer consumer){
+        CONSUMERS.remove(consumer);
+
+        return;
+    } // END detach
+
+
+    // Hands the consumer its next batch of events, returns how many it was given
+    public static int drain(eventConsumer consumer){
+
+        // Only the dispatch thread drains, apart from the final drain on the way out
+        synchronized(consumer){
+            return drainBatch(consumer);
+        }
+    } // END drain
+
+
+    // Copies out and hands over one batch, the caller holds the consumer's lock
+    public static int drainBatch(eventConsumer consumer){
+
+        eventRing ring = consumer.ring;
+        int capacity = ring.mask + 1;
+
+        long available = ring.published.get();
+        if(available == consumer.next){
+            return 0;
+        }
+
+        // Fell a whole ring behind, the oldest events have been written over
+        if(available - consumer.next > capacity){
+            long missed = available - capacity - consumer.next;
+            consumer.next += missed;
+            consumer.handler.onMissed(ring.sessionId, missed);
+        }
+
+        // Copy the batch out of the ring
+        int count = (int)Math.min(available - consumer.next, BATCH_SIZE);
+        for(int i = 0; i < count; i++){
+            int slot = (int)((consumer.next + i) & ring.mask);
+            consumer.types[i] = ring.types[slot];
+            consumer.rooms[i] = ring.rooms[slot];
+            consumer.values[i] = ring.values[slot];
+            consumer.times[i] = ring.times[slot];
+        }
+
+        // The producer may have lapped the copy, anything it could be writing over is dropped
+        VarHandle.acquireFence();
+        long oldestSafe = ring.published.get() - capacity + 1;
+        int skipped = (int)Math.max(0, Math.min(count, oldestSafe - consumer.next));
+        if(skipped > 0){
+            consumer.handler.onMissed(ring.sessionId, skipped);
+        }
+
+        for(int i = skipped; i < count; i++){
+            consumer.handler.onEvent(ring.sessionId, consumer.next + i, consumer.types[i], consumer.rooms[i], consumer.values[i], consumer.times[i]);
+        }
+        consumer.next += count;
+        consumer.handler.onBatchEnd(ring.sessionId);
+
+        return count - skipped;
+    } // END drainBatch
+
+
+    // Starts the dispatch thread the first time a consumer is attached
+    public static synchronized void startDispatcher(){
+
+        if(dispatcher != null){
+            return;
+        }
+
+        dispatcher = new Thread(GameEvents::dispatch, "event-dispatch");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+
+        // Hand over whatever is still in the rings on the way out
+        Runtime.getRuntime().addShutdownHook(new Thread(GameEvents::drainAll, "event-final-drain"));
+
+        return;
+    } // END startDispatcher
+
+
+    // Drains every consumer in turn, resting when there is nothing new
+    public static void dispatch(){
+
+        while(true){
+            int delivered = 0;
+
+            for(eventConsumer consumer : CONSUMERS){
+                try{
+                    delivered += drain(consumer);
+
+                    // The session has ended and everything it published has been handed over
+                    if(consumer.ring.closed && consumer.next == consumer.ring.published.get()){
+                        detach(consumer);
+                        consumer.handler.onClosed(consumer.ring.sessionId);
+                    }
+                }catch(RuntimeException e){
+                    System.err.println("Event consumer for session " + consumer.ring.sessionId + " failed and was detached: " + e);
+                    detach(consumer);
+                }
+            }
+
+            if(delivered == 0){
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+        }
+    } // END dispatch
+
+
+    // Drains every consumer until the rings are empty
+    public static synchronized void drainAll(){
+
+        for(eventConsumer consumer : CONSUMERS){
+            try{
+                while(drain(consumer) > 0){
+                    // Keep going until it is caught up
+                }
+            }catch(RuntimeException e){
+                detach(consumer);
+            }
+        }
+
+        return;
+    } // END drainAll
+
+
+    // Prints an event, attached to every session with -Dnygothor.events.log=true
+    public static void logEvent(long sessionId, long sequence, int type, int room, long value, long time){
+        System.err.println("session " + sessionId + " #" + sequence + " " + EVENT_NAMES[type] + " room " + room + " value " + value);
+
+        return;
+    } // END logEvent
+
+    //#endregion
+
+}
+
+
+class eventRing{
+    long sessionId;
+    int mask;
+
+    // Event fields, one slot per event
+    int[] types;
+    int[] rooms;
+    long[] values;
+    long[] times; // System.nanoTime() when published
+
+    long next; // Only touched by the producer
+    AtomicLong published; // Events published so far, read by consumers
+    volatile boolean closed;
+}
+
+
+class eventConsumer{
+    eventRing ring;
+    eventHandler handler;
+    long next; // Sequence of the next event to hand over
+
+    // Batch copied out of the ring, reused every drain
+    int[] types;
+    int[] rooms;
+    long[] values;
+    long[] times;
+}
+
+
+interface eventHandler{
+    void onEvent(long sessionId, long sequence, int type, int room, long value, long time);
+
+    // Called after each batch, eg. to flush what the batch wrote
+    default void onBatchEnd(long sessionId){}
+
+    // Called when events were written over before this consumer got to them
+    default void onMissed(long sessionId, long count){}
+
+    // Called once the session has ended and its last event has been handled
+    default void onClosed(long sessionId){}
+}
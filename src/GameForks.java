@@ -0,0 +1,95 @@
+/* TITLE: GameForks
+ DESCRIPTION:
+    Forks a game in memory, so bots and analysis tools can play out "go to room 5" and "go to room 7" from the
+    same point without a save and load. A fork is a shallow copy of the player: the world, monster state and
+    movement history stay shared with the game it came from, and whichever of the two changes a shared part
+    first copies it for itself. Rooms are copied one at a time as they change. A fork costs one small object,
+    however big the world is.
+    Forks of the same game may be played on different threads, but each one by a single thread.
+ */
+
+import java.util.concurrent.atomic.AtomicLong;
+
+public class GameForks {
+
+    // Parts of a player that can be shared with a fork
+    static final int SHARED_ROOM_LIST = 1;
+    static final int SHARED_MONSTERS = 2;
+    static final int SHARED_HISTORY = 4;
+    static final int SHARED_ALL = SHARED_ROOM_LIST | SHARED_MONSTERS | SHARED_HISTORY;
+
+    // Stamps marking which player may change a room in place, 0 is every unforked game
+    static final AtomicLong STAMPS = new AtomicLong();
+
+    //#region Forking
+
+    // Forks the game, both it and the fork can be played on from here without affecting each other
+    public static player fork(player original){
+
+        player fork = original.shallowCopy();
+
+        // Both sides now share everything, and neither owns the rooms it used to
+        original.sharedParts = SHARED_ALL;
+        fork.sharedParts = SHARED_ALL;
+        original.forkStamp = STAMPS.incrementAndGet();
+        fork.forkStamp = STAMPS.incrementAndGet();
+        fork.roaming = null; // Made again by the fork's first tick
+
+        return fork;
+    } // END fork
+
+    //#endregion
+
+
+
+
+
+    //#region Copy on write
+
+    // Gets a room the player may change, copying it (and the room list) first if it is shared
+    public static room writableRoom(player player, int roomIndex){
+
+        if((player.sharedParts & SHARED_ROOM_LIST) != 0){
+            player.roomList = player.roomList.clone();
+            player.sharedParts &= ~SHARED_ROOM_LIST;
+        }
+
+        room room = player.roomList[roomIndex];
+        if(room.forkStamp != player.forkStamp){
+            room = SaveStore.copyRoom(room);
+            room.forkStamp = player.forkStamp;
+            player.roomList[roomIndex] = room;
+        }
+
+        return room;
+    } // END writableRoom
+
+
+    // Makes sure the monsters in each room are the player's own before they change
+    public static void ownMonsters(player player){
+
+        if((player.sharedParts & SHARED_MONSTERS) != 0){
+            player.roomMonsterKinds = player.roomMonsterKinds.clone();
+            player.roomMonsterHealth = player.roomMonsterHealth.clone();
+            player.roomMonsterDead = player.roomMonsterDead.clone();
+            player.sharedParts &= ~SHARED_MONSTERS;
+        }
+
+        return;
+    } // END ownMonsters
+
+
+    // Gets the movement history for changing, copying it first if it is shared
+    public static roomHistory writableHistory(player player){
+
+        if((player.sharedParts & SHARED_HISTORY) != 0){
+            player.prevRooms = MovementHistory.copyHistory(player.prevRooms);
+            player.sharedParts &= ~SHARED_HISTORY;
+        }
+
+        return player.prevRooms;
+    } // END writableHistory
+
+    //#endregion
+
+}
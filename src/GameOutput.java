@@ -0,0 +1,301 @@
+/* TITLE: GameOutput
+ DESCRIPTION:
+    Buffered output for a game session. Text is encoded straight into a reusable byte buffer which is written
+    out once per frame (a whole message), or once per character tick when typing to a terminal. Nothing is
+    allocated per character, so output to a file, pipe or socket runs as fast as it can be written.
+    Typing stops as soon as the player has answered the prompt ahead, the rest of the message is written at once.
+ */
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+
+public class GameOutput {
+
+    static final int BUFFER_SIZE = 8192;
+
+    //#region Sinks
+
+    // Creates a sink writing to the stream, paced sinks type text out with delays
+    public static outputSink createSink(OutputStream out, boolean paced){
+
+        outputSink sink = new outputSink();
+        sink.out = out;
+        sink.buffer = new byte[BUFFER_SIZE];
+        sink.position = 0;
+        sink.paced = paced;
+
+        return sink;
+    } // END createSink
+
+
+    // Gets the sink of the session on this thread
+    public static outputSink current(){
+        return GameSession.getSessionOutput(GameSession.current());
+    } // END current
+
+
+    // Typewriter delays only make sense when someone is watching a terminal (can be forced with -Dnygothor.paced)
+    public static boolean isInteractive(){
+
+        String paced = System.getProperty("nygothor.paced");
+        if(paced != null){
+            return Boolean.parseBoolean(paced);
+        }
+
+        return System.console() != null;
+    } // END isInteractive
+
+    //#endregion
+
+
+
+
+
+    //#region Writing
+
+    // Writes a full line as one frame
+    public static void printLine(outputSink sink, String text){
+
+        putString(sink, text);
+        putByte(sink, (byte)'\n');
+        flush(sink);
+
+        return;
+    } // END printLine
+
+
+    // Types a message character by character, or as a single frame when the sink is not paced or the
+    // player has already typed ahead past it
+    public static void typeMessage(outputSink sink, String text, int speed){
+
+        session session = GameSession.current();
+        if(!sink.paced || GameSession.hasTypedAhead(session)){
+            printLine(sink, text);
+            return;
+        }
+
+        // Loop through the text, one tick per character (surrogate pairs are one character)
+        boolean superseded = false;
+        for(int i = 0; i < text.length(); i++){
+            char c = text.charAt(i);
+
+            if(Character.isHighSurrogate(c) && i + 1 < text.length() && Character.isLowSurrogate(text.charAt(i + 1))){
+                putCodePoint(sink, Character.toCodePoint(c, text.charAt(i + 1)));
+                i++;
+            }else{
+                putCodePoint(sink, c);
+            }
+
+            // Once answered, the rest goes out with the end of the line
+            if(!superseded){
+                flush(sink);
+                waitTick(speed); // Wait
+                superseded = GameSession.hasTypedAhead(session);
+            }
+        }
+        printLine(sink, "");
+
+        return;
+    } // END typeMessage
+
+
+    // Types pre-encoded UTF-8 text, ticking once per character rather than once per byte
+    public static void typeMessage(outputSink sink, byte[] text, int speed){
+
+        session session = GameSession.current();
+        if(!sink.paced || GameSession.hasTypedAhead(session)){
+            putBytes(sink, text, 0, text.length);
+            putByte(sink, (byte)'\n');
+            flush(sink);
+            return;
+        }
+
+        boolean superseded = false;
+        for(int i = 0; i < text.length; i++){
+            putByte(sink, text[i]);
+
+            // Continuation bytes (10xxxxxx) belong to the character before, only tick at the end of a character
+            if(!superseded && (i + 1 == text.length || (text[i + 1] & 0xC0) != 0x80)){
+                flush(sink);
+                waitTick(speed); // Wait
+                superseded = GameSession.hasTypedAhead(session);
+            }
+        }
+        printLine(sink, "");
+
+        return;
+    } // END typeMessage
+
+
+    // Waits between typed characters, scheduled sessions let others run meanwhile
+    public static void waitTick(int speed){
+
+        session session = GameSession.current();
+        long waitStart = System.nanoTime();
+
+        if(session.scheduled){
+            SessionScheduler.tick(session, speed);
+        }else{
+            Ny_Gothor.busyWait(speed);
+        }
+        session.typingNanos += System.nanoTime() - waitStart;
+
+        return;
+    } // END waitTick
+
+
+    // Writes whatever is in the buffer to the stream
+    public static void flush(outputSink sink){
+
+        if(sink.position == 0){
+            return;
+        }
+
+        // Spectators get the frame from the shared ring, before the player's own write can block
+        broadcast broadcast = sink.broadcast;
+        if(broadcast != null){
+            GameBroadcast.publish(broadcast, sink.buffer, 0, sink.position);
+        }
+
+        // The write blocks while a player is not reading, so it is made without a run slot, and a session that
+        // stops reading only ever holds up itself. Taking the slot back goes to the back of the queue, so a frame
+        // is also where waiting sessions get to run (the console is never scheduled, and never loads the scheduler)
+        session session = GameSession.current();
+        boolean scheduled = session != null && session.scheduled;
+        if(scheduled){
+            SessionScheduler.pause(session);
+        }
+
+        try{
+            sink.out.write(sink.buffer, 0, sink.position);
+            sink.out.flush();
+        }catch(IOException e){
+            throw new UncheckedIOException(e);
+        }finally{
+            sink.position = 0;
+            if(scheduled){
+                SessionScheduler.resume(session);
+            }
+        }
+
+        return;
+    } // END flush
+
+    //#endregion
+
+
+
+
+
+    //#region Encoding
+
+    // Encodes text to UTF-8, used once for fixed text so it is never encoded again when typed
+    public static byte[] encode(String text){
+        return text.getBytes(StandardCharsets.UTF_8);
+    } // END encode
+
+
+    // Encodes each message in a block of text
+    public static byte[][] encodeAll(String... messages){
+
+        byte[][] encoded = new byte[messages.length][];
+        for(int i = 0; i < messages.length; i++){
+            encoded[i] = encode(messages[i]);
+        }
+
+        return encoded;
+    } // END encodeAll
+
+
+    // Encodes a string into the buffer without allocating
+    public static void putString(outputSink sink, String text){
+
+        for(int i = 0; i < text.length(); i++){
+            char c = text.charAt(i);
+
+            if(c < 0x80){
+                putByte(sink, (byte)c); // ASCII, the common case
+            }else if(Character.isHighSurrogate(c) && i + 1 < text.length() && Character.isLowSurrogate(text.charAt(i + 1))){
+                putCodePoint(sink, Character.toCodePoint(c, text.charAt(i + 1)));
+                i++;
+            }else{
+                putCodePoint(sink, c);
+            }
+        }
+
+        return;
+    } // END putString
+
+
+    // Encodes a single code point into the buffer (lone surrogates become '?')
+    public static void putCodePoint(outputSink sink, int codePoint){
+
+        if(codePoint < 0x80){
+            putByte(sink, (byte)codePoint);
+        }else if(codePoint < 0x800){
+            putByte(sink, (byte)(0xC0 | (codePoint >> 6)));
+            putByte(sink, (byte)(0x80 | (codePoint & 0x3F)));
+        }else if(Character.isSurrogate((char)codePoint) && codePoint < 0x10000){
+            putByte(sink, (byte)'?');
+        }else if(codePoint < 0x10000){
+            putByte(sink, (byte)(0xE0 | (codePoint >> 12)));
+            putByte(sink, (byte)(0x80 | ((codePoint >> 6) & 0x3F)));
+            putByte(sink, (byte)(0x80 | (codePoint & 0x3F)));
+        }else{
+            putByte(sink, (byte)(0xF0 | (codePoint >> 18)));
+            putByte(sink, (byte)(0x80 | ((codePoint >> 12) & 0x3F)));
+            putByte(sink, (byte)(0x80 | ((codePoint >> 6) & 0x3F)));
+            putByte(sink, (byte)(0x80 | (codePoint & 0x3F)));
+        }
+
+        return;
+    } // END putCodePoint
+
+
+    // Copies bytes into the buffer, flushing whenever it fills
+    public static void putBytes(outputSink sink, byte[] bytes, int offset, int length){
+
+        while(length > 0){
+            if(sink.position == sink.buffer.length){
+                flush(sink);
+            }
+
+            int count = Math.min(length, sink.buffer.length - sink.position);
+            System.arraycopy(bytes, offset, sink.buffer, sink.position, count);
+            sink.position += count;
+            offset += count;
+            length -= count;
+        }
+
+        return;
+    } // END putBytes
+
+
+    // Puts a byte into the buffer, flushing if it is full
+    public static void putByte(outputSink sink, byte b){
+
+        if(sink.position == sink.buffer.length){
+            flush(sink);
+        }
+        sink.buffer[sink.position++] = b;
+
+        return;
+    } // END putByte
+
+    //#endregion
+
+}
+
+
+class outputSink{
+    OutputStream out;
+
+    byte[] buffer; // Reused for every frame
+    int position;
+
+    boolean paced; // Type text out with delays
+
+    volatile broadcast broadcast; // Set once someone starts watching
+}
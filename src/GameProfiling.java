@@ -0,0 +1,281 @@
+/* TITLE: GameProfiling
+ DESCRIPTION:
+    Flight Recorder events for the game's own phases: each turn of gameLoop, each monster encounter and how it
+    ended, world generation, and saves and loads with their size on disk. Until a recording turns them on an
+    event is never filled in or written, so they are left in for good, and a recording of a live server shows
+    a slow turn next to the GC pauses and file or socket I/O around it
+    (eg. java -XX:StartFlightRecording=filename=game.jfr Ny_Gothor --server).
+    Turns and encounters mostly wait on the player and on typed text, so each records how long its session
+    spent on both, and its active time with the wait for input taken out. Typing counts as active time unless
+    left out with -Dnygothor.jfr.excludeTyping=true.
+ */
+
+import java.nio.file.Path;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+public class GameProfiling {
+
+    // Leave typewriter delays out of the active time of turns and encounters (-Dnygothor.jfr.excludeTyping)
+    static final boolean EXCLUDE_TYPING = Boolean.getBoolean("nygothor.jfr.excludeTyping");
+
+    static final String OUTCOME_KILLED = "Killed";
+    static final String OUTCOME_FLED = "Fled";
+    static final String OUTCOME_DIED = "Died";
+
+    //#region Turns and encounters
+
+    public static turnEvent beginTurn(player player){
+
+        turnEvent event = new turnEvent();
+        if(event.isEnabled()){
+            event.room = Ny_Gothor.getPlayerCurrentRoomIndex(player);
+            beginPhase(event);
+        }
+
+        return event;
+    } // END beginTurn
+
+
+    public static void endTurn(turnEvent event, player player){
+
+        if(event.shouldCommit()){
+            event.turn = Ny_Gothor.getPlayerTurns(player);
+            endPhase(event);
+            event.commit();
+        }
+
+        return;
+    } // END endTurn
+
+
+    public static encounterEvent beginEncounter(player player, int roomIndex){
+
+        encounterEvent event = new encounterEvent();
+        if(event.isEnabled()){
+            event.room = roomIndex;
+            event.monster = Ny_Gothor.getMonsterName(Ny_Gothor.getRoomMonster(player, roomIndex));
+            event.startHealth = Ny_Gothor.getPlayerHealth(player);
+            event.startSanity = Ny_Gothor.getPlayerSanity(player);
+            beginPhase(event);
+        }
+
+        return event;
+    } // END beginEncounter
+
+
+    public static void endEncounter(encounterEvent event, player player, boolean fled){
+
+        if(event.shouldCommit()){
+            event.outcome = fled ? OUTCOME_FLED : Ny_Gothor.isPlayerDead(player) ? OUTCOME_DIED : OUTCOME_KILLED;
+            event.healthLost = event.startHealth - Ny_Gothor.getPlayerHealth(player);
+            event.sanityLost = Ny_Gothor.getPlayerSanity(player) - event.startSanity;
+            endPhase(event);
+            event.commit();
+        }
+
+        return;
+    } // END endEncounter
+
+
+    // Notes where the session's waits stand as the phase starts
+    public static void beginPhase(phaseEvent event){
+
+        session session = GameSession.current();
+        event.session = GameSession.getSessionId(session);
+        event.startNanos = System.nanoTime();
+        event.startTyping = GameSession.getSessionTypingNanos(session);
+        event.startInputWait = GameSession.getSessionInputWaitNanos(session);
+        event.begin();
+
+        return;
+    } // END beginPhase
+
+
+    // Records the session's waits since the phase started, and the time left once they are taken out
+    public static void endPhase(phaseEvent event){
+
+        event.end();
+        session session = GameSession.current();
+        event.typing = GameSession.getSessionTypingNanos(session) - event.startTyping;
+        event.inputWait = GameSession.getSessionInputWaitNanos(session) - event.startInputWait;
+        event.active = Math.max(0, System.nanoTime() - event.startNanos - event.inputWait - (EXCLUDE_TYPING ? event.typing : 0));
+
+        return;
+    } // END endPhase
+
+    //#endregion
+
+
+
+
+
+    //#region Generation and saves
+
+    public static generationEvent beginGeneration(){
+
+        generationEvent event = new generationEvent();
+        event.begin();
+
+        return event;
+    } // END beginGeneration
+
+
+    public static void endGeneration(generationEvent event, int roomCount, boolean parallel){
+
+        if(event.shouldCommit()){
+            event.rooms = roomCount;
+            event.parallel = parallel;
+            event.commit();
+        }
+
+        return;
+    } // END endGeneration
+
+
+    public static saveEvent beginSave(){
+
+        saveEvent event = new saveEvent();
+        event.begin();
+
+        return event;
+    } // END beginSave
+
+
+    public static void endSave(saveEvent event, Path file, long bytes){
+
+        if(event.shouldCommit()){
+            event.file = file.toString();
+            event.bytes = bytes;
+            event.commit();
+        }
+
+        return;
+    } // END endSave
+
+
+    public static loadEvent beginLoad(){
+
+        loadEvent event = new loadEvent();
+        event.begin();
+
+        return event;
+    } // END beginLoad
+
+
+    public static void endLoad(loadEvent event, Path file, long bytes, boolean cached){
+
+        if(event.shouldCommit()){
+            event.file = file.toString();
+            event.bytes = bytes;
+            event.cached = cached;
+            event.commit();
+        }
+
+        return;
+    } // END endLoad
+
+    //#endregion
+
+}
+
+
+// A phase of a session's game, timed with its waits on the player and on typed text split out
+abstract class phaseEvent extends Event{
+    @Label("Session")
+    long session;
+
+    @Label("Typing") @Description("Time spent between typed characters") @Timespan
+    long typing;
+
+    @Label("Input Wait") @Description("Time spent waiting for the player to enter a line") @Timespan
+    long inputWait;
+
+    @Label("Active") @Description("Duration without the input wait, and without typing if nygothor.jfr.excludeTyping is set") @Timespan
+    long active;
+
+    // Where the session's totals stood at the start, not recorded
+    transient long startNanos;
+    transient long startTyping;
+    transient long startInputWait;
+}
+
+@Name("nygothor.Turn")
+@Label("Turn")
+@Category({"Ny'Gothor", "Game"})
+@Description("One pass of gameLoop, from entering a room to acting on the player's choice")
+class turnEvent extends phaseEvent{
+    @Label("Turn")
+    int turn;
+
+    @Label("Room")
+    int room;
+}
+
+@Name("nygothor.Encounter")
+@Label("Encounter")
+@Category({"Ny'Gothor", "Game"})
+@Description("A monster encounter, from sighting the monster to killing it, fleeing or dying")
+class encounterEvent extends phaseEvent{
+    @Label("Room")
+    int room;
+
+    @Label("Monster")
+    String monster;
+
+    @Label("Outcome")
+    String outcome;
+
+    @Label("Health Lost")
+    int healthLost;
+
+    @Label("Sanity Lost")
+    int sanityLost;
+
+    transient int startHealth;
+    transient int startSanity;
+}
+
+@Name("nygothor.Generation")
+@Label("World Generation")
+@Category({"Ny'Gothor", "World"})
+@Description("Generating the rooms of a new cavern")
+class generationEvent extends Event{
+    @Label("Rooms")
+    int rooms;
+
+    @Label("Parallel")
+    boolean parallel;
+}
+
+@Name("nygothor.Save")
+@Label("Save")
+@Category({"Ny'Gothor", "Saves"})
+@Description("Writing a save file, waiting for other sessions saving under the same name included")
+class saveEvent extends Event{
+    @Label("File")
+    String file;
+
+    @Label("Bytes") @DataAmount
+    long bytes;
+}
+
+@Name("nygothor.Load")
+@Label("Load")
+@Category({"Ny'Gothor", "Saves"})
+@Description("Loading a save file, decoded from disk or copied from the cache")
+class loadEvent extends Event{
+    @Label("File")
+    String file;
+
+    @Label("Bytes") @DataAmount
+    long bytes;
+
+    @Label("Cached") @Description("Copied from a decoded save rather than read from disk")
+    boolean cached;
+}
@@ -0,0 +1,105 @@
+/* TITLE: GameRules
+ DESCRIPTION:
+    The rules of walking into a room and of a round of combat, as pure functions of the numbers involved. The
+    game itself (gameLoop, monsterEncountered, fightMonster) and the solver both play by these, so the chances
+    the solver works with are the ones the game rolls against and a rule changed here changes in both.
+    Walking into a room is checked in this order: the end room (Ny-Gothor, nothing else happens there), the
+    altar, a living monster (sanity is lost on sight, then the fight), insanity, then the item.
+ */
+
+public class GameRules {
+
+    // Combat rolls run from 0 to ROLL_SIDES - 1
+    static final int ROLL_SIDES = 101;
+
+    // Sanity at which the game is lost
+    static final int INSANE = 100;
+
+    //#region Rooms
+
+    // Whether walking in leads to Ny-Gothor, the room's monster and item never come into it
+    public static boolean isEndRoom(int room){
+        return room == Ny_Gothor.END_ROOM;
+    } // END isEndRoom
+
+
+    // Whether walking in reaches the altar, where the incantation may be spoken
+    public static boolean isAltarRoom(int room){
+        return room == Ny_Gothor.ALTAR_ROOM;
+    } // END isAltarRoom
+
+
+    // Whether walking in meets a monster, one already killed stays dead
+    public static boolean meetsMonster(int kind, int monsterHealth){
+        return kind != Ny_Gothor.NO_MONSTER && monsterHealth > 0;
+    } // END meetsMonster
+
+
+    // Sanity after catching sight of the monster, lost before any fighting
+    public static int sanityOnSight(int sanity, monster monster){
+        return sanity + Ny_Gothor.getMonsterSanityImpact(monster);
+    } // END sanityOnSight
+
+
+    // Whether the sanity lost means the game is over, however the fight went
+    public static boolean isInsane(int sanity){
+        return sanity >= INSANE;
+    } // END isInsane
+
+
+    // Room that running (or going back) leads to, the one before this or this one if there is none (-1)
+    public static int retreatTo(int lastRoom, int here){
+        return lastRoom < 0 ? here : lastRoom;
+    } // END retreatTo
+
+    //#endregion
+
+
+
+
+
+    //#region Combat
+
+    // Whether the player's blow lands, for a roll from 0 to ROLL_SIDES - 1
+    public static boolean playerHits(int roll, monster monster){
+        return roll < Ny_Gothor.getMonsterDodgeChance(monster);
+    } // END playerHits
+
+
+    // Whether the monster's blow lands, for a roll from 0 to ROLL_SIDES - 1
+    public static boolean monsterHits(int roll, monster monster){
+        return roll < Ny_Gothor.getMonsterAttackChance(monster);
+    } // END monsterHits
+
+
+    // Chance the player's blow lands, the share of rolls playerHits takes
+    public static double playerHitChance(monster monster){
+        return countRollsUnder(Ny_Gothor.getMonsterDodgeChance(monster)) / (double)ROLL_SIDES;
+    } // END playerHitChance
+
+
+    // Chance the monster's blow lands, the share of rolls monsterHits takes
+    public static double monsterHitChance(monster monster){
+        return countRollsUnder(Ny_Gothor.getMonsterAttackChance(monster)) / (double)ROLL_SIDES;
+    } // END monsterHitChance
+
+
+    public static int countRollsUnder(int chance){
+        return Math.max(0, Math.min(ROLL_SIDES, chance));
+    } // END countRollsUnder
+
+
+    // Health left after a blow of the given damage
+    public static int afterBlow(int health, int damage){
+        return health - damage;
+    } // END afterBlow
+
+
+    // Whether health this low is death, for the player or a monster
+    public static boolean isDead(int health){
+        return health <= 0;
+    } // END isDead
+
+    //#endregion
+
+}
@@ -0,0 +1,75 @@
+/* TITLE: GameServer
+ DESCRIPTION:
+    Hosts games over TCP. Every connection gets its own session running the main menu on its own thread, so
+    players can connect with any line based client (eg. telnet or nc).
+ */
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class GameServer {
+
+    static final int DEFAULT_PORT = 4040;
+
+    // Type text out to hosted players like at the terminal (-Dnygothor.server.paced=false sends it all at once)
+    static final boolean PACED = Boolean.parseBoolean(System.getProperty("nygothor.server.paced", "true"));
+
+    // Sessions currently connected, by session id
+    static final ConcurrentHashMap<Long, session> SESSIONS = new ConcurrentHashMap<>();
+
+    //#region Server
+
+    // Accepts players until the process is stopped
+    public static void serve(int port) throws IOException{
+
+        // Spectators connect to the next port up (-Dnygothor.spectate.port, -1 turns spectating off)
+        int spectatePort = Integer.getInteger("nygothor.spectate.port", port + 1);
+        if(spectatePort >= 0){
+            GameBroadcast.serveSpectators(spectatePort);
+        }
+
+        // Sessions move in from other local servers on the given port (-Dnygothor.migrate.port, off unless set),
+        // only from processes that know the shared secret (see SessionMigration)
+        int migratePort = Integer.getInteger("nygothor.migrate.port", -1);
+        if(migratePort >= 0){
+            SessionMigration.serveMigrations(migratePort);
+        }
+
+        SessionScheduler.startReporting();
+
+        try(ServerSocket server = new ServerSocket(port)){
+            System.err.println("Ny'Gothor listening on port " + server.getLocalPort());
+
+            while(true){
+                Socket socket = server.accept();
+                socket.setTcpNoDelay(true); // Typed characters go out as they are written
+
+                startSession(GameSession.createSocketSession(socket, PACED));
+            }
+        }
+    } // END serve
+
+
+    // Runs the session on its own thread until the player leaves
+    public static Thread startSession(session session){
+
+        long id = GameSession.getSessionId(session);
+        SESSIONS.put(id, session);
+
+        Thread thread = new Thread(() -> {
+            try{
+                GameSession.runHosted(session);
+            }finally{
+                SESSIONS.remove(id);
+            }
+        }, "session-" + id);
+        thread.start();
+
+        return thread;
+    } // END startSession
+
+    //#endregion
+
+}
@@ -0,0 +1,499 @@
+/* TITLE: GameSession
+ DESCRIPTION:
+    A session is one player's connection to the game: where its input comes from and where its output goes.
+    The session running on a thread is bound to it, so the game code reads and writes through whichever
+    session it is running for, whether that is the console, a socket or an HTTP stream.
+    Prompts in the game read commands, and a line can hold several (eg. "3 y 1 Sword 1 Sword"), which are
+    queued and answer the prompts that follow in turn, so a client can send a run of moves in one round trip.
+ */
+
+import java.io.EOFException;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+public class GameSession {
+
+    static final int INPUT_BUFFER_SIZE = 1024;
+
+    // Session of the player on this thread, bound by main for the console and by each hosted session's thread.
+    // Null on every other thread (world generation, the solver), which has no player to read from or write to
+    static final ThreadLocal<session> CURRENT = new ThreadLocal<>();
+
+    static final AtomicLong SESSION_IDS = new AtomicLong();
+
+    static final Pattern COMMAND_SEPARATOR = Pattern.compile("\\s+");
+
+    // Folder under Documents the console player's saves go in. Each hosted session saves in a folder of its own
+    // under HOSTED_SAVE_FOLDER, named by a random token, so players never list, load or overwrite each other's saves
+    static final String SAVE_FOLDER = "Ny-Gothor Saves";
+    static final String HOSTED_SAVE_FOLDER = "Hosted";
+    static final int SAVE_TOKEN_BYTES = 16;
+
+    static final SecureRandom SAVE_TOKENS = new SecureRandom();
+
+    //#region Sessions
+
+    // Creates the session for a player at the terminal
+    public static session createConsoleSession(){
+        outputSink output = GameOutput.createSink(new FileOutputStream(FileDescriptor.out), GameOutput.isInteractive());
+        return createSession(new FileInputStream(FileDescriptor.in), null, output);
+    } // END createConsoleSession
+
+
+    // Creates the session for a player connected over a socket
+    public static session createSocketSession(Socket socket, boolean paced) throws IOException{
+
+        outputSink output = GameOutput.createSink(socket.getOutputStream(), paced);
+        session session = createSession(socket.getInputStream(), socket, output);
+        session.hosted = true;
+
+        return session;
+    } // END createSocketSession
+
+
+    // Creates the session for a player over HTTP, reading the actions they post and writing events to their stream
+    public static session createWebSession(httpGame game, boolean paced){
+
+        outputSink output = GameOutput.createSink(new eventStream(game), paced);
+        session session = createSession(new actionInput(game), null, output);
+        session.web = game;
+        session.hosted = true;
+
+        return session;
+    } // END createWebSession
+
+
+    // Creates a session reading from the stream and writing to the sink
+    public static session createSession(InputStream in, Socket socket, outputSink output){
+
+        session session = new session();
+        session.id = SESSION_IDS.incrementAndGet();
+        session.in = in;
+        session.socket = socket;
+        session.inputBuffer = new byte[INPUT_BUFFER_SIZE];
+        session.output = output;
+        session.lastInputTime = System.currentTimeMillis();
+        session.events = GameEvents.createRing(session.id);
+
+        if(GameEvents.LOG){
+            GameEvents.attach(session.events, GameEvents::logEvent);
+        }
+        if(GameStatistics.isRecording()){
+            GameEvents.attach(session.events, GameStatistics::countEvent);
+        }
+
+        return session;
+    } // END createSession
+
+
+    // Gets the session on this thread, null if none is bound
+    public static session current(){
+        return CURRENT.get();
+    } // END current
+
+
+    // Binds a session to this thread, all game input and output on the thread goes through it
+    public static void bind(session session){
+        CURRENT.set(session);
+
+        return;
+    } // END bind
+
+
+    // Runs the main menu for a hosted session until the player quits or disconnects,
+    // finishing first any game moved here from another server
+    public static void runHosted(session session){
+
+        bind(session);
+        SessionScheduler.begin(session);
+        try{
+            if(session.resumed != null){
+                Ny_Gothor.gameLoop(takeResumed(session), true);
+            }
+            Ny_Gothor.mainMenu();
+        }catch(UncheckedIOException | IOException e){
+            // Player disconnected, nothing left to tell them
+        }catch(ClassNotFoundException e){
+            System.err.println("Session " + getSessionId(session) + " could not load a save: " + e.getMessage());
+        }finally{
+            SessionScheduler.end(session);
+            MonsterRoaming.release(session.roaming);
+
+            // A moved game is played on the other server, pass the player's connection through to it
+            if(SessionMigration.hasMigrated(session)){
+                SessionMigration.relay(session);
+            }
+
+            close(session);
+            CURRENT.remove();
+        }
+
+        return;
+    } // END runHosted
+
+
+    // Hands over the game moved to the session, so gameLoop holds the only reference to it
+    public static player takeResumed(session session){
+
+        player player = session.resumed;
+        session.resumed = null;
+
+        return player;
+    } // END takeResumed
+
+
+    // Closes the session's connection
+    public static void close(session session){
+
+        GameEvents.close(getSessionEvents(session));
+
+        // The last frame goes to spectators too, so it is flushed before their broadcast ends
+        try{
+            GameOutput.flush(getSessionOutput(session));
+        }catch(UncheckedIOException e){
+            // Already gone
+        }
+
+        broadcast broadcast = GameBroadcast.getSinkBroadcast(getSessionOutput(session));
+        if(broadcast != null){
+            GameBroadcast.close(broadcast);
+        }
+
+        try{
+            if(session.socket != null){
+                session.socket.close();
+            }
+        }catch(IOException e){
+            // Already closed
+        }
+
+        if(session.web != null){
+            HttpGames.end(session.web);
+        }
+
+        return;
+    } // END close
+
+    //#endregion
+
+
+
+
+
+    // Gets the folder under Documents the session's saves are kept in, made on the first save or load
+    public static String getSaveFolder(session session){
+
+        if(!session.hosted){
+            return SAVE_FOLDER;
+        }
+
+        if(session.saveToken == null){
+            byte[] token = new byte[SAVE_TOKEN_BYTES];
+            SAVE_TOKENS.nextBytes(token);
+            session.saveToken = HexFormat.of().formatHex(token);
+        }
+
+        return SAVE_FOLDER + "/" + HOSTED_SAVE_FOLDER + "/" + session.saveToken;
+    } // END getSaveFolder
+
+
+    // Whether the text could be a session's save token, checked on tokens that come from other servers
+    public static boolean isSaveToken(String text){
+        return text.length() == SAVE_TOKEN_BYTES * 2 && text.chars().allMatch(c -> (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f'));
+    } // END isSaveToken
+
+    //#endregion
+
+
+
+
+
+    //#region Input
+
+    // Reads the next line of input, waiting as long as it takes. Commands still queued make up the line
+    public static String readLine(session session){
+
+        if(hasQueuedCommands(session)){
+            String rest = getQueuedLine(session);
+            dropQueuedCommands(session);
+            return rest;
+        }
+
+        awaitInput(session, 0);
+
+        // Take the line out of the buffer
+        int newline = findNewline(session);
+        int end = newline < 0 ? session.inputEnd : newline;
+        int next = newline < 0 ? session.inputEnd : newline + 1;
+
+        if(end == session.inputStart && newline < 0){
+            throw new UncheckedIOException(new EOFException("Session " + session.id + " input closed"));
+        }
+        if(end > session.inputStart && session.inputBuffer[end - 1] == '\r'){
+            end--; // Telnet and Windows line endings
+        }
+
+        String line = new String(session.inputBuffer, session.inputStart, end - session.inputStart, StandardCharsets.UTF_8);
+        session.inputStart = next;
+
+        return line;
+    } // END readLine
+
+
+    // Reads the next command, the next word of the line. A line of several commands is queued, and the rest
+    // answer the prompts that follow without waiting
+    public static String readCommand(session session){
+
+        if(hasQueuedCommands(session)){
+            return session.commands[session.nextCommand++];
+        }
+
+        String line = readLine(session).trim();
+        if(line.isEmpty()){
+            return line; // An empty answer is still an answer
+        }
+
+        session.commands = COMMAND_SEPARATOR.split(line);
+        session.nextCommand = 1;
+
+        return session.commands[0];
+    } // END readCommand
+
+
+    public static boolean hasQueuedCommands(session session){
+        return session.commands != null && session.nextCommand < session.commands.length;
+    } // END hasQueuedCommands
+
+
+    // Gets the commands still queued, as the line they were typed on
+    public static String getQueuedLine(session session){
+        return String.join(" ", Arrays.asList(session.commands).subList(session.nextCommand, session.commands.length));
+    } // END getQueuedLine
+
+
+    // Drops the rest of a line of commands, used once one is invalid as the rest were meant for prompts that will not come
+    public static void dropQueuedCommands(session session){
+
+        session.commands = null;
+        session.nextCommand = 0;
+
+        return;
+    } // END dropQueuedCommands
+
+
+    // Whether the next prompt is already answered, reading whatever has arrived without waiting for more.
+    // Text typed out before such a prompt has been read past, so it is written without delays (see GameOutput)
+    public static boolean hasTypedAhead(session session){
+
+        if(hasQueuedCommands(session) || findNewline(session) >= 0){
+            return true;
+        }
+
+        try{
+            if(!session.inputClosed && session.in.available() > 0){
+                fillInput(session);
+            }
+        }catch(IOException e){
+            return false; // Left for the next read to report
+        }
+
+        return findNewline(session) >= 0;
+    } // END hasTypedAhead
+
+
+    // Gets the input typed ahead but not yet used, queued commands first as a line of their own
+    public static byte[] getTypedAhead(session session){
+
+        byte[] queued = hasQueuedCommands(session) ? (getQueuedLine(session) + "\n").getBytes(StandardCharsets.UTF_8) : new byte[0];
+        int buffered = session.inputEnd - session.inputStart;
+
+        byte[] typedAhead = new byte[queued.length + buffered];
+        System.arraycopy(queued, 0, typedAhead, 0, queued.length);
+        System.arraycopy(session.inputBuffer, session.inputStart, typedAhead, queued.length, buffered);
+
+        return typedAhead;
+    } // END getTypedAhead
+
+
+    // Throws away all input typed ahead
+    public static void clearTypedAhead(session session){
+
+        dropQueuedCommands(session);
+        session.inputStart = session.inputEnd;
+
+        return;
+    } // END clearTypedAhead
+
+
+    // Waits up to the timeout (0 waits forever) for a full line, returns false if the wait timed out
+    public static boolean awaitInput(session session, long timeoutMillis){
+
+        if(hasQueuedCommands(session) || findNewline(session) >= 0 || session.inputClosed){
+            return true; // Typed ahead, no need to wait
+        }
+
+        // Waits are counted so profiling can tell them apart from the game's own work (see GameProfiling)
+        long waitStart = System.nanoTime();
+
+        if(!session.scheduled){
+            try{
+                return waitForLine(session, timeoutMillis);
+            }finally{
+                session.inputWaitNanos += System.nanoTime() - waitStart;
+            }
+        }
+
+        // Let other sessions run while this one waits
+        SessionScheduler.pause(session);
+        try{
+            return waitForLine(session, timeoutMillis);
+        }finally{
+            SessionScheduler.resume(session);
+            session.inputWaitNanos += System.nanoTime() - waitStart;
+        }
+    } // END awaitInput
+
+
+    // Reads until there is a full line or the timeout passes
+    public static boolean waitForLine(session session, long timeoutMillis){
+
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+
+        while(findNewline(session) < 0 && !session.inputClosed){
+
+            // Only hosted sessions can time out, the console always waits for its line
+            long remaining = deadline - System.currentTimeMillis();
+            if(timeoutMillis > 0 && session.hosted && remaining <= 0){
+                return false;
+            }
+
+            try{
+                int readTimeout = timeoutMillis > 0 ? (int)Math.max(1, remaining) : 0;
+                if(session.socket != null){
+                    session.socket.setSoTimeout(readTimeout);
+                }else if(session.web != null){
+                    session.web.readTimeout = readTimeout;
+                }
+                fillInput(session);
+            }catch(SocketTimeoutException e){
+                return false;
+            }catch(IOException e){
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        return true;
+    } // END waitForLine
+
+
+    // Reads whatever the stream has into the buffer, making room first
+    public static void fillInput(session session) throws IOException{
+
+        // Move unread bytes to the front, grow only when a single line fills the buffer
+        if(session.inputStart > 0){
+            System.arraycopy(session.inputBuffer, session.inputStart, session.inputBuffer, 0, session.inputEnd - session.inputStart);
+            session.inputEnd -= session.inputStart;
+            session.inputStart = 0;
+        }
+        if(session.inputEnd == session.inputBuffer.length){
+            byte[] bigger = new byte[session.inputBuffer.length * 2];
+            System.arraycopy(session.inputBuffer, 0, bigger, 0, session.inputEnd);
+            session.inputBuffer = bigger;
+        }
+
+        int read = session.in.read(session.inputBuffer, session.inputEnd, session.inputBuffer.length - session.inputEnd);
+        if(read < 0){
+            session.inputClosed = true;
+        }else{
+            session.inputEnd += read;
+            session.lastInputTime = System.currentTimeMillis();
+        }
+
+        return;
+    } // END fillInput
+
+
+    // Gets the position of the next newline in the buffer, -1 if there is no full line yet
+    public static int findNewline(session session){
+
+        for(int i = session.inputStart; i < session.inputEnd; i++){
+            if(session.inputBuffer[i] == '\n'){
+                return i;
+            }
+        }
+
+        return -1;
+    } // END findNewline
+
+    //#endregion
+
+
+
+
+
+    //#region Get/Set methods
+
+        // Session methods
+        public static long getSessionId(session s) {return s.id;}
+        public static outputSink getSessionOutput(session s) {return s.output;}
+        public static eventRing getSessionEvents(session s) {return s.events;}
+        public static long getSessionLastInputTime(session s) {return s.lastInputTime;}
+        public static boolean isSessionHosted(session s) {return s.hosted;}
+        public static long getSessionTypingNanos(session s) {return s.typingNanos;}
+        public static long getSessionInputWaitNanos(session s) {return s.inputWaitNanos;}
+
+    //#endregion
+
+}
+
+
+class session{
+    long id;
+
+    // Input, bytes from inputStart to inputEnd have been read but not yet used
+    InputStream in;
+    Socket socket; // Null for the console and web players
+    httpGame web; // Null unless played over HTTP, see HttpGames
+    boolean hosted; // Played over the network rather than at the terminal
+    String saveToken; // Names the hosted session's save folder, null until it first saves or loads
+    byte[] inputBuffer;
+    int inputStart;
+    int inputEnd;
+    boolean inputClosed;
+    long lastInputTime;
+    String[] commands; // Line of commands being used, from nextCommand on they are still queued
+    int nextCommand;
+
+    outputSink output;
+    eventRing events; // State changes of the session's game
+
+    // Time spent waiting, see GameProfiling
+    long typingNanos; // Between typed characters
+    long inputWaitNanos; // For a line of input
+
+    // Scheduling, see SessionScheduler
+    boolean scheduled;
+    boolean running; // Holds a run slot
+    long sliceStart; // CPU time when the slice started
+    long cpuNanos;
+
+    // Range of the game played in a shared cavern, let go as the session ends (see MonsterRoaming)
+    roamingState roaming;
+
+    // Migration, see SessionMigration
+    player resumed; // Game moved here, until the session starts playing it
+    Socket migration; // Connection to the server the game moved to
+    long migrateAfter; // Time a failed move may be tried again
+}
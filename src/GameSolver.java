@@ -0,0 +1,895 @@
+/* TITLE: GameSolver
+ DESCRIPTION:
+    Works out the best possible chance of winning a cavern and the best choice at every prompt. Every state the
+    game can reach from where the player stands is found by playing out the movement, item pickup, altar and
+    fightMonster rules (from GameRules, which the game plays by too), and each state is packed into a few
+    longs: room, the room come from, health, sanity, the cavern items held (one bit each), whether the
+    incantation is spoken and the health of the monster in every room. The chance of winning from each state is then found by value iteration, sweeping the states in
+    parallel chunks until nothing changes.
+    A few choices always have one right answer and are not searched: the best item is always the one fought
+    with, items are always picked up and the incantation is always spoken. Only the last room of the
+    backtracking history is kept in a state, so after going back the history is taken to hold just that room.
+    Usage: java Ny_Gothor --solve [rooms] [seed]
+ */
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.concurrent.ForkJoinPool;
+
+public class GameSolver {
+
+    // Actions, moves are labelled with the room they lead to
+    static final int BACK = -1;
+    static final int FIGHT = -2;
+    static final int RUN = -3;
+    static final int NO_ACTION = Integer.MIN_VALUE; // No choice to make, or not a state the solver reached
+
+    // Outcomes that end the game
+    static final int LOSS = -1;
+    static final int WIN = -2;
+
+    // Fields of a state, the monster in each room that has one gets a field of its own from MONSTERS on
+    static final int PHASE = 0;
+    static final int ROOM = 1;
+    static final int CAME_FROM = 2; // Top of the backtracking history plus one, 0 when it is empty
+    static final int HEALTH = 3;
+    static final int SANITY = 4;
+    static final int INCANTATION = 5;
+    static final int INVENTORY = 6; // Bit per cavern item held
+    static final int BOSS_HEALTH = 7; // Ny-Gothor, only while fighting it
+    static final int MONSTERS = 8; // Health left, 0 once dead
+
+    // Phases
+    static final int PROMPT = 0; // Choosing a path
+    static final int COMBAT = 1; // Choosing to fight or run
+
+    static final int HEALTH_BITS = 7;
+    static final int SANITY_BITS = 8;
+
+    // Give up on caverns with more states than this (-Dnygothor.solver.states)
+    static final int MAX_STATES = Integer.getInteger("nygothor.solver.states", 4_000_000);
+
+    // Stop sweeping once no chance moves more than this, or after this many sweeps (-Dnygothor.solver.sweeps)
+    static final double EPSILON = 1e-12;
+    static final int MAX_SWEEPS = Integer.getInteger("nygothor.solver.sweeps", 100_000);
+
+    // Choices this close in value are as good as each other
+    static final double TIE = 1e-9;
+
+    static final int START_CAPACITY = 1 << 12;
+
+    //#region Solving
+
+    // Solves the game from the player's current room prompt
+    public static gameSolution solve(player player, ForkJoinPool pool){
+
+        gameSolution solution = describeWorld(player);
+        layoutFields(solution);
+
+        solution.start = intern(solution, encodePlayer(solution, player, PROMPT));
+
+        // States are added as they are found, so this carries on until every reachable one is expanded
+        for(int state = 0; state < solution.stateCount; state++){
+            expand(solution, state);
+        }
+        solution.actionStart[solution.stateCount] = solution.actionCount;
+        solution.outcomeStart[solution.actionCount] = solution.outcomeCount;
+
+        iterateValues(solution, pool);
+        chooseActions(solution, pool);
+
+        return solution;
+    } // END solve
+
+
+    // Reads the parts of the world the rules need from the player
+    public static gameSolution describeWorld(player player){
+
+        gameSolution solution = new gameSolution();
+        room[] rooms = Ny_Gothor.getPlayerRoomList(player);
+        int roomCount = rooms.length;
+
+        solution.roomCount = roomCount;
+        solution.monsters = Ny_Gothor.getPlayerMonsterList(player);
+        solution.boss = solution.monsters[Ny_Gothor.getNyGothorKind(player)];
+
+        items[] allItems = Ny_Gothor.getPlayerAllItems(player);
+        if(allItems.length > 31){
+            throw new IllegalArgumentException("The solver handles up to 31 cavern items, the pack has " + allItems.length);
+        }
+        IdentityHashMap<items, Integer> itemBits = new IdentityHashMap<>();
+        solution.itemDamage = new int[allItems.length];
+        for(int i = 0; i < allItems.length; i++){
+            itemBits.put(allItems[i], i);
+            solution.itemDamage[i] = Ny_Gothor.getItemDamage(allItems[i]);
+        }
+
+        // Starter items are always held, only the best of them matters
+        for(items item : Ny_Gothor.getPlayerInventory(player)){
+            if(!itemBits.containsKey(item)){
+                solution.starterDamage = Math.max(solution.starterDamage, Ny_Gothor.getItemDamage(item));
+            }
+        }
+
+        solution.exits = new int[roomCount][];
+        solution.roomItemBit = new int[roomCount];
+        solution.monsterSlot = new int[roomCount];
+        int[] slotRooms = new int[roomCount];
+        int[] slotKinds = new int[roomCount];
+        int slots = 0;
+
+        for(int i = 0; i < roomCount; i++){
+            solution.exits[i] = Arrays.stream(Ny_Gothor.getRoomIndexArray(rooms[i])).filter(exit -> exit >= 0 && exit < roomCount).distinct().toArray();
+
+            items item = Ny_Gothor.getRoomItem(rooms[i]);
+            solution.roomItemBit[i] = item == null ? -1 : itemBits.getOrDefault(item, -1);
+
+            // Whatever is in the end room, Ny-Gothor takes its place
+            solution.monsterSlot[i] = -1;
+            if(Ny_Gothor.getRoomMonsterKind(player, i) != Ny_Gothor.NO_MONSTER && i != Ny_Gothor.END_ROOM){
+                solution.monsterSlot[i] = slots;
+                slotRooms[slots] = i;
+                slotKinds[slots++] = Ny_Gothor.getRoomMonsterKind(player, i);
+            }
+        }
+
+        solution.slotRooms = Arrays.copyOf(slotRooms, slots);
+        solution.monsterKinds = Arrays.copyOf(slotKinds, slots);
+
+        return solution;
+    } // END describeWorld
+
+
+    // Places each field of a state in the bits of its longs, no field straddles two longs
+    public static void layoutFields(gameSolution solution){
+
+        int fieldCount = MONSTERS + solution.slotRooms.length;
+        int[] bits = new int[fieldCount];
+
+        bits[PHASE] = 1;
+        bits[ROOM] = bitsFor(solution.roomCount - 1);
+        bits[CAME_FROM] = bitsFor(solution.roomCount);
+        bits[HEALTH] = HEALTH_BITS;
+        bits[SANITY] = SANITY_BITS;
+        bits[INCANTATION] = 1;
+        bits[INVENTORY] = Math.max(1, solution.itemDamage.length);
+        bits[BOSS_HEALTH] = bitsFor(Ny_Gothor.getMonsterStartHealth(solution.boss));
+        for(int slot = 0; slot < solution.slotRooms.length; slot++){
+            bits[MONSTERS + slot] = bitsFor(Ny_Gothor.getMonsterStartHealth(getSlotMonster(solution, slot)));
+        }
+
+        solution.fieldBits = bits;
+        solution.fieldOffsets = new int[fieldCount];
+        int offset = 0;
+        for(int field = 0; field < fieldCount; field++){
+            if(offset % 64 + bits[field] > 64){
+                offset += 64 - offset % 64;
+            }
+            solution.fieldOffsets[field] = offset;
+            offset += bits[field];
+        }
+        solution.words = (offset + 63) / 64;
+
+        solution.keys = new long[START_CAPACITY * solution.words];
+        solution.table = new int[START_CAPACITY * 2];
+        solution.actionStart = new int[START_CAPACITY + 1];
+        solution.actionLabel = new int[START_CAPACITY];
+        solution.outcomeStart = new int[START_CAPACITY + 1];
+        solution.outcomeTarget = new int[START_CAPACITY];
+        solution.outcomeChance = new double[START_CAPACITY];
+
+        return;
+    } // END layoutFields
+
+
+    // Bits needed to hold values up to max
+    public static int bitsFor(int max){
+        return Math.max(1, 32 - Integer.numberOfLeadingZeros(max));
+    } // END bitsFor
+
+    //#endregion
+
+
+
+
+
+    //#region Rules
+
+    // Adds every choice open in the state, with where each can lead and how likely that is
+    public static void expand(gameSolution solution, int state){
+
+        int[] fields = decode(solution, state);
+        growActions(solution, state);
+        solution.actionStart[state] = solution.actionCount;
+
+        if(fields[PHASE] == PROMPT){
+            int room = fields[ROOM];
+
+            for(int exit : solution.exits[room]){
+                beginAction(solution, exit);
+                enterRoom(solution, fields, exit, room + 1, 1);
+            }
+
+            // Going back enters the last room again
+            if(fields[CAME_FROM] > 0){
+                beginAction(solution, BACK);
+                enterRoom(solution, fields, fields[CAME_FROM] - 1, fields[CAME_FROM], 1);
+            }
+        }else{
+            fight(solution, fields);
+            run(solution, fields);
+        }
+
+        return;
+    } // END expand
+
+
+    // The player walks into a room: the end, the altar, a monster, then the item, in the order GameRules sets out
+    public static void enterRoom(gameSolution solution, int[] from, int room, int cameFrom, double chance){
+
+        int[] next = from.clone();
+        next[PHASE] = PROMPT;
+        next[ROOM] = room;
+        next[CAME_FROM] = cameFrom;
+
+        // Without the incantation the end room is death, with it Ny-Gothor must be fought
+        if(GameRules.isEndRoom(room)){
+            if(next[INCANTATION] == 0){
+                addOutcome(solution, LOSS, chance);
+            }else{
+                next[PHASE] = COMBAT;
+                next[SANITY] = Math.min((1 << SANITY_BITS) - 1, GameRules.sanityOnSight(next[SANITY], solution.boss));
+                next[BOSS_HEALTH] = Ny_Gothor.getMonsterStartHealth(solution.boss);
+                addOutcome(solution, intern(solution, next), chance);
+            }
+            return;
+        }
+
+        if(GameRules.isAltarRoom(room)){
+            next[INCANTATION] = 1;
+        }
+
+        // Meeting a monster costs sanity first, going insane loses however the fight goes
+        int slot = solution.monsterSlot[room];
+        if(slot >= 0 && GameRules.meetsMonster(solution.monsterKinds[slot], next[MONSTERS + slot])){
+            next[SANITY] = GameRules.sanityOnSight(next[SANITY], getSlotMonster(solution, slot));
+            if(GameRules.isInsane(next[SANITY])){
+                addOutcome(solution, LOSS, chance);
+            }else{
+                next[PHASE] = COMBAT;
+                addOutcome(solution, intern(solution, next), chance);
+            }
+            return;
+        }
+
+        takeItem(solution, next);
+        addOutcome(solution, intern(solution, next), chance);
+
+        return;
+    } // END enterRoom
+
+
+    // One round of fightMonster with the best item held. A round where both sides miss changes nothing, so it
+    // is taken out and the other outcomes scaled up to make up for it
+    public static void fight(gameSolution solution, int[] fields){
+
+        boolean isBoss = GameRules.isEndRoom(fields[ROOM]);
+        int slot = solution.monsterSlot[fields[ROOM]];
+        monster monster = isBoss ? solution.boss : getSlotMonster(solution, slot);
+        int monsterHealth = isBoss ? fields[BOSS_HEALTH] : fields[MONSTERS + slot];
+
+        // The chances of the rolls fightMonster makes
+        double hit = GameRules.playerHitChance(monster);
+        double attack = GameRules.monsterHitChance(monster);
+        double bothMiss = (1 - hit) * (1 - attack);
+        if(bothMiss >= 1){
+            return; // Neither side can ever land a blow, fighting goes on forever
+        }
+        double scale = 1 / (1 - bothMiss);
+
+        beginAction(solution, FIGHT);
+
+        int left = GameRules.afterBlow(monsterHealth, bestDamage(solution, fields[INVENTORY]));
+        if(hit > 0 && GameRules.isDead(left)){
+            if(isBoss){
+                addOutcome(solution, WIN, hit * scale);
+            }else{
+                int[] next = fields.clone();
+                next[PHASE] = PROMPT;
+                next[MONSTERS + slot] = 0;
+                takeItem(solution, next);
+                addOutcome(solution, intern(solution, next), hit * scale);
+            }
+        }else if(hit > 0){
+            monsterAttacks(solution, fields, monster, left, hit * attack * scale, hit * (1 - attack) * scale);
+        }
+
+        monsterAttacks(solution, fields, monster, monsterHealth, (1 - hit) * attack * scale, 0);
+
+        return;
+    } // END fight
+
+
+    // The monster's half of a round, with the chance it lands and the chance it misses
+    public static void monsterAttacks(gameSolution solution, int[] fields, monster monster, int monsterHealth, double lands, double misses){
+
+        boolean isBoss = GameRules.isEndRoom(fields[ROOM]);
+        int[] next = fields.clone();
+        if(isBoss){
+            next[BOSS_HEALTH] = monsterHealth;
+        }else{
+            next[MONSTERS + solution.monsterSlot[fields[ROOM]]] = monsterHealth;
+        }
+
+        if(misses > 0){
+            addOutcome(solution, intern(solution, next), misses);
+        }
+
+        if(lands > 0){
+            next = next.clone();
+            next[HEALTH] = GameRules.afterBlow(next[HEALTH], Ny_Gothor.getMonsterDamage(monster));
+            addOutcome(solution, GameRules.isDead(next[HEALTH]) ? LOSS : intern(solution, next), lands);
+        }
+
+        return;
+    } // END monsterAttacks
+
+
+    // Running goes back to the last room, the monster keeps its wounds
+    public static void run(gameSolution solution, int[] fields){
+
+        beginAction(solution, RUN);
+
+        // Running from Ny-Gothor ends the game without a win
+        if(GameRules.isEndRoom(fields[ROOM])){
+            addOutcome(solution, LOSS, 1);
+            return;
+        }
+
+        int[] next = fields.clone();
+        next[PHASE] = PROMPT;
+        next[ROOM] = GameRules.retreatTo(fields[CAME_FROM] - 1, fields[ROOM]);
+
+        if(next[ROOM] == fields[ROOM]){
+            takeItem(solution, next); // Nowhere to run, the game carries on in the same room
+        }
+
+        addOutcome(solution, intern(solution, next), 1);
+
+        return;
+    } // END run
+
+
+    // Picks up the item in the player's room, if it is still there
+    public static void takeItem(gameSolution solution, int[] fields){
+
+        int bit = solution.roomItemBit[fields[ROOM]];
+        if(bit >= 0){
+            fields[INVENTORY] |= 1 << bit;
+        }
+
+        return;
+    } // END takeItem
+
+
+    // Damage of the best item held
+    public static int bestDamage(gameSolution solution, int inventory){
+
+        int best = solution.starterDamage;
+        for(int bits = inventory; bits != 0; bits &= bits - 1){
+            best = Math.max(best, solution.itemDamage[Integer.numberOfTrailingZeros(bits)]);
+        }
+
+        return best;
+    } // END bestDamage
+
+
+    public static monster getSlotMonster(gameSolution solution, int slot){
+        return solution.monsters[solution.monsterKinds[slot]];
+    } // END getSlotMonster
+
+    //#endregion
+
+
+
+
+
+    //#region Values
+
+    // Sweeps every state in parallel, each taking the value of its best choice, until the values settle
+    public static void iterateValues(gameSolution solution, ForkJoinPool pool){
+
+        int stateCount = solution.stateCount;
+        solution.values = new double[stateCount];
+        solution.nextValues = new double[stateCount];
+        double[] chunkChange = new double[WorldGenerator.chunkCount(stateCount)];
+
+        double change;
+        do{
+            WorldGenerator.runChunks(pool, stateCount, (chunk, from, to) -> {
+                double largest = 0;
+                for(int state = from; state < to; state++){
+                    double value = bestValue(solution, state, null);
+                    largest = Math.max(largest, Math.abs(value - solution.values[state]));
+                    solution.nextValues[state] = value;
+                }
+                chunkChange[chunk] = largest;
+            });
+
+            double[] swap = solution.values;
+            solution.values = solution.nextValues;
+            solution.nextValues = swap;
+            solution.sweeps++;
+
+            change = 0;
+            for(double chunk : chunkChange){
+                change = Math.max(change, chunk);
+            }
+        }while(change > EPSILON && solution.sweeps < MAX_SWEEPS);
+
+        solution.nextValues = null;
+
+        return;
+    } // END iterateValues
+
+
+    // Best value of the state's choices, from the last sweep's values. Fills in the best action if asked
+    public static double bestValue(gameSolution solution, int state, int[] bestActions){
+
+        double best = 0;
+        int bestAction = NO_ACTION;
+
+        for(int action = solution.actionStart[state]; action < solution.actionStart[state + 1]; action++){
+            double value = actionValue(solution, action);
+            if(bestAction == NO_ACTION || value > best){
+                best = value;
+                bestAction = solution.actionLabel[action];
+            }
+        }
+
+        if(bestActions != null){
+            bestActions[state] = bestAction;
+        }
+
+        return best;
+    } // END bestValue
+
+
+    // Chance of winning after taking the action, from the last sweep's values
+    public static double actionValue(gameSolution solution, int action){
+
+        double value = 0;
+        for(int outcome = solution.outcomeStart[action]; outcome < solution.outcomeStart[action + 1]; outcome++){
+            int target = solution.outcomeTarget[outcome];
+            if(target == WIN){
+                value += solution.outcomeChance[outcome];
+            }else if(target != LOSS){
+                value += solution.outcomeChance[outcome] * solution.values[target];
+            }
+        }
+
+        return value;
+    } // END actionValue
+
+
+    // Records the best choice in every state. Going back and forth between two rooms is often worth as much
+    // as the best path, so where choices tie the one nearer a win is taken, or the game would never end
+    public static void chooseActions(gameSolution solution, ForkJoinPool pool){
+
+        int stateCount = solution.stateCount;
+        solution.bestActions = new int[stateCount];
+        boolean[] isBest = new boolean[solution.actionCount];
+
+        WorldGenerator.runChunks(pool, stateCount, (chunk, from, to) -> {
+            for(int state = from; state < to; state++){
+                double best = bestValue(solution, state, solution.bestActions);
+                for(int action = solution.actionStart[state]; action < solution.actionStart[state + 1]; action++){
+                    isBest[action] = best > 0 && actionValue(solution, action) >= best - TIE;
+                }
+            }
+        });
+
+        // Every best choice, listed by the states it can lead to
+        int[] leadsFrom = new int[stateCount + 1];
+        for(int action = 0; action < solution.actionCount; action++){
+            if(isBest[action]){
+                for(int outcome = solution.outcomeStart[action]; outcome < solution.outcomeStart[action + 1]; outcome++){
+                    if(solution.outcomeTarget[outcome] >= 0){
+                        leadsFrom[solution.outcomeTarget[outcome] + 1]++;
+                    }
+                }
+            }
+        }
+        for(int state = 0; state < stateCount; state++){
+            leadsFrom[state + 1] += leadsFrom[state];
+        }
+        int[] fill = Arrays.copyOf(leadsFrom, stateCount);
+        int[] leadingActions = new int[leadsFrom[stateCount]];
+        int[] actionStates = new int[solution.actionCount];
+        for(int state = 0; state < stateCount; state++){
+            for(int action = solution.actionStart[state]; action < solution.actionStart[state + 1]; action++){
+                actionStates[action] = state;
+                if(isBest[action]){
+                    for(int outcome = solution.outcomeStart[action]; outcome < solution.outcomeStart[action + 1]; outcome++){
+                        if(solution.outcomeTarget[outcome] >= 0){
+                            leadingActions[fill[solution.outcomeTarget[outcome]]++] = action;
+                        }
+                    }
+                }
+            }
+        }
+
+        // Breadth first back from the wins, each state takes the first best choice found that leads closer
+        boolean[] settled = new boolean[stateCount];
+        int[] queue = new int[stateCount];
+        int head = 0;
+        int tail = 0;
+        for(int action = 0; action < solution.actionCount; action++){
+            int state = actionStates[action];
+            if(isBest[action] && !settled[state] && leadsToWin(solution, action)){
+                settled[state] = true;
+                solution.bestActions[state] = solution.actionLabel[action];
+                queue[tail++] = state;
+            }
+        }
+        while(head < tail){
+            int target = queue[head++];
+            for(int i = leadsFrom[target]; i < leadsFrom[target + 1]; i++){
+                int state = actionStates[leadingActions[i]];
+                if(!settled[state]){
+                    settled[state] = true;
+                    solution.bestActions[state] = solution.actionLabel[leadingActions[i]];
+                    queue[tail++] = state;
+                }
+            }
+        }
+
+        return;
+    } // END chooseActions
+
+
+    public static boolean leadsToWin(gameSolution solution, int action){
+
+        for(int outcome = solution.outcomeStart[action]; outcome < solution.outcomeStart[action + 1]; outcome++){
+            if(solution.outcomeTarget[outcome] == WIN){
+                return true;
+            }
+        }
+
+        return false;
+    } // END leadsToWin
+
+    //#endregion
+
+
+
+
+
+    //#region Queries
+
+    // Best chance of winning from where the solver started
+    public static double getWinRate(gameSolution solution){
+        return solution.values[solution.start];
+    } // END getWinRate
+
+
+    // How hard the cavern is, 0 for a certain win and 1 for no chance
+    public static double getDifficulty(gameSolution solution){
+        return 1 - getWinRate(solution);
+    } // END getDifficulty
+
+
+    // Best path to take at the player's room prompt (a room, or BACK), NO_ACTION if the solver never reached it
+    public static int bestMove(gameSolution solution, player player){
+        return lookupAction(solution, encodePlayer(solution, player, PROMPT));
+    } // END bestMove
+
+
+    // FIGHT or RUN against the monster in the player's room, NO_ACTION if the solver never reached it
+    public static int bestCombatAction(gameSolution solution, player player){
+        return lookupAction(solution, encodePlayer(solution, player, COMBAT));
+    } // END bestCombatAction
+
+
+    // Chance of winning from the player's room prompt, -1 if the solver never reached it
+    public static double getPlayerWinRate(gameSolution solution, player player){
+
+        int state = findNearest(solution, encodePlayer(solution, player, PROMPT));
+
+        return state < 0 ? -1 : solution.values[state];
+    } // END getPlayerWinRate
+
+
+    public static int lookupAction(gameSolution solution, int[] fields){
+
+        int state = findNearest(solution, fields);
+
+        return state < 0 ? NO_ACTION : solution.bestActions[state];
+    } // END lookupAction
+
+
+    // Finds the player's state, or the one the solver has for it. The solver only remembers the last room of
+    // the backtracking history, and after going back it keeps the room just gone back to
+    public static int findNearest(gameSolution solution, int[] fields){
+
+        int state = find(solution, fields);
+        if(state < 0 && fields[CAME_FROM] > 0){
+            int[] nearest = fields.clone();
+            nearest[CAME_FROM] = fields[ROOM] + 1;
+            state = find(solution, nearest);
+        }
+
+        return state;
+    } // END findNearest
+
+
+    // Describes the solution for the command line
+    public static String describe(gameSolution solution){
+
+        int first = solution.bestActions[solution.start];
+
+        return "States: " + solution.stateCount + " (" + solution.words + " long" + (solution.words == 1 ? "" : "s") + " each), sweeps: " + solution.sweeps + "\n"
+            + "Best win rate: " + String.format("%.4f%%", getWinRate(solution) * 100) + "\n"
+            + "Difficulty: " + String.format("%.4f", getDifficulty(solution)) + "\n"
+            + "Best first move: " + (first == NO_ACTION ? "none" : first == BACK ? "back" : "room " + first) + "\n";
+    } // END describe
+
+    //#endregion
+
+
+
+
+
+    //#region States
+
+    // Fields of the player's game, in the phase given
+    public static int[] encodePlayer(gameSolution solution, player player, int phase){
+
+        int[] fields = new int[solution.fieldBits.length];
+        int room = Ny_Gothor.getPlayerCurrentRoomIndex(player);
+        roomHistory history = Ny_Gothor.getPlayerPrevRooms(player);
+
+        fields[PHASE] = phase;
+        fields[ROOM] = room;
+        fields[CAME_FROM] = MovementHistory.isEmpty(history) ? 0 : MovementHistory.peek(history) + 1;
+        fields[HEALTH] = Ny_Gothor.getPlayerHealth(player);
+        fields[SANITY] = Math.min((1 << SANITY_BITS) - 1, Ny_Gothor.getPlayerSanity(player));
+        fields[INCANTATION] = Ny_Gothor.isIncantationSpoken(player) ? 1 : 0;
+
+        items[] allItems = Ny_Gothor.getPlayerAllItems(player);
+        for(items item : Ny_Gothor.getPlayerInventory(player)){
+            for(int bit = 0; bit < allItems.length; bit++){
+                if(allItems[bit] == item){
+                    fields[INVENTORY] |= 1 << bit;
+                }
+            }
+        }
+
+        if(phase == COMBAT && room == Ny_Gothor.END_ROOM){
+            fields[BOSS_HEALTH] = Math.max(0, Ny_Gothor.getRoomMonsterHealth(player, room));
+        }
+        for(int slot = 0; slot < solution.slotRooms.length; slot++){
+            int slotRoom = solution.slotRooms[slot];
+            fields[MONSTERS + slot] = Ny_Gothor.isRoomMonsterDead(player, slotRoom) ? 0 : Math.max(0, Ny_Gothor.getRoomMonsterHealth(player, slotRoom));
+        }
+
+        return fields;
+    } // END encodePlayer
+
+
+    // Packs the fields into the scratch key
+    public static long[] pack(gameSolution solution, int[] fields){
+
+        long[] key = new long[solution.words];
+        for(int field = 0; field < fields.length; field++){
+            int offset = solution.fieldOffsets[field];
+            long mask = (1L << solution.fieldBits[field]) - 1;
+            key[offset >>> 6] |= (fields[field] & mask) << (offset & 63);
+        }
+
+        return key;
+    } // END pack
+
+
+    // Unpacks a state's fields
+    public static int[] decode(gameSolution solution, int state){
+
+        int[] fields = new int[solution.fieldBits.length];
+        int base = state * solution.words;
+        for(int field = 0; field < fields.length; field++){
+            int offset = solution.fieldOffsets[field];
+            long mask = (1L << solution.fieldBits[field]) - 1;
+            fields[field] = (int)((solution.keys[base + (offset >>> 6)] >>> (offset & 63)) & mask);
+        }
+
+        return fields;
+    } // END decode
+
+
+    // Gets the number of a state, adding it if it is new
+    public static int intern(gameSolution solution, int[] fields){
+
+        long[] key = pack(solution, fields);
+        int slot = findSlot(solution, key);
+        if(solution.table[slot] != 0){
+            return solution.table[slot] - 1;
+        }
+
+        if(solution.stateCount == MAX_STATES){
+            throw new IllegalStateException("Cavern has more than " + MAX_STATES + " states, try a smaller one or raise nygothor.solver.states");
+        }
+
+        int state = solution.stateCount++;
+        if((state + 1) * solution.words > solution.keys.length){
+            solution.keys = Arrays.copyOf(solution.keys, solution.keys.length * 2);
+        }
+        System.arraycopy(key, 0, solution.keys, state * solution.words, solution.words);
+        solution.table[slot] = state + 1;
+
+        // Keep the table at most half full
+        if(solution.stateCount * 2 > solution.table.length){
+            rehash(solution);
+        }
+
+        return state;
+    } // END intern
+
+
+    // Gets the number of a state, -1 if it was never reached
+    public static int find(gameSolution solution, int[] fields){
+
+        for(int field = 0; field < fields.length; field++){
+            if(fields[field] < 0 || fields[field] >= 1L << solution.fieldBits[field]){
+                return -1; // Out of range of the field, could never have been stored
+            }
+        }
+
+        return solution.table[findSlot(solution, pack(solution, fields))] - 1;
+    } // END find
+
+
+    // Gets the table slot holding the key, or the empty slot where it belongs
+    public static int findSlot(gameSolution solution, long[] key){
+
+        int mask = solution.table.length - 1;
+        int slot = hash(key) & mask;
+
+        while(solution.table[slot] != 0 && !keyEquals(solution, solution.table[slot] - 1, key)){
+            slot = (slot + 1) & mask;
+        }
+
+        return slot;
+    } // END findSlot
+
+
+    public static boolean keyEquals(gameSolution solution, int state, long[] key){
+
+        int base = state * solution.words;
+        for(int i = 0; i < key.length; i++){
+            if(solution.keys[base + i] != key[i]){
+                return false;
+            }
+        }
+
+        return true;
+    } // END keyEquals
+
+
+    public static int hash(long[] key){
+
+        long hash = 0;
+        for(long word : key){
+            hash = (hash ^ word) * 0x9E3779B97F4A7C15L;
+        }
+
+        return (int)(hash ^ (hash >>> 32));
+    } // END hash
+
+
+    // Doubles the table and puts every state back in it
+    public static void rehash(gameSolution solution){
+
+        solution.table = new int[solution.table.length * 2];
+        long[] key = new long[solution.words];
+
+        for(int state = 0; state < solution.stateCount; state++){
+            System.arraycopy(solution.keys, state * solution.words, key, 0, solution.words);
+            solution.table[findSlot(solution, key)] = state + 1;
+        }
+
+        return;
+    } // END rehash
+
+    //#endregion
+
+
+
+
+
+    //#region Transitions
+
+    // Makes room for the state's entry in the action table
+    public static void growActions(gameSolution solution, int state){
+
+        if(state + 2 > solution.actionStart.length){
+            solution.actionStart = Arrays.copyOf(solution.actionStart, solution.actionStart.length * 2);
+        }
+
+        return;
+    } // END growActions
+
+
+    // Starts a new choice in the state being expanded
+    public static void beginAction(gameSolution solution, int label){
+
+        if(solution.actionCount + 2 > solution.actionLabel.length){
+            solution.actionLabel = Arrays.copyOf(solution.actionLabel, solution.actionLabel.length * 2);
+            solution.outcomeStart = Arrays.copyOf(solution.outcomeStart, solution.outcomeStart.length * 2);
+        }
+
+        solution.actionLabel[solution.actionCount] = label;
+        solution.outcomeStart[solution.actionCount] = solution.outcomeCount;
+        solution.actionCount++;
+
+        return;
+    } // END beginAction
+
+
+    // Adds a place the current choice can lead, with its chance
+    public static void addOutcome(gameSolution solution, int target, double chance){
+
+        if(solution.outcomeCount == solution.outcomeTarget.length){
+            solution.outcomeTarget = Arrays.copyOf(solution.outcomeTarget, solution.outcomeCount * 2);
+            solution.outcomeChance = Arrays.copyOf(solution.outcomeChance, solution.outcomeCount * 2);
+        }
+
+        solution.outcomeTarget[solution.outcomeCount] = target;
+        solution.outcomeChance[solution.outcomeCount] = chance;
+        solution.outcomeCount++;
+
+        return;
+    } // END addOutcome
+
+    //#endregion
+
+}
+
+
+class gameSolution{
+
+    // World, as the solver sees it
+    int roomCount;
+    int[][] exits; // Distinct paths out of each room
+    int[] roomItemBit; // Inventory bit of the item in each room, -1 for none
+    int[] itemDamage; // By inventory bit
+    int starterDamage; // Best starter item
+    int[] monsterSlot; // Field of the monster in each room (after MONSTERS), -1 for none
+    int[] slotRooms; // Room of each monster field
+    int[] monsterKinds; // Kind of each monster field
+    monster[] monsters;
+    monster boss;
+
+    // Packed states, words longs each, found through an open addressing table of state number + 1
+    int[] fieldBits;
+    int[] fieldOffsets;
+    int words;
+    long[] keys;
+    int[] table;
+    int stateCount;
+    int start;
+
+    // Choices of state s are actionStart[s] up to actionStart[s + 1], outcomes of action a likewise
+    int[] actionStart;
+    int[] actionLabel;
+    int actionCount;
+    int[] outcomeStart;
+    int[] outcomeTarget; // State, or WIN or LOSS
+    double[] outcomeChance;
+    int outcomeCount;
+
+    // Results
+    double[] values; // Best chance of winning from each state
+    double[] nextValues; // Filled by the sweep in progress
+    int[] bestActions;
+    int sweeps;
+}
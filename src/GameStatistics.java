@@ -0,0 +1,434 @@
+/* TITLE: GameStatistics
+ DESCRIPTION:
+    Totals across every session and every server: deaths per monster, deaths to insanity, wins, item pickups
+    and the turns taken to reach the altar. They are counted from each session's game events (see GameEvents) on
+    the dispatch thread, so a turn never waits on them, into striped adders. A background thread adds what the
+    process counted since its last snapshot to a memory-mapped counters file, holding the file lock, so servers
+    sharing the file each add their own counts and the totals carry on when the game is started again.
+ */
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+public class GameStatistics {
+
+    // Counters, by index
+    static final int INSANITY_DEATHS = 0;
+    static final int WINS = 1;
+    static final int ITEMS_OFFERED = 2;
+    static final int ITEMS_TAKEN = 3;
+    static final int ALTAR_REACHED = 4;
+    static final int ALTAR_TURNS = 5; // Total turns over every game that reached the altar, for the average
+    static final int COUNTER_COUNT = 6;
+    static final String[] COUNTER_NAMES = {"Insanity deaths", "Wins", "Items offered", "Items taken", "Altar reached", "Turns to altar (total)"};
+
+    // Turns to reach the altar, in buckets of 5 turns with the last bucket holding everything above
+    static final int TURN_BUCKETS = 32;
+    static final int TURN_BUCKET_WIDTH = 5;
+
+    // Counters file layout: header, counters, histogram, then a fixed table of monster names and deaths
+    static final int MAGIC = 0x4E594753; // "NYGS"
+    static final int FILE_VERSION = 1;
+    static final int MONSTER_SLOTS = 64;
+    static final int NAME_BYTES = 32;
+    static final int COUNTERS_OFFSET = 8;
+    static final int HISTOGRAM_OFFSET = COUNTERS_OFFSET + COUNTER_COUNT * 8;
+    static final int MONSTERS_OFFSET = HISTOGRAM_OFFSET + TURN_BUCKETS * 8;
+    static final int FILE_BYTES = MONSTERS_OFFSET + MONSTER_SLOTS * (NAME_BYTES + 8);
+
+    static final LongAdder[] COUNTERS = createAdders(COUNTER_COUNT);
+    static final LongAdder[] TURN_HISTOGRAM = createAdders(TURN_BUCKETS);
+    static final ConcurrentHashMap<String, LongAdder> MONSTER_DEATHS = new ConcurrentHashMap<>();
+
+    // Seconds between snapshots to the counters file
+    static final long SNAPSHOT_SECONDS = Long.getLong("nygothor.stats.interval", 10);
+
+    // Counts already added to the counters file, by snapshot only
+    static final long[] SAVED_COUNTERS = new long[COUNTER_COUNT];
+    static final long[] SAVED_HISTOGRAM = new long[TURN_BUCKETS];
+    static final HashMap<String, Long> SAVED_DEATHS = new HashMap<>();
+
+    static FileChannel countersChannel;
+    static MappedByteBuffer countersFile;
+    static volatile boolean recording;
+
+    //#region Recording
+
+    // Counts an event, attached to every session's events once statistics are kept
+    public static void countEvent(long sessionId, long sequence, int type, int room, long value, long time){
+
+        if(type == GameEvents.KILLED_BY){
+            recordMonsterDeath(GameEvents.getName(value));
+        }else if(type == GameEvents.PLAYER_INSANE){
+            recordInsanityDeath();
+        }else if(type == GameEvents.GAME_WON){
+            recordWin();
+        }else if(type == GameEvents.ITEM_OFFERED){
+            recordItemOffered(value != 0);
+        }else if(type == GameEvents.ALTAR_REACHED){
+            recordAltarReached((int)value);
+        }
+
+        return;
+    } // END countEvent
+
+
+    // Whether statistics are kept, sessions only count their events once they are
+    public static boolean isRecording(){
+        return recording;
+    } // END isRecording
+
+
+    // Player killed by a monster
+    public static void recordMonsterDeath(String monsterName){
+
+        // Plain get first, only the first death to a new monster allocates
+        LongAdder deaths = MONSTER_DEATHS.get(monsterName);
+        if(deaths == null){
+            deaths = MONSTER_DEATHS.computeIfAbsent(monsterName, name -> new LongAdder());
+        }
+        deaths.increment();
+
+        return;
+    } // END recordMonsterDeath
+
+
+    // Player went insane
+    public static void recordInsanityDeath(){
+        COUNTERS[INSANITY_DEATHS].increment();
+
+        return;
+    } // END recordInsanityDeath
+
+
+    // Player slew Ny-Gothor and reached an ending
+    public static void recordWin(){
+        COUNTERS[WINS].increment();
+
+        return;
+    } // END recordWin
+
+
+    // Player was offered an item in a room, and whether they took it
+    public static void recordItemOffered(boolean taken){
+
+        COUNTERS[ITEMS_OFFERED].increment();
+        if(taken){
+            COUNTERS[ITEMS_TAKEN].increment();
+        }
+
+        return;
+    } // END recordItemOffered
+
+
+    // Player reached the altar for the first time
+    public static void recordAltarReached(int turns){
+
+        COUNTERS[ALTAR_REACHED].increment();
+        COUNTERS[ALTAR_TURNS].add(turns);
+        TURN_HISTOGRAM[Math.min(turns / TURN_BUCKET_WIDTH, TURN_BUCKETS - 1)].increment();
+
+        return;
+    } // END recordAltarReached
+
+    //#endregion
+
+
+
+
+
+    //#region Persistence
+
+    // Gets the counters file (-Dnygothor.stats.file to move it)
+    public static Path getCountersPath(){
+
+        String property = System.getProperty("nygothor.stats.file");
+        if(property != null){
+            return Paths.get(property);
+        }
+
+        return Paths.get(System.getProperty("user.home"), "Documents", "Ny-Gothor Stats", "counters.dat");
+    } // END getCountersPath
+
+
+    // Maps the counters file and adds this process's counts to it in the background
+    public static synchronized void startPersisting() throws IOException{
+
+        if(recording){
+            return;
+        }
+
+        openCounters();
+        recording = true;
+
+        ScheduledExecutorService snapshots = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "stats-snapshot");
+            thread.setDaemon(true);
+            return thread;
+        });
+        snapshots.scheduleAtFixedRate(GameStatistics::snapshot, SNAPSHOT_SECONDS, SNAPSHOT_SECONDS, TimeUnit.SECONDS);
+
+        // Catch what happened since the last snapshot on the way out
+        Runtime.getRuntime().addShutdownHook(new Thread(GameStatistics::finalSnapshot, "stats-final-snapshot"));
+
+        return;
+    } // END startPersisting
+
+
+    // Opens and maps the counters file, once per process
+    public static synchronized void openCounters() throws IOException{
+
+        if(countersFile != null){
+            return;
+        }
+
+        Path path = getCountersPath();
+        Files.createDirectories(path.toAbsolutePath().getParent());
+
+        // Kept open for the file lock, every read and write of the file holds it
+        countersChannel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        countersFile = countersChannel.map(FileChannel.MapMode.READ_WRITE, 0, FILE_BYTES);
+
+        return;
+    } // END openCounters
+
+
+    // Adds what this process counted since the last snapshot to the totals in the file. Several servers may
+    // share the file, so the totals are read back and added to under the file lock rather than written over
+    public static synchronized void snapshot(){
+
+        if(countersFile == null){
+            return;
+        }
+
+        // Taken before the lock, anything counted meanwhile goes in the next snapshot
+        long[] counters = new long[COUNTER_COUNT];
+        for(int i = 0; i < COUNTER_COUNT; i++){
+            counters[i] = COUNTERS[i].sum();
+        }
+        long[] histogram = new long[TURN_BUCKETS];
+        for(int i = 0; i < TURN_BUCKETS; i++){
+            histogram[i] = TURN_HISTOGRAM[i].sum();
+        }
+        Map<String, Long> deaths = new HashMap<>();
+        for(Map.Entry<String, LongAdder> entry : MONSTER_DEATHS.entrySet()){
+            deaths.put(entry.getKey(), entry.getValue().sum());
+        }
+
+        try(FileLock lock = countersChannel.lock()){
+            statsTotals totals = readTotals(countersFile);
+
+            for(int i = 0; i < COUNTER_COUNT; i++){
+                totals.counters[i] += counters[i] - SAVED_COUNTERS[i];
+            }
+            for(int i = 0; i < TURN_BUCKETS; i++){
+                totals.histogram[i] += histogram[i] - SAVED_HISTOGRAM[i];
+            }
+
+            // Monsters past the end of the table are not kept
+            for(Map.Entry<String, Long> entry : deaths.entrySet()){
+                long added = entry.getValue() - SAVED_DEATHS.getOrDefault(entry.getKey(), 0L);
+                String name = storedName(entry.getKey());
+                if(added == 0){
+                    continue;
+                }
+                if(totals.monsterDeaths.containsKey(name) || totals.monsterDeaths.size() < MONSTER_SLOTS){
+                    totals.monsterDeaths.merge(name, added, Long::sum);
+                }
+            }
+
+            writeTotals(countersFile, totals);
+            countersFile.force();
+        }catch(IOException e){
+            System.err.println("Could not save statistics: " + e.getMessage());
+            return;
+        }
+
+        // Only once the file has them, a failed snapshot is added again by the next
+        System.arraycopy(counters, 0, SAVED_COUNTERS, 0, COUNTER_COUNT);
+        System.arraycopy(histogram, 0, SAVED_HISTOGRAM, 0, TURN_BUCKETS);
+        SAVED_DEATHS.putAll(deaths);
+
+        return;
+    } // END snapshot
+
+
+    // Counts the events still in the rings, then snapshots
+    public static void finalSnapshot(){
+
+        GameEvents.drainAll();
+        snapshot();
+
+        return;
+    } // END finalSnapshot
+
+
+    // Reads the totals in the counters file, with this process's counts not yet saved added on
+    public static synchronized statsTotals loadTotals() throws IOException{
+
+        openCounters();
+        snapshot();
+
+        try(FileLock lock = countersChannel.lock()){
+            return readTotals(countersFile);
+        }
+    } // END loadTotals
+
+
+    // Reads the totals out of the file, all zeros for a new file (which has no magic yet)
+    public static statsTotals readTotals(MappedByteBuffer file){
+
+        statsTotals totals = new statsTotals();
+        totals.counters = new long[COUNTER_COUNT];
+        totals.histogram = new long[TURN_BUCKETS];
+        totals.monsterDeaths = new LinkedHashMap<>();
+
+        if(file.getInt(0) != MAGIC || file.getInt(4) != FILE_VERSION){
+            return totals;
+        }
+
+        for(int i = 0; i < COUNTER_COUNT; i++){
+            totals.counters[i] = file.getLong(COUNTERS_OFFSET + i * 8);
+        }
+        for(int i = 0; i < TURN_BUCKETS; i++){
+            totals.histogram[i] = file.getLong(HISTOGRAM_OFFSET + i * 8);
+        }
+
+        for(int slot = 0; slot < MONSTER_SLOTS; slot++){
+            int offset = MONSTERS_OFFSET + slot * (NAME_BYTES + 8);
+
+            int length = 0;
+            while(length < NAME_BYTES && file.get(offset + length) != 0){
+                length++;
+            }
+            if(length == 0){
+                continue; // Empty slot
+            }
+
+            byte[] name = new byte[length];
+            for(int i = 0; i < length; i++){
+                name[i] = file.get(offset + i);
+            }
+            totals.monsterDeaths.merge(new String(name, StandardCharsets.UTF_8), file.getLong(offset + NAME_BYTES), Long::sum);
+        }
+
+        return totals;
+    } // END readTotals
+
+
+    // Gets the name as it reads back from the file, cut to NAME_BYTES
+    public static String storedName(String name){
+
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        if(bytes.length <= NAME_BYTES){
+            return name;
+        }
+
+        return new String(bytes, 0, NAME_BYTES, StandardCharsets.UTF_8);
+    } // END storedName
+
+
+    // Writes the totals into the file, called holding the file lock
+    public static void writeTotals(MappedByteBuffer file, statsTotals totals){
+
+        for(int i = 0; i < COUNTER_COUNT; i++){
+            file.putLong(COUNTERS_OFFSET + i * 8, totals.counters[i]);
+        }
+        for(int i = 0; i < TURN_BUCKETS; i++){
+            file.putLong(HISTOGRAM_OFFSET + i * 8, totals.histogram[i]);
+        }
+
+        // Monster table, names padded with zeros and cut to fit
+        int slot = 0;
+        for(Map.Entry<String, Long> entry : totals.monsterDeaths.entrySet()){
+            byte[] name = entry.getKey().getBytes(StandardCharsets.UTF_8);
+            int offset = MONSTERS_OFFSET + slot * (NAME_BYTES + 8);
+            for(int i = 0; i < NAME_BYTES; i++){
+                file.put(offset + i, i < name.length ? name[i] : 0);
+            }
+            file.putLong(offset + NAME_BYTES, entry.getValue());
+            slot++;
+        }
+
+        file.putInt(4, FILE_VERSION);
+        file.putInt(0, MAGIC);
+
+        return;
+    } // END writeTotals
+
+    //#endregion
+
+
+
+
+
+    //#region Output
+
+    // Describes the totals
+    public static String describe(statsTotals totals){
+
+        StringBuilder text = new StringBuilder();
+        for(int i = 0; i < COUNTER_COUNT; i++){
+            text.append(COUNTER_NAMES[i]).append(": ").append(totals.counters[i]).append('\n');
+        }
+
+        long offered = totals.counters[ITEMS_OFFERED];
+        long reached = totals.counters[ALTAR_REACHED];
+        text.append("Item pickup rate: ").append(offered == 0 ? "-" : String.format("%.1f%%", 100.0 * totals.counters[ITEMS_TAKEN] / offered)).append('\n');
+        text.append("Average turns to altar: ").append(reached == 0 ? "-" : String.format("%.1f", (double)totals.counters[ALTAR_TURNS] / reached)).append('\n');
+
+        text.append("Deaths per monster:\n");
+        for(Map.Entry<String, Long> entry : totals.monsterDeaths.entrySet()){
+            text.append(" - ").append(entry.getKey()).append(": ").append(entry.getValue()).append('\n');
+        }
+
+        text.append("Turns to altar:\n");
+        for(int i = 0; i < TURN_BUCKETS; i++){
+            long count = totals.histogram[i];
+            if(count > 0){
+                String range = i == TURN_BUCKETS - 1 ? (i * TURN_BUCKET_WIDTH) + "+" : (i * TURN_BUCKET_WIDTH) + "-" + ((i + 1) * TURN_BUCKET_WIDTH - 1);
+                text.append(" - ").append(range).append(": ").append(count).append('\n');
+            }
+        }
+
+        return text.toString();
+    } // END describe
+
+
+    // Creates a set of adders
+    public static LongAdder[] createAdders(int count){
+
+        LongAdder[] adders = new LongAdder[count];
+        for(int i = 0; i < count; i++){
+            adders[i] = new LongAdder();
+        }
+
+        return adders;
+    } // END createAdders
+
+    //#endregion
+
+}
+
+
+// Totals as kept in the counters file
+class statsTotals{
+    long[] counters;
+    long[] histogram; // Turns to reach the altar, by bucket
+    LinkedHashMap<String, Long> monsterDeaths;
+}
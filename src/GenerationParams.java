@@ -0,0 +1,234 @@
+/* TITLE: GenerationParams
+ DESCRIPTION:
+    The numbers that set how hard a cavern is: how many rooms it has, how likely a room is to hold a monster or
+    an item, and how the monsters and items of the content pack are scaled. Stats are given as a percentage of
+    the pack's own (100 leaves the pack as it is), so one set works with any pack.
+    New games use the set given as -Dnygothor.params=rooms=12,monsterChance=30,... (any left out keep their
+    default), which is the form ParameterSweep prints its best settings in.
+ */
+
+import java.util.Arrays;
+
+public class GenerationParams {
+
+    // Parameters, by index
+    static final int ROOMS = 0;
+    static final int MONSTER_CHANCE = 1; // Percentage chance a room rolls a monster
+    static final int ITEM_CHANCE = 2; // Percentage chance a room rolls an item
+    static final int MONSTER_HEALTH = 3; // Percent of the pack's monster health
+    static final int MONSTER_DAMAGE = 4;
+    static final int SANITY_IMPACT = 5;
+    static final int ATTACK_CHANCE = 6;
+    static final int DODGE_CHANCE = 7;
+    static final int ITEM_DAMAGE = 8; // Percent of the pack's item damage, starter items included
+    static final int PARAM_COUNT = 9;
+    static final String[] PARAM_NAMES = {"rooms", "monsterChance", "itemChance", "monsterHealth", "monsterDamage", "sanity", "attack", "dodge", "itemDamage"};
+
+    static final int[] DEFAULT_VALUES = {10, 20, 50, 100, 100, 100, 100, 100, 100};
+    static final int[] MIN_VALUES = {3, 0, 0, 1, 0, 0, 0, 0, 0};
+
+    // Parameters new games are generated with (-Dnygothor.params)
+    static final generationParams CURRENT = parse(System.getProperty("nygothor.params", ""));
+
+    //#region Parameter sets
+
+    public static generationParams current(){
+        return CURRENT;
+    } // END current
+
+
+    // Reads "name=value,name=value", parameters not named keep their default
+    public static generationParams parse(String text){
+
+        int[] values = DEFAULT_VALUES.clone();
+
+        for(String entry : text.split(",")){
+            entry = entry.trim();
+            if(entry.isEmpty()){
+                continue;
+            }
+
+            int equals = entry.indexOf('=');
+            int param = equals < 0 ? -1 : indexOf(entry.substring(0, equals).trim());
+            if(param < 0){
+                throw new IllegalArgumentException("Unknown generation parameter '" + entry + "', expected one of " + String.join(", ", PARAM_NAMES));
+            }
+
+            String value = entry.substring(equals + 1).trim();
+            if(!Ny_Gothor.isInteger(value)){
+                throw new IllegalArgumentException("Generation parameter " + PARAM_NAMES[param] + " is not a number: " + value);
+            }
+            values[param] = Integer.parseInt(value);
+        }
+
+        return create(values);
+    } // END parse
+
+
+    // Creates a set from a value for every parameter
+    public static generationParams create(int[] values){
+
+        for(int param = 0; param < PARAM_COUNT; param++){
+            if(values[param] < MIN_VALUES[param]){
+                throw new IllegalArgumentException("Generation parameter " + PARAM_NAMES[param] + " must be at least " + MIN_VALUES[param] + ", got " + values[param]);
+            }
+        }
+
+        generationParams params = new generationParams();
+        params.values = values.clone();
+
+        return params;
+    } // END create
+
+
+    // Copies the set with one parameter changed
+    public static generationParams withValue(generationParams params, int param, int value){
+
+        if(params.values[param] == value){
+            return params; // Keeps its scaled pack
+        }
+
+        int[] values = params.values.clone();
+        values[param] = value;
+
+        return create(values);
+    } // END withValue
+
+
+    // Writes the set in the form parse reads, only the parameters that differ from their defaults
+    public static String describe(generationParams params){
+
+        StringBuilder text = new StringBuilder();
+        for(int param = 0; param < PARAM_COUNT; param++){
+            if(params.values[param] != DEFAULT_VALUES[param]){
+                text.append(text.length() == 0 ? "" : ",").append(PARAM_NAMES[param]).append('=').append(params.values[param]);
+            }
+        }
+
+        return text.toString();
+    } // END describe
+
+
+    public static int indexOf(String name){
+
+        for(int param = 0; param < PARAM_COUNT; param++){
+            if(PARAM_NAMES[param].equals(name)){
+                return param;
+            }
+        }
+
+        return -1;
+    } // END indexOf
+
+
+    public static boolean isDefault(generationParams params){
+        return Arrays.equals(params.values, DEFAULT_VALUES);
+    } // END isDefault
+
+    //#endregion
+
+
+
+
+
+    //#region Scaled packs
+
+    // The current pack as scaled for new games
+    public static contentPack currentPack(){
+        return packFor(CURRENT);
+    } // END currentPack
+
+
+    // Gets the current content pack with the set's scaling, made once per pack and shared by every game
+    public static contentPack packFor(generationParams params){
+
+        contentPack pack = ContentPacks.current();
+        if(isDefault(params)){
+            return pack;
+        }
+
+        // A reloaded pack is scaled again, a race only scales it twice
+        scaledPack scaled = params.scaled;
+        if(scaled == null || scaled.from != pack){
+            scaled = new scaledPack();
+            scaled.from = pack;
+            scaled.pack = scalePack(pack, params);
+            params.scaled = scaled;
+        }
+
+        return scaled.pack;
+    } // END packFor
+
+
+    // Copies the pack with its items and monsters scaled, descriptions are shared
+    public static contentPack scalePack(contentPack pack, generationParams params){
+
+        monsterTemplate[] monsters = ContentPacks.getContentMonsters(pack).clone();
+        for(int i = 0; i < monsters.length; i++){
+            monsterTemplate m = monsters[i];
+            monsters[i] = new monsterTemplate(m.name,
+                Math.max(1, scale(m.health, params, MONSTER_HEALTH)),
+                scale(m.damage, params, MONSTER_DAMAGE),
+                scale(m.minSanityImpact, params, SANITY_IMPACT), scale(m.maxSanityImpact, params, SANITY_IMPACT),
+                scaleChance(m.minAttackChance, params, ATTACK_CHANCE), scaleChance(m.maxAttackChance, params, ATTACK_CHANCE),
+                scaleChance(m.minDodgeChance, params, DODGE_CHANCE), scaleChance(m.maxDodgeChance, params, DODGE_CHANCE));
+        }
+
+        return ContentPacks.register(new contentPack(ContentPacks.VERSIONS.incrementAndGet(), pack.id + "(" + describe(params) + ")", pack.source + " (" + describe(params) + ")",
+            scaleItems(ContentPacks.getContentStarterItems(pack), params),
+            scaleItems(ContentPacks.getContentItems(pack), params),
+            monsters,
+            ContentPacks.getContentRoomDescriptions(pack),
+            ContentPacks.getContentPathDescriptions(pack)));
+    } // END scalePack
+
+
+    public static items[] scaleItems(items[] original, generationParams params){
+
+        items[] scaled = new items[original.length];
+        for(int i = 0; i < original.length; i++){
+            scaled[i] = new items(Ny_Gothor.getItemName(original[i]), scale(Ny_Gothor.getItemDamage(original[i]), params, ITEM_DAMAGE));
+        }
+
+        return scaled;
+    } // END scaleItems
+
+
+    // Scales a stat by the parameter's percentage, rounding to the nearest whole number
+    public static int scale(int stat, generationParams params, int param){
+        return (int)Math.round(stat * (params.values[param] / 100.0));
+    } // END scale
+
+
+    // Scales a chance, which cannot go past 100
+    public static int scaleChance(int chance, generationParams params, int param){
+        return Math.min(100, scale(chance, params, param));
+    } // END scaleChance
+
+    //#endregion
+
+
+
+
+
+    //#region Get methods
+
+        public static int getParam(generationParams p, int param) {return p.values[param];}
+        public static int getRoomCount(generationParams p) {return p.values[ROOMS];}
+        public static int getMonsterChance(generationParams p) {return p.values[MONSTER_CHANCE];}
+        public static int getItemChance(generationParams p) {return p.values[ITEM_CHANCE];}
+
+    //#endregion
+
+}
+
+
+class generationParams{
+    int[] values; // By parameter index, never changed once created
+    volatile scaledPack scaled; // The pack these were last applied to, and the result
+}
+
+class scaledPack{
+    contentPack from;
+    contentPack pack;
+}
@@ -0,0 +1,752 @@
+/* TITLE: HttpGames
+ DESCRIPTION:
+    Hosts games over HTTP for web front-ends. A player creates a session, reads the game's output as a stream
+    of Server-Sent Events and posts each line they type as an action:
+
+        POST   /sessions                    starts a game, answers {"session":"<token>","stream":"...","actions":"..."}
+        GET    /sessions/<token>/stream     the game's output as text/event-stream, closed by an "end" event
+        POST   /sessions/<token>/actions    one line of input, as plain text or {"action":"..."}
+        DELETE /sessions/<token>            leaves the game
+
+    Each game runs the main menu on its own thread through the same session code as a TCP player, so gameLoop,
+    hibernation and scheduling apply unchanged. Every frame the game writes goes out as one event while the
+    game writes it, so typed text arrives a character at a time at the pace it is typed. An open stream holds
+    no thread of its own, and output written while no stream is open waits for the next one.
+    Output is added to the game's waiting output under its monitor and written outside it, one writer at a time
+    (see flush). A write that takes longer than the write timeout is given up on and the stream dropped, so a
+    player who stops reading holds up their own game for that long at most, and no one else's.
+ */
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class HttpGames {
+
+    static final int DEFAULT_PORT = 8080;
+
+    // Threads answering requests (-Dnygothor.http.threads), none of them is held by a stream or a game
+    static final int THREADS = Integer.getInteger("nygothor.http.threads", Math.max(4, 2 * Runtime.getRuntime().availableProcessors()));
+
+    // Connections waiting to be accepted
+    static final int BACKLOG = 1024;
+
+    // A game with no stream open for this long is ended (-Dnygothor.http.timeout, seconds)
+    static final long TIMEOUT_MILLIS = Long.getLong("nygothor.http.timeout", 300) * 1000;
+
+    // Open streams get a comment after this long without output, so proxies keep them open and closed ones are noticed
+    static final long HEARTBEAT_MILLIS = 15_000;
+
+    // How often heartbeats, timeouts and stuck writes are checked for
+    static final long SWEEP_MILLIS = 1_000;
+
+    // A write to a stream taking longer than this drops the stream (-Dnygothor.http.writeTimeout, seconds)
+    static final long WRITE_TIMEOUT_MILLIS = Long.getLong("nygothor.http.writeTimeout", 10) * 1000;
+
+    static final int MAX_ACTION_BYTES = 1024;
+    static final int MAX_QUEUED_ACTIONS = 16;
+
+    // Output kept for a player with no stream open, past it the game is ended
+    static final int PENDING_LIMIT = 64 * 1024;
+
+    static final byte[] DATA = GameOutput.encode("data: ");
+    static final byte[] HEARTBEAT = GameOutput.encode(":\n\n");
+    static final byte[] END = GameOutput.encode("event: end\ndata: \n\n");
+
+    // Games by session token
+    static final ConcurrentHashMap<String, httpGame> GAMES = new ConcurrentHashMap<>();
+
+    static final SecureRandom TOKENS = new SecureRandom();
+
+    // Write for threads that must not wait on a player, the sweep and requests opening a stream
+    static final ExecutorService WRITERS = Executors.newCachedThreadPool(task -> {
+        Thread writer = new Thread(task, "http-writer");
+        writer.setDaemon(true);
+        return writer;
+    });
+
+    //#region Server
+
+    // Answers requests until the process is stopped, this thread sweeps for heartbeats and timeouts
+    public static void serve(int port) throws IOException{
+
+        // Events go out as soon as they are written rather than waiting to fill a packet (read as the server starts)
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+
+        HttpServer server = HttpServer.create(new InetSocketAddress(port), BACKLOG);
+        server.createContext("/sessions", HttpGames::handle);
+        server.setExecutor(Executors.newFixedThreadPool(THREADS));
+        server.start();
+
+        SessionScheduler.startReporting();
+        System.err.println("Ny'Gothor serving HTTP on port " + server.getAddress().getPort());
+
+        while(true){
+            try{
+                Thread.sleep(SWEEP_MILLIS);
+            }catch(InterruptedException e){
+                break;
+            }
+            sweep();
+        }
+
+        server.stop(0);
+
+        return;
+    } // END serve
+
+
+    // Routes a request to its session
+    public static void handle(HttpExchange exchange) throws IOException{
+
+        String method = exchange.getRequestMethod();
+        String[] path = exchange.getRequestURI().getPath().split("/"); // "", "sessions", token, resource
+
+        try{
+            if(path.length < 2 || path.length > 4 || !path[1].equals("sessions")){
+                sendError(exchange, 404, "Not found");
+                return;
+            }
+
+            if(path.length == 2){
+                if(method.equals("POST")){
+                    createGame(exchange);
+                }else{
+                    sendError(exchange, 405, "Sessions are created with POST");
+                }
+                return;
+            }
+
+            httpGame game = GAMES.get(path[2]);
+            String resource = path.length == 4 ? path[3] : "";
+            if(game == null){
+                sendError(exchange, 404, "No such session");
+            }else if(resource.equals("stream")){
+                if(method.equals("GET")){
+                    openStream(exchange, game);
+                }else{
+                    sendError(exchange, 405, "The stream is read with GET");
+                }
+            }else if(resource.equals("actions")){
+                if(method.equals("POST")){
+                    postAction(exchange, game);
+                }else{
+                    sendError(exchange, 405, "Actions are sent with POST");
+                }
+            }else if(resource.isEmpty()){
+                if(method.equals("DELETE")){
+                    leave(game);
+                    sendJson(exchange, 204, "");
+                }else{
+                    sendError(exchange, 405, "Sessions are left with DELETE");
+                }
+            }else{
+                sendError(exchange, 404, "Not found");
+            }
+        }catch(IOException e){
+            exchange.close(); // Client went away mid-request
+        }
+
+        return;
+    } // END handle
+
+
+    // Starts a game on its own thread and tells the player where to find it
+    public static void createGame(HttpExchange exchange) throws IOException{
+
+        exchange.getRequestBody().close();
+
+        httpGame game = new httpGame();
+        game.token = HexFormat.of().formatHex(nextToken());
+        game.actions = new ArrayDeque<>();
+        game.pending = new byte[GameOutput.BUFFER_SIZE];
+        game.event = new ByteArrayOutputStream(GameOutput.BUFFER_SIZE);
+        game.replaced = new ArrayDeque<>();
+        game.detachedSince = System.currentTimeMillis();
+
+        game.session = GameSession.createWebSession(game, GameServer.PACED);
+        GAMES.put(game.token, game);
+        GameServer.startSession(game.session);
+
+        String location = "/sessions/" + game.token;
+        exchange.getResponseHeaders().set("Location", location);
+        sendJson(exchange, 201, "{\"session\":\"" + game.token + "\",\"stream\":\"" + location + "/stream\",\"actions\":\"" + location + "/actions\"}");
+
+        return;
+    } // END createGame
+
+
+    // Session tokens are the only thing standing between a player and someone else's game
+    public static byte[] nextToken(){
+
+        byte[] token = new byte[16];
+        TOKENS.nextBytes(token);
+
+        return token;
+    } // END nextToken
+
+
+    // Sends the output written so far and leaves the response open for the game to write to, replacing any older stream
+    public static void openStream(HttpExchange exchange, httpGame game) throws IOException{
+
+        exchange.getRequestBody().close();
+        exchange.getResponseHeaders().set("Content-Type", "text/event-stream; charset=utf-8");
+        exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+        exchange.getResponseHeaders().set("Connection", "close"); // The end event is the end of the connection too
+        exchange.sendResponseHeaders(200, 0);
+
+        // The older stream is closed by the writer, a write stuck on it is given up on straight away
+        synchronized(game){
+            if(game.stream != null){
+                game.replaced.addLast(game.stream);
+                if(game.writeStarted != 0){
+                    game.writer.interrupt();
+                }
+            }
+            game.stream = exchange;
+            game.lastSent = System.currentTimeMillis();
+        }
+        flushLater(game); // What was written so far, and the end if the game is over
+
+        return;
+    } // END openStream
+
+
+    // Queues a line of input for the game
+    public static void postAction(HttpExchange exchange, httpGame game) throws IOException{
+
+        byte[] body;
+        try(InputStream in = exchange.getRequestBody()){
+            body = in.readNBytes(MAX_ACTION_BYTES + 1);
+        }
+        if(body.length > MAX_ACTION_BYTES){
+            sendError(exchange, 413, "Actions are at most " + MAX_ACTION_BYTES + " bytes");
+            return;
+        }
+
+        // JSON or the bare line
+        String action = new String(body, StandardCharsets.UTF_8);
+        String type = exchange.getRequestHeaders().getFirst("Content-Type");
+        if((type != null && type.contains("json")) || action.trim().startsWith("{")){
+            action = readJsonAction(action);
+            if(action == null){
+                sendError(exchange, 400, "Expected {\\\"action\\\":\\\"...\\\"}");
+                return;
+            }
+        }
+        byte[] line = GameOutput.encode(action.replace("\r", "").replace("\n", "") + "\n");
+
+        int status;
+        synchronized(game.actions){
+            if(game.inputClosed){
+                status = 410;
+            }else if(game.actions.size() >= MAX_QUEUED_ACTIONS){
+                status = 429;
+            }else{
+                game.actions.addLast(line);
+                game.actions.notifyAll();
+                status = 204;
+            }
+        }
+
+        if(status == 204){
+            sendJson(exchange, 204, "");
+        }else{
+            sendError(exchange, status, status == 410 ? "The session has ended" : "Too many actions waiting");
+        }
+
+        return;
+    } // END postAction
+
+
+    // Answers with a JSON body, an empty one answers with no body at all
+    public static void sendJson(HttpExchange exchange, int status, String json) throws IOException{
+
+        byte[] body = GameOutput.encode(json);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+        try(OutputStream out = exchange.getResponseBody()){
+            out.write(body);
+        }
+
+        return;
+    } // END sendJson
+
+
+    public static void sendError(HttpExchange exchange, int status, String message) throws IOException{
+        sendJson(exchange, status, "{\"error\":\"" + message + "\"}");
+
+        return;
+    } // END sendError
+
+
+    // Gives up on writes that have taken too long, sends heartbeats to quiet streams, and ends games nobody has
+    // had open for too long. Never writes itself, so one player cannot hold up the rest
+    public static void sweep(){
+
+        long now = System.currentTimeMillis();
+
+        for(httpGame game : GAMES.values()){
+            boolean heartbeat = false;
+
+            synchronized(game){
+                if(game.writeStarted != 0 && now - game.writeStarted >= WRITE_TIMEOUT_MILLIS){
+                    game.writer.interrupt(); // Closes the connection under the write, which fails and drops the stream
+                }else if(game.stream != null){
+                    if(game.writer == null && now - game.lastSent >= HEARTBEAT_MILLIS){
+                        game.heartbeatDue = true;
+                        heartbeat = true;
+                    }
+                }else if(now - game.detachedSince >= TIMEOUT_MILLIS){
+                    if(game.ended){
+                        GAMES.remove(game.token); // Finished, and nobody came back for the rest
+                    }else{
+                        leave(game);
+                    }
+                }
+            }
+
+            if(heartbeat){
+                flushLater(game);
+            }
+        }
+
+        return;
+    } // END sweep
+
+    //#endregion
+
+
+
+
+
+    //#region Input
+
+    // Reads queued input for the game's session, waiting up to its read timeout (0 waits forever)
+    public static int readAction(httpGame game, byte[] buffer, int offset, int length) throws IOException{
+
+        synchronized(game.actions){
+            long deadline = System.currentTimeMillis() + game.readTimeout;
+
+            while(game.actions.isEmpty() && !game.inputClosed){
+                long remaining = deadline - System.currentTimeMillis();
+                if(game.readTimeout > 0 && remaining <= 0){
+                    throw new SocketTimeoutException("No action within " + game.readTimeout + "ms");
+                }
+
+                try{
+                    game.actions.wait(game.readTimeout > 0 ? remaining : 0);
+                }catch(InterruptedException e){
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted waiting for an action");
+                }
+            }
+
+            if(game.actions.isEmpty()){
+                return -1; // Closed
+            }
+
+            byte[] action = game.actions.peekFirst();
+            int count = Math.min(length, action.length - game.actionOffset);
+            System.arraycopy(action, game.actionOffset, buffer, offset, count);
+            game.actionOffset += count;
+            if(game.actionOffset == action.length){
+                game.actions.removeFirst();
+                game.actionOffset = 0;
+            }
+
+            return count;
+        }
+    } // END readAction
+
+
+    // Gets the bytes of posted actions not yet read, without waiting for any
+    public static int availableAction(httpGame game){
+
+        synchronized(game.actions){
+            byte[] action = game.actions.peekFirst();
+            return action == null ? 0 : action.length - game.actionOffset;
+        }
+    } // END availableAction
+
+
+    // Ends the game at its next read or write, the output not yet sent is dropped
+    public static void leave(httpGame game){
+
+        synchronized(game){
+            game.left = true;
+            game.pendingLength = 0;
+        }
+        closeInput(game);
+
+        return;
+    } // END leave
+
+
+    // Ends the game's input, the session reads what is queued and then leaves
+    public static void closeInput(httpGame game){
+
+        synchronized(game.actions){
+            game.inputClosed = true;
+            game.actions.notifyAll();
+        }
+
+        return;
+    } // END closeInput
+
+
+    // Reads the "action" string out of a JSON object, null if there is none
+    public static String readJsonAction(String json){
+
+        int i = json.indexOf("\"action\"");
+        if(i < 0){
+            return null;
+        }
+
+        // Skip to the opening quote of the value
+        i = skipSpace(json, i + 8);
+        if(i >= json.length() || json.charAt(i) != ':'){
+            return null;
+        }
+        i = skipSpace(json, i + 1);
+        if(i >= json.length() || json.charAt(i) != '"'){
+            return null;
+        }
+
+        StringBuilder action = new StringBuilder();
+        for(i++; i < json.length(); i++){
+            char c = json.charAt(i);
+
+            if(c == '"'){
+                return action.toString();
+            }else if(c != '\\'){
+                action.append(c);
+            }else if(i + 1 < json.length()){
+                char escaped = json.charAt(++i);
+                if(escaped == 'u' && i + 4 < json.length() && isHex(json, i + 1, i + 5)){
+                    action.append((char)Integer.parseInt(json.substring(i + 1, i + 5), 16));
+                    i += 4;
+                }else if(escaped == 'n' || escaped == 'r' || escaped == 't' || escaped == 'b' || escaped == 'f'){
+                    action.append(' '); // Control characters only end or split the line
+                }else{
+                    action.append(escaped); // \" \\ \/
+                }
+            }
+        }
+
+        return null; // Never closed
+    } // END readJsonAction
+
+
+    public static int skipSpace(String text, int i){
+
+        while(i < text.length() && Character.isWhitespace(text.charAt(i))){
+            i++;
+        }
+
+        return i;
+    } // END skipSpace
+
+
+    public static boolean isHex(String text, int from, int to){
+
+        for(int i = from; i < to; i++){
+            if(Character.digit(text.charAt(i), 16) < 0){
+                return false;
+            }
+        }
+
+        return true;
+    } // END isHex
+
+    //#endregion
+
+
+
+
+
+    //#region Output
+
+    // Adds a frame of the game's output to what is waiting and sends it, or keeps it until a stream is open
+    public static void publish(httpGame game, byte[] frame, int offset, int length) throws IOException{
+
+        synchronized(game){
+            if(game.left){
+                throw new IOException("Session " + game.token + " was left"); // Ends the game like a dropped connection
+            }
+
+            if(game.pendingLength + length > game.pending.length){
+                if(game.pendingLength + length > PENDING_LIMIT){
+                    leave(game);
+                    throw new IOException("Session " + game.token + " has had no stream for " + PENDING_LIMIT + " bytes of output");
+                }
+                game.pending = Arrays.copyOf(game.pending, Math.min(PENDING_LIMIT, Math.max(game.pending.length * 2, game.pendingLength + length)));
+            }
+            System.arraycopy(frame, offset, game.pending, game.pendingLength, length);
+            game.pendingLength += length;
+        }
+
+        // The game's own thread writes without its run slot (see GameOutput.flush), and only for as long as
+        // WRITE_TIMEOUT_MILLIS if the player has stopped reading
+        flush(game);
+
+        return;
+    } // END publish
+
+
+    // Writes to the game's stream until nothing is left to send. Only one thread writes to a game at a time, and
+    // never while holding the game's monitor, so a player who stops reading blocks nobody else. A thread that
+    // finds another one writing leaves it to send what it added too
+    public static void flush(httpGame game){
+
+        synchronized(game){
+            if(game.writer != null){
+                return;
+            }
+            game.writer = Thread.currentThread();
+        }
+
+        boolean writing = true;
+        while(writing){
+            writing = writeNext(game);
+        }
+
+        return;
+    } // END flush
+
+
+    // Hands the write to a writer thread, for threads that must not wait on a player
+    public static void flushLater(httpGame game){
+        WRITERS.execute(() -> flush(game));
+
+        return;
+    } // END flushLater
+
+
+    // Makes one write: closes a replaced stream, or sends the waiting output as one event, the end, or a
+    // heartbeat. Returns false, no longer the writer, once there is nothing to write
+    public static boolean writeNext(httpGame game){
+
+        HttpExchange target;
+        int taken = 0;
+        boolean closing = false;
+        ByteArrayOutputStream event = game.event; // Only the writer uses it
+
+        synchronized(game){
+            Thread.interrupted(); // Sweep only interrupts a write that has taken too long, that write is over now
+
+            target = game.replaced.pollFirst();
+            if(target != null){
+                event.reset();
+                closing = true;
+            }else if(game.stream == null){
+                game.writer = null;
+                return false;
+            }else if((taken = completeLength(game.pending, game.pendingLength)) > 0){
+                target = game.stream;
+                buildEvent(event, game.pending, taken);
+            }else if(game.ended){
+                target = game.stream;
+                event.reset();
+                event.writeBytes(END);
+                closing = true;
+                game.stream = null;
+                GAMES.remove(game.token);
+            }else if(game.heartbeatDue){
+                target = game.stream;
+                event.reset();
+                event.writeBytes(HEARTBEAT);
+            }else{
+                game.writer = null;
+                return false;
+            }
+
+            game.heartbeatDue = false;
+            game.writeStarted = System.currentTimeMillis();
+        }
+
+        boolean sent = true;
+        try{
+            OutputStream body = target.getResponseBody();
+            event.writeTo(body);
+            if(closing){
+                body.close();
+            }else{
+                body.flush();
+            }
+        }catch(IOException e){
+            sent = false; // Gone, or sweep gave up on the write
+        }
+        if(!sent || closing){
+            target.close();
+        }
+
+        synchronized(game){
+            game.writeStarted = 0;
+            game.lastSent = System.currentTimeMillis();
+
+            if(!sent && game.stream == target){
+                detach(game); // Kept for the next stream
+            }else if(sent && taken > 0){
+                taken = Math.min(taken, game.pendingLength); // Left while it was written, and dropped
+                System.arraycopy(game.pending, taken, game.pending, 0, game.pendingLength - taken);
+                game.pendingLength -= taken;
+            }
+        }
+
+        return true;
+    } // END writeNext
+
+
+    // Builds the text waiting as one event, each line of it a data line the client joins back with newlines
+    public static void buildEvent(ByteArrayOutputStream event, byte[] text, int length){
+
+        event.reset();
+        event.writeBytes(DATA);
+        for(int i = 0; i < length; i++){
+            byte b = text[i];
+            if(b == '\n'){
+                event.write('\n');
+                event.writeBytes(DATA);
+            }else if(b != '\r'){
+                event.write(b);
+            }
+        }
+        event.write('\n');
+        event.write('\n');
+
+        return;
+    } // END buildEvent
+
+
+    // Gets how much of the UTF-8 text is whole characters, a character cut off at the end waits for the rest of it
+    public static int completeLength(byte[] text, int length){
+
+        // Find where the last character starts, continuation bytes are 10xxxxxx
+        int start = length - 1;
+        while(start > 0 && length - start < 4 && (text[start] & 0xC0) == 0x80){
+            start--;
+        }
+        if(start < 0){
+            return 0;
+        }
+
+        int lead = text[start] & 0xFF;
+        int needed = lead >= 0xF0 ? 4 : lead >= 0xE0 ? 3 : lead >= 0xC0 ? 2 : 1;
+
+        return length - start >= needed ? length : start;
+    } // END completeLength
+
+
+    // Drops a stream that can no longer be written to, the game plays on until it times out. Called holding the
+    // game's monitor, the writer closes the stream
+    public static void detach(httpGame game){
+
+        game.stream = null;
+        game.detachedSince = System.currentTimeMillis();
+
+        return;
+    } // END detach
+
+
+    // Called as the session closes, a player with no stream open can still come back for the end of the output
+    public static void end(httpGame game){
+
+        closeInput(game);
+
+        synchronized(game){
+            game.ended = true;
+            game.detachedSince = System.currentTimeMillis();
+        }
+        flush(game); // The rest of the output, then the end event
+
+        return;
+    } // END end
+
+    //#endregion
+
+}
+
+
+class httpGame{
+    String token;
+    session session;
+
+    // Input, guarded by the queue's monitor
+    ArrayDeque<byte[]> actions; // Lines posted and not yet read
+    int actionOffset; // Bytes of the first line already read
+    boolean inputClosed;
+    int readTimeout; // Only used by the session's own thread
+
+    // Output, guarded by the game's monitor
+    HttpExchange stream; // Null while no stream is open
+    ArrayDeque<HttpExchange> replaced; // Older streams, for the writer to close
+    byte[] pending; // Output not yet sent, from the start
+    int pendingLength;
+    ByteArrayOutputStream event; // Reused by the writer to build each event
+    Thread writer; // Thread writing to the stream, null if none
+    long writeStarted; // When the write going on started, 0 between writes
+    long lastSent;
+    boolean heartbeatDue;
+    long detachedSince;
+    boolean left; // Deleted, or nobody read its output
+    boolean ended;
+}
+
+// The session's input stream, reading the actions posted to the game
+class actionInput extends InputStream{
+    httpGame game;
+
+    actionInput(httpGame game){
+        this.game = game;
+    }
+
+    @Override
+    public int read() throws IOException{
+        byte[] one = new byte[1];
+        return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException{
+        return HttpGames.readAction(game, buffer, offset, length);
+    }
+
+    @Override
+    public int available(){
+        return HttpGames.availableAction(game);
+    }
+}
+
+// The session's output stream, every frame the sink writes is sent as an event
+class eventStream extends OutputStream{
+    httpGame game;
+
+    eventStream(httpGame game){
+        this.game = game;
+    }
+
+    @Override
+    public void write(int b) throws IOException{
+        HttpGames.publish(game, new byte[]{(byte)b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] frame, int offset, int length) throws IOException{
+        HttpGames.publish(game, frame, offset, length);
+    }
+}
@@ -0,0 +1,347 @@
+/* TITLE: MonsterRoaming
+ DESCRIPTION:
+    Monsters that wander the cavern (-Dnygothor.roam=<radius>). Every turn is a tick of the world, and on each
+    tick a monster may walk along one of its room's paths, either way, into an empty room. Only monsters within
+    the radius of a player, counted in paths taken either way, are moved. The world keeps how many players have
+    each room in range and a list of the rooms at least one of them has, both held only for those rooms, so a
+    tick costs the same on a million room cavern as on ten and the rest of the cavern is never looked at. Each
+    player keeps the rooms in their own range, updated as they move by adding the rooms that came into range and
+    dropping those that left. Players in a shared cavern share its world, so its monsters wander around all of
+    them. Monsters never walk into or out of a room a player is in.
+ */
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.SplittableRandom;
+
+public class MonsterRoaming {
+
+    // Paths from the player within which monsters move (-Dnygothor.roam, 0 keeps every monster in its room)
+    static final int RADIUS = Integer.getInteger("nygothor.roam", 0);
+
+    // Percentage chance a monster in range moves on a tick (-Dnygothor.roam.chance)
+    static final int MOVE_CHANCE = Integer.getInteger("nygothor.roam.chance", 25);
+
+    static final int LIST_START_SIZE = 64;
+
+    //#region Ticking
+
+    // Moves the monsters in range of the world's players, called as the player enters a room
+    public static void tick(player player){
+
+        if(RADIUS <= 0){
+            return;
+        }
+
+        // Made on the first tick, and again after a load, a fork or waking from hibernation. It only holds the
+        // rooms in range, so making it costs no more than moving
+        roamingState state = player.roaming;
+        if(state == null || state.released){
+            state = createState(player);
+            player.roaming = state;
+        }
+
+        roamingWorld world = state.world;
+        int playerRoom = Ny_Gothor.getPlayerCurrentRoomIndex(player);
+        room[] rooms = Ny_Gothor.getPlayerRoomList(player);
+        worldHints hints = Ny_Gothor.getPlayerHints(player);
+
+        // Players in a shared cavern tick its world from their own threads
+        synchronized(world){
+            if(playerRoom != state.centre){
+                moveCentre(world, state, rooms, hints, playerRoom);
+            }
+            world.tick++;
+
+            // Only the rooms in range are looked at, a monster is moved at most once per tick
+            for(int i = 0; i < world.activeCount; i++){
+                roamingRoom from = world.active[i];
+                if(from.players > 0 || from.movedOn == world.tick || !Ny_Gothor.roomHasMonster(player, from.room)){
+                    continue;
+                }
+                if(world.rnd.nextInt(100) >= MOVE_CHANCE){
+                    continue;
+                }
+
+                int to = pickNeighbour(world, rooms, hints, from.room);
+                if(canEnter(world, player, to)){
+                    Ny_Gothor.moveRoomMonster(player, from.room, to);
+
+                    roamingRoom entered = world.rooms.get(to);
+                    if(entered != null){
+                        entered.movedOn = world.tick;
+                    }
+                }
+            }
+        }
+
+        return;
+    } // END tick
+
+
+    // Picks a room joined to this one by a path either way, -1 if there are none. Monsters are not held to the
+    // direction of a path, or they would all end up in dead ends
+    public static int pickNeighbour(roamingWorld world, room[] rooms, worldHints hints, int room){
+
+        int[] exits = Ny_Gothor.getRoomIndexArray(rooms[room]);
+        int reverseCount = hints.reverseStart[room + 1] - hints.reverseStart[room];
+
+        int total = exits.length + reverseCount;
+        if(total == 0){
+            return -1;
+        }
+
+        int pick = world.rnd.nextInt(total);
+        if(pick < exits.length){
+            return exits[pick];
+        }
+        pick -= exits.length;
+
+        return hints.reverseFrom[hints.reverseStart[room] + pick];
+    } // END pickNeighbour
+
+
+    // Monsters keep out of the rooms with fixed roles, rooms a player is in and rooms with a monster of their own (-1 when there was no room to pick)
+    public static boolean canEnter(roamingWorld world, player player, int roomIndex){
+
+        if(roomIndex <= Ny_Gothor.END_ROOM){
+            return false;
+        }
+
+        // Every player's room is in range of them, so it is always in the world's rooms
+        roamingRoom entry = world.rooms.get(roomIndex);
+
+        return (entry == null || entry.players == 0) && !Ny_Gothor.roomHasMonster(player, roomIndex);
+    } // END canEnter
+
+
+    // A world of roaming monsters with no player in it yet, one per shared cavern or game of its own
+    public static roamingWorld createWorld(){
+
+        roamingWorld world = new roamingWorld();
+        world.rooms = new HashMap<>();
+        world.active = new roamingRoom[LIST_START_SIZE];
+        world.rnd = new SplittableRandom();
+
+        return world;
+    } // END createWorld
+
+
+    public static roamingState createState(player player){
+
+        // Paths into each room come from the hints, which are kept for the same world anyway
+        if(Ny_Gothor.getPlayerHints(player) == null){
+            Ny_Gothor.setPlayerHints(player, WorldHints.computeHints(Ny_Gothor.getPlayerRoomList(player)));
+        }
+
+        roamingState state = new roamingState();
+        state.world = SharedWorld.isShared(player) ? player.world.roaming : createWorld();
+        state.inRange = new int[LIST_START_SIZE];
+        state.nextInRange = new int[LIST_START_SIZE];
+        state.seen = new HashSet<>();
+        state.centre = -1;
+
+        // A shared cavern outlives the player's game, so the session lets go of the player's range as it ends.
+        // A session plays one game at a time, whatever range it held before is over
+        session session = GameSession.current();
+        if(SharedWorld.isShared(player) && session != null){
+            release(session.roaming);
+            session.roaming = state;
+        }
+
+        return state;
+    } // END createState
+
+
+    // Takes the player's range out of their world, as the game is packed away or the session ends. Only once,
+    // a released range is made again by the next tick
+    public static void release(roamingState state){
+
+        if(state == null){
+            return;
+        }
+
+        roamingWorld world = state.world;
+        synchronized(world){
+            if(state.released){
+                return;
+            }
+            state.released = true;
+
+            if(state.centre >= 0){
+                world.rooms.get(state.centre).players--;
+            }
+            for(int i = 0; i < state.inRangeCount; i++){
+                loseInterest(world, state.inRange[i]);
+            }
+        }
+
+        return;
+    } // END release
+
+    //#endregion
+
+
+
+
+
+    //#region Rooms in range
+
+    // Moves the player's range to be around the room, only the rooms at its edges join or leave the world's active list
+    public static void moveCentre(roamingWorld world, roamingState state, room[] rooms, worldHints hints, int centre){
+
+        int count = collectInRange(state, rooms, hints, centre);
+
+        // Rooms still in range go up and back down, so they never leave the list
+        for(int i = 0; i < count; i++){
+            int room = state.nextInRange[i];
+
+            roamingRoom entry = world.rooms.get(room);
+            if(entry == null){
+                entry = new roamingRoom();
+                entry.room = room;
+                world.rooms.put(room, entry);
+                activate(world, entry);
+            }
+            entry.interest++;
+        }
+
+        world.rooms.get(centre).players++;
+        if(state.centre >= 0){
+            world.rooms.get(state.centre).players--;
+        }
+
+        for(int i = 0; i < state.inRangeCount; i++){
+            loseInterest(world, state.inRange[i]);
+        }
+
+        int[] swap = state.inRange;
+        state.inRange = state.nextInRange;
+        state.nextInRange = swap;
+        state.inRangeCount = count;
+        state.centre = centre;
+
+        return;
+    } // END moveCentre
+
+
+    // One less player has the room in range, it leaves the world once none do
+    public static void loseInterest(roamingWorld world, int room){
+
+        roamingRoom entry = world.rooms.get(room);
+        if(--entry.interest == 0){
+            deactivate(world, entry);
+            world.rooms.remove(room);
+        }
+
+        return;
+    } // END loseInterest
+
+
+    // Breadth first search out to the radius along paths in both directions, into nextInRange
+    public static int collectInRange(roamingState state, room[] rooms, worldHints hints, int centre){
+
+        state.seen.clear();
+        state.nextInRangeCount = 0;
+        visit(state, rooms.length, centre);
+
+        int head = 0;
+        for(int depth = 0; depth < RADIUS; depth++){
+            int levelEnd = state.nextInRangeCount;
+
+            while(head < levelEnd){
+                int room = state.nextInRange[head++];
+
+                for(int exit : Ny_Gothor.getRoomIndexArray(rooms[room])){
+                    visit(state, rooms.length, exit);
+                }
+
+                // Every room has a path back to the start, so the rooms with fixed roles are only followed forward
+                if(room <= Ny_Gothor.END_ROOM){
+                    continue;
+                }
+                for(int i = hints.reverseStart[room]; i < hints.reverseStart[room + 1]; i++){
+                    visit(state, rooms.length, hints.reverseFrom[i]);
+                }
+            }
+        }
+
+        return state.nextInRangeCount;
+    } // END collectInRange
+
+
+    public static void visit(roamingState state, int roomCount, int room){
+
+        // Paths that lead outside the cavern are skipped
+        if(room < 0 || room >= roomCount || !state.seen.add(room)){
+            return;
+        }
+
+        if(state.nextInRangeCount == state.nextInRange.length){
+            state.nextInRange = Arrays.copyOf(state.nextInRange, state.nextInRangeCount * 2);
+        }
+        state.nextInRange[state.nextInRangeCount++] = room;
+
+        return;
+    } // END visit
+
+
+    public static void activate(roamingWorld world, roamingRoom entry){
+
+        if(world.activeCount == world.active.length){
+            world.active = Arrays.copyOf(world.active, world.activeCount * 2);
+        }
+        entry.position = world.activeCount;
+        world.active[world.activeCount++] = entry;
+
+        return;
+    } // END activate
+
+
+    // Swaps the last active room into the leaving room's place
+    public static void deactivate(roamingWorld world, roamingRoom entry){
+
+        roamingRoom last = world.active[--world.activeCount];
+        world.active[entry.position] = last;
+        last.position = entry.position;
+        world.active[world.activeCount] = null;
+
+        return;
+    } // END deactivate
+
+    //#endregion
+
+}
+
+
+// Rooms in range of any player in a world, guarded by its monitor
+class roamingWorld{
+    HashMap<Integer, roamingRoom> rooms; // Only the rooms in range of a player, by room index
+    roamingRoom[] active; // The same rooms, in no order
+    int activeCount;
+
+    int tick;
+    SplittableRandom rnd;
+}
+
+class roamingRoom{
+    int room;
+    int interest; // Players in range of the room
+    int players; // Players in the room
+    int position; // Where the room is in the active list
+    int movedOn; // Tick a monster last moved into the room
+}
+
+// One player's range, the world's counts include it until it is released
+class roamingState{
+    roamingWorld world;
+    boolean released;
+
+    int centre; // Room the range was last worked out from, -1 before the first tick
+    int[] inRange; // Rooms in range of the centre
+    int inRangeCount;
+    int[] nextInRange; // Filled by each search, then swapped with inRange
+    int nextInRangeCount;
+    HashSet<Integer> seen; // Rooms the search has reached
+}
@@ -0,0 +1,243 @@
+/* TITLE: MovementHistory
+ DESCRIPTION:
+    Where the player has been. The rooms to backtrack through are kept in a bounded ring of ints, so moving and
+    going back are O(1) with no boxing, and a long game cannot grow it past its capacity (the oldest rooms are
+    forgotten first). Alongside it every room entered is appended to a breadcrumb trail, varint encoded as the
+    difference from the room before, which keeps the whole path through a game for analytics and replays.
+    Saves write both as varints.
+ */
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+
+public class MovementHistory {
+
+    // Rooms kept to backtrack through, rounded up to a power of two (-Dnygothor.history.size)
+    static final int CAPACITY = Integer.highestOneBit(Math.max(2, Integer.getInteger("nygothor.history.size", 64) * 2 - 1));
+
+    static final int TRAIL_START_BYTES = 16;
+
+    //#region Backtracking
+
+    // Creates an empty history
+    public static roomHistory createHistory(){
+
+        roomHistory history = new roomHistory();
+        history.rooms = new int[CAPACITY];
+        history.trail = new byte[TRAIL_START_BYTES];
+
+        return history;
+    } // END createHistory
+
+
+    // Copies a history, for a game loaded from a cached save
+    public static roomHistory copyHistory(roomHistory original){
+
+        roomHistory copy = new roomHistory();
+        copy.rooms = original.rooms.clone();
+        copy.start = original.start;
+        copy.count = original.count;
+
+        copy.trail = original.trail.clone();
+        copy.trailLength = original.trailLength;
+        copy.lastVisited = original.lastVisited;
+        copy.visits = original.visits;
+
+        return copy;
+    } // END copyHistory
+
+
+    // Remembers a room to come back to, forgetting the oldest when full
+    public static void push(roomHistory history, int roomIndex){
+
+        int mask = history.rooms.length - 1;
+        history.rooms[(history.start + history.count) & mask] = roomIndex;
+
+        if(history.count == history.rooms.length){
+            history.start = (history.start + 1) & mask;
+        }else{
+            history.count++;
+        }
+
+        return;
+    } // END push
+
+
+    // Gets the last room remembered
+    public static int peek(roomHistory history){
+        return history.rooms[(history.start + history.count - 1) & (history.rooms.length - 1)];
+    } // END peek
+
+
+    // Forgets the last room remembered and returns it
+    public static int pop(roomHistory history){
+
+        int roomIndex = peek(history);
+        history.count--;
+
+        return roomIndex;
+    } // END pop
+
+
+    public static int size(roomHistory history){
+        return history.count;
+    } // END size
+
+
+    public static boolean isEmpty(roomHistory history){
+        return history.count == 0;
+    } // END isEmpty
+
+    //#endregion
+
+
+
+
+
+    //#region Breadcrumb trail
+
+    // Appends a room entered to the trail
+    public static void recordVisit(roomHistory history, int roomIndex){
+
+        if(history.trailLength + 5 > history.trail.length){
+            byte[] bigger = new byte[history.trail.length * 2];
+            System.arraycopy(history.trail, 0, bigger, 0, history.trailLength);
+            history.trail = bigger;
+        }
+
+        // Zigzag so going back to a lower room is as small as going forward
+        int delta = roomIndex - history.lastVisited;
+        history.trailLength = putVarint(history.trail, history.trailLength, (delta << 1) ^ (delta >> 31));
+        history.lastVisited = roomIndex;
+        history.visits++;
+
+        return;
+    } // END recordVisit
+
+
+    // Decodes the trail into every room entered, in order
+    public static int[] getTrail(roomHistory history){
+
+        int[] rooms = new int[history.visits];
+        int position = 0;
+        int room = 0;
+
+        for(int i = 0; i < rooms.length; i++){
+            int zigzag = 0;
+            int shift = 0;
+            byte b;
+            do{
+                b = history.trail[position++];
+                zigzag |= (b & 0x7F) << shift;
+                shift += 7;
+            }while(b < 0);
+
+            room += (zigzag >>> 1) ^ -(zigzag & 1);
+            rooms[i] = room;
+        }
+
+        return rooms;
+    } // END getTrail
+
+
+    // Writes an int as a varint, 7 bits per byte with the top bit set on all but the last, returns the next position
+    public static int putVarint(byte[] bytes, int position, int value){
+
+        while((value & ~0x7F) != 0){
+            bytes[position++] = (byte)((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        bytes[position++] = (byte)value;
+
+        return position;
+    } // END putVarint
+
+    //#endregion
+
+
+
+
+
+    //#region Saving
+
+    // Writes a varint to a save
+    public static void writeVarint(ObjectOutputStream out, int value) throws IOException{
+
+        while((value & ~0x7F) != 0){
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+
+        return;
+    } // END writeVarint
+
+
+    // Reads a varint from a save
+    public static int readVarint(ObjectInputStream in) throws IOException{
+
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do{
+            b = in.readByte();
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        }while(b < 0);
+
+        return value;
+    } // END readVarint
+
+    //#endregion
+
+}
+
+
+class roomHistory implements Serializable{
+
+    // Rooms to backtrack through, oldest at start. Saved as varints by writeObject
+    transient int[] rooms;
+    transient int start;
+    transient int count;
+
+    // Every room entered, as zigzag varint differences from the room before
+    transient byte[] trail;
+    transient int trailLength;
+    transient int lastVisited;
+    transient int visits;
+
+
+    private void writeObject(ObjectOutputStream out) throws IOException{
+        out.defaultWriteObject();
+
+        // Oldest room first, so reading them back in order rebuilds the ring
+        MovementHistory.writeVarint(out, count);
+        for(int i = 0; i < count; i++){
+            MovementHistory.writeVarint(out, rooms[(start + i) & (rooms.length - 1)]);
+        }
+
+        MovementHistory.writeVarint(out, visits);
+        MovementHistory.writeVarint(out, lastVisited);
+        MovementHistory.writeVarint(out, trailLength);
+        out.write(trail, 0, trailLength);
+    }
+
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException{
+        in.defaultReadObject();
+
+        rooms = new int[MovementHistory.CAPACITY];
+        int saved = MovementHistory.readVarint(in);
+        for(int i = 0; i < saved; i++){
+            MovementHistory.push(this, MovementHistory.readVarint(in));
+        }
+
+        visits = MovementHistory.readVarint(in);
+        lastVisited = MovementHistory.readVarint(in);
+        trailLength = MovementHistory.readVarint(in);
+        trail = new byte[Math.max(MovementHistory.TRAIL_START_BYTES, trailLength)];
+        in.readFully(trail, 0, trailLength);
+    }
+}
@@ -7,42 +7,150 @@
     generated, collecting items and defeating monsters. The goal, escape the cave.
  */ 
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
 import java.util.Random;
-import java.util.Scanner;
+import java.util.SplittableRandom;
 import java.util.HashSet;
 import java.util.Set;
-import java.util.Stack;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.util.concurrent.ForkJoinPool;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 
 public class Ny_Gothor {
     public static void main(String[] args) throws Exception {
-        mainMenu();  
+
+        // Parse the content pack before anything else, so a missing or broken pack stops the game here and not after the intro
+        try{
+            ContentPacks.current();
+        }catch(UncheckedIOException e){
+            System.err.println("Could not load the content pack: " + e.getCause().getMessage());
+            System.exit(1);
+        }catch(IllegalArgumentException e){
+            System.err.println("Could not load the content pack: " + e.getMessage());
+            System.exit(1);
+        }
+
+        // Reload the content pack for new games whenever its file changes
+        if(Boolean.getBoolean("nygothor.content.watch")){
+            ContentPacks.watch();
+        }
+
+        // Generate worlds for new games in the background (see WorldPool)
+        if(WorldPool.isEnabled()){
+            WorldPool.start();
+        }
+
+        // Record every fight for analysis (see CombatLog)
+        if(CombatLog.ENABLED){
+            CombatLog.start();
+        }
+
+        // Host games over TCP instead of playing at the terminal
+        if(args.length > 0 && args[0].equals("--server")){
+            GameStatistics.startPersisting();
+            GameServer.serve(args.length > 1 ? Integer.parseInt(args[1]) : GameServer.DEFAULT_PORT);
+            return;
+        }
+
+        // Host games over HTTP for web front-ends, output streamed as Server-Sent Events (see HttpGames)
+        if(args.length > 0 && args[0].equals("--http")){
+            GameStatistics.startPersisting();
+            HttpGames.serve(args.length > 1 ? Integer.parseInt(args[1]) : HttpGames.DEFAULT_PORT);
+            return;
+        }
+
+        // Move the sessions of a local server to another, eg. before restarting it (migration ports, see SessionMigration)
+        if(args.length > 2 && args[0].equals("--drain")){
+            SessionMigration.requestDrain(Integer.parseInt(args[1]), Integer.parseInt(args[2]));
+            return;
+        }
+
+        // Generate a world and write out its room graph (format from the file extension, see WorldExport)
+        if(args.length > 1 && args[0].equals("--export")){
+            int roomCount = args.length > 2 ? Integer.parseInt(args[2]) : GenerationParams.getRoomCount(GenerationParams.current());
+            long seed = args.length > 3 ? Long.parseLong(args[3]) : System.currentTimeMillis();
+
+            WorldExport.exportWorld(initialiseGame(roomCount, seed), Paths.get(args[1]));
+            System.err.println("Exported " + roomCount + " rooms with seed " + seed + " to " + args[1]);
+            return;
+        }
+
+        // Work out the best possible win rate of a generated cavern (see GameSolver)
+        if(args.length > 0 && args[0].equals("--solve")){
+            int roomCount = args.length > 1 ? Integer.parseInt(args[1]) : GenerationParams.getRoomCount(GenerationParams.current());
+            long seed = args.length > 2 ? Long.parseLong(args[2]) : System.currentTimeMillis();
+
+            long start = System.nanoTime();
+            gameSolution solution = GameSolver.solve(initialiseGame(roomCount, seed), ForkJoinPool.commonPool());
+            System.out.print(GameSolver.describe(solution));
+            System.err.println("Solved " + roomCount + " rooms with seed " + seed + " in " + (System.nanoTime() - start) / 1_000_000 + "ms");
+            return;
+        }
+
+        // Search the generation parameters for a target win rate and game length (see ParameterSweep)
+        if(args.length > 2 && args[0].equals("--tune")){
+            long seed = args.length > 3 ? Long.parseLong(args[3]) : System.currentTimeMillis();
+            ParameterSweep.tune(Double.parseDouble(args[1]) / 100, Double.parseDouble(args[2]), seed, ForkJoinPool.commonPool());
+            return;
+        }
+
+        // Print the totals kept in the statistics file
+        if(args.length > 0 && args[0].equals("--stats")){
+            System.out.print(GameStatistics.describe(GameStatistics.loadTotals()));
+            return;
+        }
+
+        // Print totals over the recorded fights, from the given folder or where fights are recorded
+        if(args.length > 0 && args[0].equals("--combatlog")){
+            System.out.print(CombatLog.summarise(args.length > 1 ? Paths.get(args[1]) : CombatLog.getLogPath(), ForkJoinPool.commonPool()));
+            return;
+        }
+
+        // Console games only keep statistics when asked to
+        if(Boolean.getBoolean("nygothor.stats")){
+            GameStatistics.startPersisting();
+        }
+
+        // Play at the terminal, all input and output on this thread goes through the console session
+        GameSession.bind(GameSession.createConsoleSession());
+        try{
+            mainMenu();
+        }catch(UncheckedIOException e){
+
+            // Input ran out (eg. piped in), nothing more to play
+            if(!(e.getCause() instanceof EOFException)){
+                throw e;
+            }
+        }
     } // END main
 
     //#region Main menu
 
     // Method for the main menu
     public static void mainMenu() throws IOException, ClassNotFoundException{
-        System.out.println("Welcome to Ny'Gothor");
+        printLine("Welcome to Ny'Gothor");
 
         int choice = 0;
 
         // Loop while the user has not quit
         while(choice != 4){
-            System.out.println("1. New game");
-            System.out.println("2. Load game");
-            System.out.println("3. Help");
-            System.out.println("4. Quit game");
+
+            // The game moved to another server, which carries on with the player from there
+            if(SessionMigration.hasMigrated(GameSession.current())){
+                return;
+            }
+
+            printLine("1. New game");
+            printLine("2. Load game");
+            printLine("3. Help");
+            printLine("4. Quit game");
     
             choice = getChoiceAsInt("");
     
@@ -51,12 +159,12 @@ public class Ny_Gothor {
             } else if(choice == 2){
 
                 // Get game saves from folder directory
-                Path saveName = getGameSaves("Ny-Gothor Saves");
+                Path saveName = getGameSaves(GameSession.getSaveFolder(GameSession.current()));
 
-                // If the save exists
+                // If the save exists, enter game loop with loaded player data
+                // (no local is kept for the player, so gameLoop holds the only reference and can hibernate it)
                 if(saveName != null){
-                    player player = loadGame(saveName); // Get player data from save file
-                    gameLoop(player); // Enter game loop with loaded player data
+                    gameLoop(loadGame(saveName), false);
                 }
             } else if(choice == 3){
                 help();
@@ -73,12 +181,11 @@ public class Ny_Gothor {
     public static void newGame() throws IOException{
         
         // Seperates in terminal and displays introduction text
-        System.out.println("----------------------------------------------------------------------");
+        printLine("----------------------------------------------------------------------");
         introduction();
 
-        // Initialise the game and start the game loop
-        player player = initialiseGame();
-        gameLoop(player);
+        // Take a world made ahead (or initialise one), or join a cavern other players are exploring, and start the game loop (no local is kept, see mainMenu)
+        gameLoop(SharedWorld.isEnabled() ? SharedWorld.join() : WorldPool.take(), false);
 
         return;
     } // END newGame
@@ -86,13 +193,15 @@ public class Ny_Gothor {
     
     // Simple method that outputs key game elements
     public static void help(){
-        System.out.println("----------------------------------------------------------------------");
-        System.out.println("Help:");
-        System.out.println("Input room numbers as shown in game to visit them.");
-        System.out.println("Input item name to use it in combat.");
-        System.out.println("Type 'SAVE' when in a room to save the game.");
-        System.out.println("Type 'Items' to show owned items");
-        System.out.println("----------------------------------------------------------------------");
+        printLine("----------------------------------------------------------------------");
+        printLine("Help:");
+        printLine("Input room numbers as shown in game to visit them.");
+        printLine("Several choices can be typed on one line (eg. '3 y 1 Sword'), each answers the next question.");
+        printLine("Input item name to use it in combat.");
+        printLine("Type 'SAVE' when in a room to save the game.");
+        printLine("Type 'Items' to show owned items");
+        printLine("Type 'HINT' to sense which path leads towards the altar and the end");
+        printLine("----------------------------------------------------------------------");
 
         return;
     } // END help
@@ -109,29 +218,49 @@ public class Ny_Gothor {
     public static void saveGame(player player, String folderName, String saveName) throws IOException{
 
         // Create path for the save directory (in users/userName/Documents)
-        Path savepath = Paths.get(System.getProperty("user.home"), "Documents", folderName);
+        Path savepath = Paths.get(System.getProperty("user.home"), "Documents", folderName).normalize();
+
+        // Resolve file path, allowing for output streams (eg. format to /home/user/Documents/Ny-Gothor/game1.save)
+        // Names typed by remote players must stay a file in the save folder, never a path out of it
+        Path filePath = savepath.resolve(saveName).normalize();
+        if(!isValidSaveName(saveName) || !filePath.startsWith(savepath)){
+            invalidInput("Invalid save name. Use a name without slashes or dots at the start.");
+            return;
+        }
         
         // Create directory if it doesn't exist already
         Files.createDirectories(savepath);
 
-        // Resolve file path, allowing for output streams (eg. format to /home/user/Documents/Ny-Gothor/game1.save)
-        Path filePath = savepath.resolve(saveName);
-
-        ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(filePath.toFile()));
-        out.writeObject(player); // Write the player record to the stream (serialise to file)
+        // Serialise the player record to the file, safe against other sessions saving under the same name
+        // (a game in a shared cavern is saved as a game of its own, with the cavern as it stands)
+        SaveStore.save(SharedWorld.isShared(player) ? SharedWorld.snapshot(player) : player, filePath);
         
         return;
     } // END saveGame
 
 
+    // Save names are plain file names: no separators, no "..", and not hidden (saves being written start with a dot)
+    public static boolean isValidSaveName(String saveName){
+
+        if(saveName.isEmpty() || saveName.startsWith(".") || saveName.contains("..")){
+            return false;
+        }
+        for(int i = 0; i < saveName.length(); i++){
+            char c = saveName.charAt(i);
+            if(c == '/' || c == '\\' || c == ':' || Character.isISOControl(c)){
+                return false;
+            }
+        }
+
+        return true;
+    } // END isValidSaveName
+
+
     // Method to load save game from the file path
     public static player loadGame(Path filePath) throws IOException, ClassNotFoundException{
 
-        // Create an object reader and convert the path to a file, open stream to read from file
-        ObjectInputStream in = new ObjectInputStream(new FileInputStream(filePath.toFile()));
-            
-        // Read from the file path and cast to type player to allow for input into game loop
-        return (player)in.readObject(); 
+        // Read the player record from the file (or the store's cache of it) to allow for input into game loop
+        return SaveStore.load(filePath);
 
     } // END loadGame
 
@@ -144,24 +273,24 @@ public class Ny_Gothor {
 
         // Ensure directory exists
         if(!Files.exists(savePath) || !Files.isDirectory(savePath)){
-            System.out.println("Save directory not found.");
+            printLine("Save directory not found.");
             return null;
         }
 
         // Get a list of files in directory
-        // Filter to only include files and no directories, convert to array of path objects (:: is method reference operator)
-        Path[] saveFiles = Files.list(savePath).filter(Files::isRegularFile).toArray(Path[]::new);
+        // Filter to only include files and no directories or saves being written, convert to array of path objects (:: is method reference operator)
+        Path[] saveFiles = Files.list(savePath).filter(Files::isRegularFile).filter(file -> !SaveStore.isTempFile(file)).toArray(Path[]::new);
 
         // Check for save files
         if(saveFiles.length == 0){
-            System.out.println("No saves found");
+            printLine("No saves found");
             return null;
         }
 
         // Output availble save files in form "i: saveName"
-        System.out.println("Available save files:");
+        printLine("Available save files:");
         for(int i = 0; i < saveFiles.length; i++){
-            System.out.println((i + 1) + ": " + saveFiles[i].getFileName());
+            printLine((i + 1) + ": " + saveFiles[i].getFileName());
         }
 
         int choice = getChoiceAsInt("");
@@ -170,7 +299,7 @@ public class Ny_Gothor {
         if(choice > 0 && choice <= saveFiles.length){
             return saveFiles[choice - 1];
         }else{
-            System.out.println("Invalid choice.");
+            printLine("Invalid choice.");
             return null;
         }
         
@@ -184,41 +313,113 @@ public class Ny_Gothor {
 
     //#region Game
 
-    // Method that handles the main loop of the game
-    public static void gameLoop(player player) throws IOException{
+    // Method that handles the main loop of the game, a game moved from another server carries on at the prompt it left
+    public static void gameLoop(player player, boolean resumeAtPrompt) throws IOException{
         boolean isPlayerAtEnd = false;
+        boolean resuming = resumeAtPrompt;
+        int roamedOnTurn = -1;
 
         // Loop while player is not dead
         while(!isPlayerDead(player) && !isPlayerAtEnd){
+            turnEvent turn = GameProfiling.beginTurn(player);
 
             // Get current room and item in room
             room currentRoom = getPlayerRoomList(player)[getPlayerCurrentRoomIndex(player)];
 
-            typeMessage(getRoomDescription(currentRoom), 10);
+            // The room and its choices were already shown before the game moved here
+            if(resuming){
+                resuming = false;
+            }else{
+                // Monsters near the player wander once a turn, before the room is entered
+                if(getPlayerTurns(player) != roamedOnTurn){
+                    roamedOnTurn = getPlayerTurns(player);
+                    MonsterRoaming.tick(player);
+                }
+
+                // The end room leads straight to Ny-Gothor (the order rooms are checked in is set out in GameRules)
+                if(GameRules.isEndRoom(getRoomIndex(currentRoom))){
+                    isPlayerAtEnd = true;
+                    continue;
+                }
+
+                // The altar room has its own story in place of a description
+                if(GameRules.isAltarRoom(getRoomIndex(currentRoom))){
+                    enterAltarRoom(player);
+                }else{
+                    typeMessage(getRoomDescription(currentRoom), 10);
+                }
 
-            // If there is a monster in the room
-            if(roomHasMonster(currentRoom)){
-                monsterEncountered(player, getRoomMonster(currentRoom));
-            } 
+                // If there is a monster in the room
+                if(roomHasMonster(player, getRoomIndex(currentRoom))){
+                    monsterEncountered(player, getRoomIndex(currentRoom));
+                } 
 
-            // If player is fully insane
-            if(getPlayerSanity(player) >= 100){
-                insane();
+                // If player is fully insane the game is over
+                if(GameRules.isInsane(getPlayerSanity(player))){
+                    insane(player);
+                    GameProfiling.endTurn(turn, player);
+                    return;
+                }
+
+                // If there is an item
+                if(getRoomItem(currentRoom) != null){
+                    currentRoom = GameForks.writableRoom(player, getRoomIndex(currentRoom)); // Taking it changes the room
+                    outputRoomItem(player);
+                    setItemTaken(currentRoom, roomItemTaken(player)); // Update room item status
+                }
+
+                // Output path choices
+                outputRoomChoices(player);
             }
 
-            // If there is an item
-            if(getRoomItem(currentRoom) != null){
-                outputRoomItem(player);
-                setItemTaken(currentRoom, roomItemTaken(player)); // Update room item status
+            // A hosted player idle at the prompt has their game packed away until their next input arrives,
+            // and when the server is draining the game moves to another server from here
+            session session = GameSession.current();
+            if(GameSession.isSessionHosted(session)){
+                long idleSince = System.currentTimeMillis();
+                hibernatedPlayer hibernated = null;
+
+                try{
+                    while(!GameSession.awaitInput(session, SessionMigration.POLL_MILLIS)){
+                        if(SessionMigration.isRequested(session)){
+                            if(hibernated != null){
+                                player = SessionHibernation.rehydrate(hibernated);
+                                hibernated = null;
+                            }
+                            if(SessionMigration.migrate(session, player)){
+                                return; // The other server has the player now
+                            }
+                        }
+
+                        if(hibernated == null && SessionHibernation.shouldHibernate(session) && System.currentTimeMillis() - idleSince >= SessionHibernation.IDLE_MILLIS){
+                            hibernated = SessionHibernation.hibernate(player);
+                            player = null; // Drop this frame's references, the only ones left to the game
+                            currentRoom = null;
+                        }
+                    }
+
+                    if(hibernated != null){
+                        player = SessionHibernation.rehydrate(hibernated);
+                        hibernated = null;
+                    }
+                }finally{
+                    // The connection failed while the game was packed away, its blob is let go as the session ends
+                    if(hibernated != null){
+                        SessionHibernation.discard(hibernated);
+                    }
+                }
+                currentRoom = getPlayerRoomList(player)[getPlayerCurrentRoomIndex(player)];
             }
 
-            // Output path choices and go to chosen room
-            String roomInput = outputRoomChoices(player);
+            // Go to chosen room
+            String roomInput = getChoiceAsString("");
             if(roomInput.equals("SAVE")){
-                String saveName = getChoiceAsString("Enter save name.");
-                saveGame(player, "Ny-Gothor Saves", saveName);
+                String saveName = getLineAsString("Enter save name.");
+                saveGame(player, GameSession.getSaveFolder(GameSession.current()), saveName);
             }else if(roomInput.equals("Items")){
                 outputOwnedItems(player);
+            }else if(roomInput.equals("HINT")){
+                outputHint(player, currentRoom);
             }else if(roomInput.matches("-?\\d+")){
                 int chosenRoom = Integer.parseInt(roomInput);
 
@@ -240,13 +441,15 @@ public class Ny_Gothor {
                 }
 
                 if(!validRoom){
-                    System.out.println("Input does not match available choices.");
-                    System.out.println("----------------------------------------------------------------------");
+                    invalidInput("Input does not match available choices.");
+                    printLine("----------------------------------------------------------------------");
                 }
             }else{
-                System.out.println("Input does not match available choices.");
-                System.out.println("----------------------------------------------------------------------");
+                invalidInput("Input does not match available choices.");
+                printLine("----------------------------------------------------------------------");
             }
+
+            GameProfiling.endTurn(turn, player);
         }
 
         // Display death if player is dead
@@ -259,11 +462,14 @@ public class Ny_Gothor {
         if(isPlayerAtEnd){
             nyGothor(player); // Ouput story
             if(isIncantationSpoken(player)){
-                monster nyGothor = initialiseMonster(new monster(), 1000, 70, "Ny-Gothor");
-                monsterEncountered(player, nyGothor);
+
+                // Ny-Gothor takes the place of anything else in the end room
+                int endRoom = getPlayerCurrentRoomIndex(player);
+                setRoomMonster(player, endRoom, getNyGothorKind(player));
+                monsterEncountered(player, endRoom);
                 
                 // If player killed ny gothor
-                if(getMonsterHealth(nyGothor) == 0){
+                if(isRoomMonsterDead(player, endRoom)){
                     ending(player);
                 }
             }else if(!isIncantationSpoken(player)){
@@ -276,7 +482,8 @@ public class Ny_Gothor {
 
 
     // Handles when player goes insane
-    public static void insane(){
+    public static void insane(player player){
+        GameEvents.publish(GameEvents.PLAYER_INSANE, getPlayerCurrentRoomIndex(player), getPlayerSanity(player));
 
         typeMessage("Your weak mind cannot comprehend these creatures as you fall into insanity", 50);
         death();
@@ -285,10 +492,24 @@ public class Ny_Gothor {
     } // END insane
 
 
+    // Handles the player entering the altar room
+    public static void enterAltarRoom(player player){
+
+        // Count the turns it took to first find the altar
+        if(getPlayerAltarTurn(player) == 0){
+            setPlayerAltarTurn(player, getPlayerTurns(player));
+        }
+
+        altar(player);
+
+        return;
+    } // END enterAltarRoom
+
+
     // Display death message
     public static void death(){
 
-        System.out.println("----------------------------------------------------------------------");
+        printLine("----------------------------------------------------------------------");
         typeMessage("You are dead.", 50);
 
         return;
@@ -308,8 +529,8 @@ public class Ny_Gothor {
             // If the current index is equal to the choice
             if(getRoomIndexArray(currentRoom)[i] == roomChoice){
 
-                // Add the current room index to stack for potential backtracking
-                getPlayerPrevRooms(player).push(getRoomIndex(currentRoom));
+                // Remember the current room for potential backtracking
+                MovementHistory.push(GameForks.writableHistory(player), getRoomIndex(currentRoom));
                 
                 // Set the chosen index to the value at the index-1
                 return chosenRoomIndex = getRoomIndexArray(currentRoom)[i];
@@ -321,20 +542,50 @@ public class Ny_Gothor {
     } // END goToRoom
 
 
+    // Outputs which exit of the room is closest to the altar and to the end
+    public static void outputHint(player player, room currentRoom){
+        final int TEXT_SPEED = 50;
+        final String[] TARGET_NAMES = {"the altar", "the end"};
+
+        // Distances are worked out the first time a hint is asked for in this world
+        if(getPlayerHints(player) == null){
+            setPlayerHints(player, WorldHints.computeHints(getPlayerRoomList(player)));
+        }
+        worldHints hints = getPlayerHints(player);
+
+        for(int target = 0; target < WorldHints.TARGET_ROOMS.length; target++){
+            int exit = WorldHints.bestExit(hints, currentRoom, target);
+
+            if(getRoomIndex(currentRoom) == WorldHints.TARGET_ROOMS[target]){
+                typeMessage("You stand at " + TARGET_NAMES[target] + ".", TEXT_SPEED);
+            }else if(exit == -1){
+                typeMessage("No path from here leads to " + TARGET_NAMES[target] + ".", TEXT_SPEED);
+            }else{
+                int rooms = WorldHints.getDistance(hints, exit, target) + 1;
+                typeMessage("Path " + exit + " leads towards " + TARGET_NAMES[target] + ", " + rooms + " room" + (rooms == 1 ? "" : "s") + " away.", TEXT_SPEED);
+            }
+        }
+
+        printLine("----------------------------------------------------------------------");
+
+        return;
+    } // END outputHint
+
+
     // Takes current room and goes to previous room
     public static void returnToLastRoom(player player){
 
         // Do nothing if there are no other rooms
-        if(getPlayerPrevRooms(player).isEmpty()){
+        if(MovementHistory.isEmpty(getPlayerPrevRooms(player))){
             return;
         }
 
         // Update the current room index
-        setPlayerCurrentRoomIndex(player, getPlayerPrevRooms(player).get(getPlayerPrevRooms(player).size() - 1));
+        setPlayerCurrentRoomIndex(player, MovementHistory.peek(getPlayerPrevRooms(player)));
         
         // Remove the last room only if there is more than one previous rooms
-        if(getPlayerPrevRooms(player).size() > 1){
-            getPlayerPrevRooms(player).pop();
+        if(MovementHistory.size(getPlayerPrevRooms(player)) > 1){
+            MovementHistory.pop(GameForks.writableHistory(player));
         }
 
         return;
@@ -351,12 +602,14 @@ public class Ny_Gothor {
     //#region Combat
 
     // Method that handles a monster encounter, has MANY sub methods :3
-    public static void monsterEncountered(player player, monster monster){
+    public static void monsterEncountered(player player, int roomIndex){
         int choice;
         boolean isRunning = false;
         final int TEXT_SPEED = 50;
         
-        room currentRoom = getPlayerRoomList(player)[getPlayerCurrentRoomIndex(player)];
+        // Stats are shared by every monster of this kind, health and death are kept for this room only
+        monster monster = getRoomMonster(player, roomIndex);
+        encounterEvent encounter = GameProfiling.beginEncounter(player, roomIndex);
 
         // Output start of encounter and decrease sanity (check if monster is ny-gothor for different output)
         if(getMonsterName(monster).equals("Ny-Gothor")){
@@ -369,22 +622,23 @@ public class Ny_Gothor {
         }        
         
         // Update sanity
-        setPlayerSanity(player, getPlayerSanity(player) + getMonsterSanityImpact(monster));
+        setPlayerSanity(player, GameRules.sanityOnSight(getPlayerSanity(player), monster));
 
         // Loop while the monster is alive and the player is not dead or player has run away
-        while(getMonsterHealth(monster) > 0 && !isPlayerDead(player) && !isRunning){
+        while(getRoomMonsterHealth(player, roomIndex) > 0 && !isPlayerDead(player) && !isRunning){
 
             // Output status
-            typeMessage(getMonsterName(monster) + " has " + getMonsterHealth(monster) + " health remaining.", TEXT_SPEED);
+            typeMessage(getMonsterName(monster) + " has " + getRoomMonsterHealth(player, roomIndex) + " health remaining.", TEXT_SPEED);
             typeMessage("You have " + getPlayerHealth(player) + " health remaining. You are " + getPlayerSanity(player) + "% insane.", TEXT_SPEED);
 
             choice = combatChoices();
             if(choice == 1){
-                fightMonster(player, monster);
+                fightMonster(player, roomIndex);
             }else if (choice == 2){
                 isRunning = true;
             }
         }
+        GameProfiling.endEncounter(encounter, player, isRunning);
 
         // If the player runs, return to last room
         if(isRunning){
@@ -394,9 +648,8 @@ public class Ny_Gothor {
         }
 
         // If the monster was killed, the room doesn't have one anymore
-        if(isMonsterDead(monster)){
+        if(isRoomMonsterDead(player, roomIndex)){
             typeMessage("The beast falls.", TEXT_SPEED);
-            setRoomHasMonster(currentRoom, false);
         }
 
         return;
@@ -423,7 +676,7 @@ public class Ny_Gothor {
             if(choice == 1 || choice == 2){
                 inputValid = true;
             }else{
-                System.out.println("Invalid input.");
+                invalidInput("Invalid input.");
             }
         }
         return choice;
@@ -431,26 +684,32 @@ public class Ny_Gothor {
 
 
     // Method that handles the player and monster attacks
-    public static void fightMonster(player player, monster monster){
+    public static void fightMonster(player player, int roomIndex){
         final int TEXT_SPEED = 50;
+        monster monster = getRoomMonster(player, roomIndex);
 
         Random rnd = new Random();
 
         // Output player items and get choice of weapon
         outputOwnedItems(player);
         items itemChoice = getItemChoice(player);
+
+        // Healths as the exchange starts, for the combat log
+        int monsterHealthBefore = getRoomMonsterHealth(player, roomIndex);
+        int playerHealthBefore = getPlayerHealth(player);
         
         // If monster did/did not dodge attack
-        int monsterDodge = rnd.nextInt(101);
-        if(monsterDodge < getMonsterDodgeChance(monster)){
-            updateMonsterHealth(monster, getItemDamage(itemChoice)); // Do damage to monster
+        int monsterDodge = rnd.nextInt(GameRules.ROLL_SIDES);
+        if(GameRules.playerHits(monsterDodge, monster)){
+            updateMonsterHealth(player, roomIndex, getItemDamage(itemChoice)); // Do damage to monster
         }else{
             typeMessage("The attack missed", TEXT_SPEED);
         }
 
         // End combat if monster killed
-        if(getMonsterHealth(monster) <= 0){
-            setMonsterDead(monster, true);
+        if(GameRules.isDead(getRoomMonsterHealth(player, roomIndex))){
+            setRoomMonsterDead(player, roomIndex, true);
+            CombatLog.record(player, roomIndex, itemChoice, monsterDodge, CombatLog.NO_ROLL, monsterHealthBefore, playerHealthBefore);
             return;
         }
 
@@ -458,19 +717,21 @@ public class Ny_Gothor {
         typeMessage("The monster will attack", TEXT_SPEED);
 
         // If monster did/did not land attack
-        int monsterAttack = rnd.nextInt(101);
-        if(monsterAttack < getMonsterAttackChance(monster)){
+        int monsterAttack = rnd.nextInt(GameRules.ROLL_SIDES);
+        if(GameRules.monsterHits(monsterAttack, monster)){
             updatePlayerHealth(player, getMonsterDamage(monster));
         }else{
             typeMessage("The attack missed", TEXT_SPEED);
         }
 
         // If player has died
-        if(getPlayerHealth(player) <= 0){
+        if(GameRules.isDead(getPlayerHealth(player))){
             setPlayerDead(player, true);
+            GameEvents.publish(GameEvents.KILLED_BY, roomIndex, GameEvents.nameCode(getMonsterName(monster)));
         }
+        CombatLog.record(player, roomIndex, itemChoice, monsterDodge, monsterAttack, monsterHealthBefore, playerHealthBefore);
 
-        System.out.println("----------------------------------------------------------------------");
+        printLine("----------------------------------------------------------------------");
 
         return;
     } // END fightMonster
@@ -478,7 +739,6 @@ public class Ny_Gothor {
 
     // Method to return the choice from the inventory
     public static items getItemChoice(player player){
-        Scanner scanner = new Scanner(System.in);
         String input;
         items itemChosen = null;
         boolean isValid = false;
@@ -500,7 +760,7 @@ public class Ny_Gothor {
             
             // If input is invalid
             if(isValid == false){
-                System.out.println("Invalid input. Enter item name.");
+                invalidInput("Invalid input. Enter item name.");
             }
         }
 
@@ -519,15 +779,10 @@ public class Ny_Gothor {
     public static player initialiseGame(){
         
         // Total number of rooms in the game
-        final int ROOM_COUNT = 10; 
+        final int ROOM_COUNT = GenerationParams.getRoomCount(GenerationParams.current());
         
         // Create the player and set values
-        player player = new player();
-        setPlayerHealth(player, 100);
-        setPlayerSanity(player, 0);
-        setPlayerDead(player, false);
-        setIncantationSpoken(player, false);
-        setPlayerCurrentRoomIndex(player, 0);
+        player player = createPlayer();
 
         // Declare and initalise all items, monsters, and room layout
         declareItems(player);
@@ -537,10 +792,52 @@ public class Ny_Gothor {
         return player;
     } // END initialiseGame
 
+
+    // Initialises a seeded game, the same seed always gives the same cavern no matter how many threads build it
+    public static player initialiseGame(int roomCount, long seed){
+        return initialiseGame(GenerationParams.withValue(GenerationParams.current(), GenerationParams.ROOMS, roomCount), seed);
+    } // END initialiseGame
+
+
+    // Initialises a seeded game generated with the given parameters
+    public static player initialiseGame(generationParams params, long seed){
+
+        player player = createPlayer();
+        setPlayerContent(player, GenerationParams.packFor(params));
+
+        // Monster stats are rolled from the seed too so the whole world is reproducible
+        declareItems(player);
+        declareMonsters(player, new Random(seed));
+        WorldGenerator.declareRoomsParallel(player, params, seed, ForkJoinPool.commonPool());
+
+        return player;
+    } // END initialiseGame
+
+
+    // Creates the player with starting values
+    public static player createPlayer(){
+
+        player player = new player();
+        setPlayerContent(player, GenerationParams.currentPack()); // Items, monsters and descriptions the game is built from
+        setPlayerHealth(player, 100);
+        setPlayerSanity(player, 0);
+        setPlayerDead(player, false);
+        setIncantationSpoken(player, false);
+        setPlayerCurrentRoomIndex(player, 0);
+
+        return player;
+    } // END createPlayer
+
     //#region Initialise rooms
 
+    // Rooms with fixed roles
+    static final int START_ROOM = 0;
+    static final int ALTAR_ROOM = 1;
+    static final int END_ROOM = 2;
+
     // Declares x amount of rooms and assigns details
     public static void declareRooms(player player, int roomCount){
+        generationEvent generation = GameProfiling.beginGeneration();
         
         // Set and get room list
         setPlayerRoomList(player, new room[roomCount]);
@@ -556,12 +853,14 @@ public class Ny_Gothor {
 
         // Set room list and assign indicies
         setPlayerRoomList(player, roomList);
+        declareRoomMonsters(player, roomCount);
         assignRoomIndex(player, roomCount);
 
         // Set room details (done in seperate loop as details depend on indicies)
         for(int i = 0; i < roomCount; i++){
             roomList[i] = setRoomDetails(roomList[i], player);
         }
+        GameProfiling.endGeneration(generation, roomCount, false);
 
         return;
     } // END declareRooms
@@ -634,24 +933,32 @@ public class Ny_Gothor {
     public static room setRoomDetails(room room, player player){
 
         Random rnd = new Random();
-        final int chanceForMonster = 20;
-        final int chanceForItem = 50;
+        generationParams params = GenerationParams.current();
 
         setItemTaken(room, false);
-        setRoomHasMonster(room, false);
 
         // Random chance for room to have a item unless start room
-        if(chanceForItem > rnd.nextInt(101) && getRoomIndex(room) != 0){
+        if(GenerationParams.getItemChance(params) > rnd.nextInt(101) && getRoomIndex(room) != 0){
             setRoomItem(room, addItemToRoom(player));
         }
 
         // Random chance for room to have a monster unless start room
-        if(chanceForMonster > rnd.nextInt(101) && getRoomIndex(room) != 0){
-            setRoomMonster(room, addMonsterToRoom(player));
-            setRoomHasMonster(room, true);
+        if(GenerationParams.getMonsterChance(params) > rnd.nextInt(101) && getRoomIndex(room) != 0){
+            setRoomMonster(player, getRoomIndex(room), addMonsterToRoom(player));
         }
 
         // Assigning room descriptions
+        if(!setSpecialRoomDescriptions(room)){
+            setRoomDescription(room, getRndRoomDescription(getPlayerContent(player)));
+            setPathDescription(room, getRndPathDescription(getPlayerContent(player)));
+        }
+        return room;
+    } // END setRoomsDetails
+
+
+    // Assigns the fixed descriptions of the special rooms, returns false if the room is not a special room
+    public static boolean setSpecialRoomDescriptions(room room){
+
         if(getRoomIndex(room) == 0){ // Starter room assigned index 0
             setRoomDescription(room, "The dying light from where you fell shines down.");
             setPathDescription(room, "A gleaming light shines down");
@@ -660,11 +967,10 @@ public class Ny_Gothor {
         }else if(getRoomIndex(room) == 2){ // End room
             setPathDescription(room, "The path seems to trail into infinity with no return.");
         }else{
-            setRoomDescription(room, getRndRoomDescription());
-            setPathDescription(room, getRndPathDescription());
+            return false;
         }
-        return room;
-    } // END setRoomsDetails
+        return true;
+    } // END setSpecialRoomDescriptions
 
 
     // Get a random item and returns it for the room
@@ -682,11 +988,12 @@ public class Ny_Gothor {
             
             // Get a random item for the room from the list
             items[] allItems = getPlayerAllItems(player);
-            itemForRoom = allItems[rnd.nextInt(allItems.length)];
+            int itemIndex = rnd.nextInt(allItems.length);
+            itemForRoom = allItems[itemIndex];
 
             // If the item does not exist in the room, it can be added
-            if(itemExistsInRoom(itemForRoom) == false){
-                setItemExistsInRoom(itemForRoom, true);
+            if(itemExistsInRoom(player, itemIndex) == false){
+                setItemExistsInRoom(player, itemIndex, true);
                 itemCanBeAdded = true;
             }else{ // Else item does not exist
                 itemForRoom = null;
@@ -699,88 +1006,42 @@ public class Ny_Gothor {
     } // END addItemToRoom
 
 
-    // Get a random monster and returns it for the room
-    public static monster addMonsterToRoom(player player){
+    // Get a random kind of monster and returns it for the room
+    public static int addMonsterToRoom(player player){
         Random rnd = new Random();
-        monster monsterForRoom = null;
  
-        // Get a random monster for the room from the list
-        monster[] monsterList = getPlayerMonsterList(player);
-        monsterForRoom = monsterList[rnd.nextInt(monsterList.length)];
-
-        return monsterForRoom;
+        // Get a random monster for the room from the list (Ny-Gothor is never picked)
+        return rnd.nextInt(getCavernMonsterCount(player));
     } // END addMonsterToRoom
 
 
-    // Gets a random string for the path description to the room from a pre-defined assortment
-    public static String getRndPathDescription(){
-        Random rnd = new Random();
-        String choice;
-        List<String> descriptions = new ArrayList<>();
-
-        // Declare unique strings for path descriptions
-        String msg1 = "A path descends into an abyssal gloom, where the walls seem to pulsate with a loathsome, unseen life. Strange symbols writhe faintly upon the stone, mocking your sanity.";
-        String msg2 = "A narrow passage coils through the rock, its air heavy with the scent of decay and ancient dust. Faint whispers, carried by no discernible wind, beckon from the unseen recesses.";
-        String msg3 = "A corridor of jagged stone, its surface slick with a viscous, black substance that reflects the feeble light. The walls seem to close in, as though alive.";
-        String msg4 = "The cavern yawns open, its towering stalactites resembling the fangs of some primordial beast. Shadows dance erratically across the ground, though no flame illuminates the space.";
-        String msg5 = "A passage winds in a serpentine manner, constricting like the coils of a serpent. An oppressive silence fills the space, broken only by the faint sound of dripping water far in the unseen depths.";
-        String msg6 = "A tunnel twists unnervingly, its walls seeming to ripple like water disturbed by some unseen force. The floor looks wrong, as though it shifts slightly, responding to your presence.";
-        String msg7 = "A stifling darkness envelops the corridor ahead, the kind that seems to swallow light whole. Faint, echoing sounds drift through the space - whether the cries of distant explorers or the last gasps of something far more ancient and terrible, you cannot tell.";
-        String msg8 = "The path curves sharply here, vanishing into a maw of impenetrable shadow. A faint glow emanates from the stone, though its source is unknown, and the oppressive atmosphere suggests something old.";
-        String msg9 = "A low, steady hum resonates through the tunnel, as if the earth itself sings an alien hymn. The walls are covered in strange, phosphorescent fungi that cast an unholy light, illuminating strange patterns in the rock.";
-
-        // Add to list
-        descriptions.add(msg1);
-        descriptions.add(msg2);
-        descriptions.add(msg3);
-        descriptions.add(msg4);
-        descriptions.add(msg5);
-        descriptions.add(msg6);
-        descriptions.add(msg7);
-        descriptions.add(msg8);
-        descriptions.add(msg9);
-
-        // Returns a random string from the list using the length of the lsit        
-        choice = descriptions.get(rnd.nextInt(descriptions.size()));
+    // Gets a random string for the path description to the room from the content pack
+    public static String getRndPathDescription(contentPack content){
+        return getRndPathDescription(content, new SplittableRandom());
+    } // END getRndPathDescription
 
-        return choice;
+
+    // Gets a path description using the given random stream (used for seeded generation)
+    public static String getRndPathDescription(contentPack content, SplittableRandom rnd){
+        String[] descriptions = ContentPacks.getContentPathDescriptions(content);
+
+        // Returns a random string from the list using the length of the list
+        return descriptions[rnd.nextInt(descriptions.length)];
     } // END getRndPathDescription
 
 
-    // Gets a random string for the room description from a pre-defined assortment
-    public static String getRndRoomDescription(){
-        Random rnd = new Random();
-        String choice;
-        List<String> descriptions = new ArrayList<>();
-
-        // Declare unique strings for room descriptions
-        String msg1 = "The chamber is vast, its uneven walls appear carved by some long-forgotten, force. A sickly green light emanates from strange, rune-covered stones embedded in the floor. The air is thick with the scent of rot and something far older, as if the room itself is alive.";
-        String msg2 = "You find yourself in a low-ceilinged room, the oppressive weight of centuries pressing down from above. Faded murals cover the walls, depicting twisted forms locked in eternal torment, their eyes following you with an unsettling awareness.";
-        String msg3 = "The room's walls are slick with moisture, unnaturally cold, as though the very stone rejects the warmth of life. Piles of ancient bones, bleached and brittle, litter the floor.";
-        String msg4 = "The chamber opens into a grand, circular space, the ceiling lost in shadows far above. In the centre stands an altar of black stone, its surface etched with unreadable glyphs that seem to pulse faintly in the dim light.";
-        String msg5 = "The room is unnervingly symmetrical, every corner too sharp, every line too perfect. The air buzzes with a low, almost imperceptible hum, while a faint vibration runs through the stone floor. ";
-        String msg6 = "The space is cramped, suffocating even, with the ceiling sagging as though the weight of countless eons threatens to crush all within. In the corner a mound of strange, decayed fabric lies, its contents shifting ever so slightly.";
-        String msg7 = "This room feels wrong, as if it exists in defiance of natural law. The air is dense, thick with a palpable sense of unease. Strange angular shapes cover the walls - symbols that seem to shift and change when viewed out of the corner of your eye. The ceiling drips with a viscous fluid that evaporates before reaching the ground, leaving the room in a constant state of strange anticipation.";
-        String msg8 = "A circular pit dominates the centre of the room, surrounded by jagged, unnatural formations that seem to grow from the floor. The pit is impossibly deep, and from within it rises a foul, cloying mist that carries with it whispers - faint and indistinct, but unmistakably filled with fear and despair.";
-        String msg9 = "The room is vast, but the oppressive darkness swallows all but the immediate space around you. The ground beneath your feet is uneven, as though the floor is slowly warping under the weight of something beyond human reckoning.";
-        String msg10 = "A faint blue light seeps into the room from an unknown source, casting long, distorted shadows across the floor. The walls are etched with strange geometric patterns that seem to lead your eye in circles, drawing you deeper into their maddening design.";
-
-        // Add to list
-        descriptions.add(msg1);
-        descriptions.add(msg2);
-        descriptions.add(msg3);
-        descriptions.add(msg4);
-        descriptions.add(msg5);
-        descriptions.add(msg6);
-        descriptions.add(msg7);
-        descriptions.add(msg8);
-        descriptions.add(msg9);
-        descriptions.add(msg10);
-
-        // Returns a random string from the list using the length of the lsit        
-        choice = descriptions.get(rnd.nextInt(descriptions.size()));
+    // Gets a random string for the room description from the content pack
+    public static String getRndRoomDescription(contentPack content){
+        return getRndRoomDescription(content, new SplittableRandom());
+    } // END getRndRoomDescription
 
-        return choice;
+
+    // Gets a room description using the given random stream (used for seeded generation)
+    public static String getRndRoomDescription(contentPack content, SplittableRandom rnd){
+        String[] descriptions = ContentPacks.getContentRoomDescriptions(content);
+
+        // Returns a random string from the list using the length of the list
+        return descriptions[rnd.nextInt(descriptions.length)];
     } // END getRndRoomDescription
 
     //#endregion
@@ -791,40 +1052,77 @@ public class Ny_Gothor {
 
     //#region Initialise monsters
 
+    // Room monster kind for a room without one
+    static final byte NO_MONSTER = -1;
+
     // Declares each monster
     public static void declareMonsters(player player){
+        declareMonsters(player, new Random());
+
+        return;
+    } // END declareMonsters
+
+
+    // Declares each monster from the content pack, rolling their stats from the given random
+    public static void declareMonsters(player player, Random rnd){
 
-        setPlayerMonsterList(player, new monster[]{
-            initialiseMonster(new monster(), 100, 20, "Ky-Tagar"),
-            initialiseMonster(new monster(), 200, 10, "Azakoth"),
-            initialiseMonster(new monster(), 20, 40, "Agaroth")
-        });
+        // Ny-Gothor (the boss) is always last in the pack, so it stays last here
+        monsterTemplate[] templates = ContentPacks.getContentMonsters(getPlayerContent(player));
+        monster[] monsterList = new monster[templates.length];
+
+        for(int i = 0; i < templates.length; i++){
+            monsterList[i] = initialiseMonster(templates[i], rnd);
+        }
+
+        setPlayerMonsterList(player, monsterList);
 
         return;
     } // END declareMonsters
 
 
-    // Assigns values within the monster record
-    public static monster initialiseMonster(monster monster, int health, int damage, String name){
-        Random rnd = new Random();
+    // Creates the record for a kind of monster in this game, rolling stats within the pack's ranges
+    public static monster initialiseMonster(monsterTemplate template, Random rnd){
 
         // Set these stats randomly for variation
-        int sanityImpact = rnd.nextInt(20);
-        int attackChance = rnd.nextInt(80);
-        int dodgeChance = rnd.nextInt(15);
-
-        // Assign values to monster
-        setMonsterName(monster, name);
-        setMonsterHealth(monster, health);
-        setMonsterDamage(monster, damage);
-        setMonsterSanityImpact(monster, sanityImpact);
-        setMonsterAttackChance(monster, attackChance);
-        setMonsterDodgeChance(monster, dodgeChance);
-        setMonsterDead(monster, false);
-
-        return monster;
+        int sanityImpact = rollInRange(rnd, template.minSanityImpact, template.maxSanityImpact);
+        int attackChance = rollInRange(rnd, template.minAttackChance, template.maxAttackChance);
+        int dodgeChance = rollInRange(rnd, template.minDodgeChance, template.maxDodgeChance);
+
+        return new monster(template.name, template.health, template.damage, sanityImpact, attackChance, dodgeChance);
     } // END initialiseMonster
 
+
+    // Gets a random number from min to max inclusive
+    public static int rollInRange(Random rnd, int min, int max){
+        return min + rnd.nextInt(max - min + 1);
+    } // END rollInRange
+
+
+    // Creates the per room monster state, every room starts without a monster
+    public static void declareRoomMonsters(player player, int roomCount){
+
+        byte[] monsterKinds = new byte[roomCount];
+        Arrays.fill(monsterKinds, NO_MONSTER);
+
+        setPlayerRoomMonsterKinds(player, monsterKinds);
+        setPlayerRoomMonsterHealth(player, new int[roomCount]);
+        setPlayerRoomMonsterDead(player, new boolean[roomCount]);
+
+        return;
+    } // END declareRoomMonsters
+
+
+    // Amount of monster kinds that can be found in the cavern
+    public static int getCavernMonsterCount(player player){
+        return getPlayerMonsterList(player).length - 1;
+    } // END getCavernMonsterCount
+
+
+    // Kind of monster for Ny-Gothor
+    public static int getNyGothorKind(player player){
+        return getPlayerMonsterList(player).length - 1;
+    } // END getNyGothorKind
+
     //#endregion
 
 
@@ -833,35 +1131,19 @@ public class Ny_Gothor {
 
     //#region Initialise items
 
-    // Declares all items for game and initialises them
+    // Declares all items for game from the content pack
     public static void declareItems(player player){
+        contentPack content = getPlayerContent(player);
         
-        // Create inventory with starter item
-        setPlayerInventory(player, new items[]{initialiseItem(new items(),30, "Hatchet")});
-
-        // Items found within the cavern listed below
-        setPlayerAllItems(player, new items[]{
-            initialiseItem(new items(), 22, "Knife"),
-            initialiseItem(new items(), 50, "Club"),
-            initialiseItem(new items(), 36, "Spear"),
-            initialiseItem(new items(), 60, "Sword"),
-            initialiseItem(new items(), 1000, "Dynamite")
-        });
+        // Create inventory with starter items (the items themselves are shared with every game)
+        setPlayerInventory(player, ContentPacks.getContentStarterItems(content).clone());
+
+        // Items found within the cavern are in the pack, track which have been placed in a room
+        setPlayerItemsInRooms(player, new boolean[getPlayerAllItems(player).length]);
         
         return;
     } // END declareItems
 
-
-    // Method that takes item and details, sets them, and returns the item
-    public static items initialiseItem(items item, int damage, String name){
-
-        setItemDamage(item, damage);
-        setItemName(item, name);
-        setItemExistsInRoom(item, false); // False by default
-
-        return item;
-    } // END initialiseItem
-
     //#endregion
 
     //#endregion
@@ -894,9 +1176,9 @@ public class Ny_Gothor {
     // Method to update the player health, returns a boolean to indicate death
     public static boolean updatePlayerHealth(player player, int healthChange){
 
-        setPlayerHealth(player, getPlayerHealth(player) - healthChange);
+        setPlayerHealth(player, GameRules.afterBlow(getPlayerHealth(player), healthChange));
 
-        if(getPlayerHealth(player) <= 0){
+        if(GameRules.isDead(getPlayerHealth(player))){
             return true; // Player has died
         }
 
@@ -913,12 +1195,19 @@ public class Ny_Gothor {
     } // END updatePlayerSanity
 
 
-    // Method to update monster health
-    public static boolean updateMonsterHealth(monster monster, int healthChange){
+    // Method to update the health of the monster in a room
+    public static boolean updateMonsterHealth(player player, int roomIndex, int healthChange){
 
-        setMonsterHealth(monster, getMonsterHealth(monster) - healthChange);
+        // Other players in a shared cavern may be hitting it too, so the hit is taken off in one step
+        if(SharedWorld.isShared(player)){
+            int health = SharedWorld.damageMonster(player.world, roomIndex, healthChange);
+            GameEvents.publish(GameEvents.MONSTER_HEALTH, roomIndex, health);
+            return GameRules.isDead(health);
+        }
 
-        if(getMonsterHealth(monster) <= 0){
+        setRoomMonsterHealth(player, roomIndex, GameRules.afterBlow(getRoomMonsterHealth(player, roomIndex), healthChange));
+
+        if(GameRules.isDead(getRoomMonsterHealth(player, roomIndex))){
             return true; // Monster has died
         }
 
@@ -945,15 +1234,14 @@ public class Ny_Gothor {
             typeMessage(" - " + getItemName(item) + " -- Damage: " + getItemDamage(item), 50);
         }
 
-        System.out.println("----------------------------------------------------------------------");
+        printLine("----------------------------------------------------------------------");
 
         return;
     } // END outputItems
 
 
     // Method to output the choices availble in the current room
-    public static String outputRoomChoices(player player){
-        String chosenRoom;
+    public static void outputRoomChoices(player player){
 
         // Get the current room
         room currentRoom = getPlayerRoomList(player)[getPlayerCurrentRoomIndex(player)];
@@ -974,19 +1262,20 @@ public class Ny_Gothor {
 
         typeMessage("-1: Return to last room", 10);
 
-        // Gets room input
-        chosenRoom = getChoiceAsString("");
-
-        return chosenRoom;
+        return;
     } // END outputRoomChoices
 
 
     // Method to output the choices availble in the current room
     public static void outputRoomItem(player player){
 
-        // Get the current room
+        // Get the current room (in a shared cavern the item can go at any time, so it is only looked up once)
         room currentRoom = getPlayerRoomList(player)[getPlayerCurrentRoomIndex(player)];
-        typeMessage("Within this room you notice a " + getItemName(getRoomItem(currentRoom)), 50);
+        items item = getRoomItem(currentRoom);
+        if(item == null){
+            return;
+        }
+        typeMessage("Within this room you notice a " + getItemName(item), 50);
 
         return;
     } // END outputRoomItem
@@ -997,16 +1286,24 @@ public class Ny_Gothor {
         
         boolean itemTaken = false;
         room currentRoom = getPlayerRoomList(player)[getPlayerCurrentRoomIndex(player)];
+        items item = getRoomItem(currentRoom);
+        if(item == null){
+            return false;
+        }
 
-        String choice = getChoiceAsString("Do you pickup the " + getItemName(getRoomItem(currentRoom)) + "? (y/n)");
+        String choice = getChoiceAsString("Do you pickup the " + getItemName(item) + "? (y/n)");
 
-        if(choice.equals("y")){
+        // Another player in a shared cavern may have picked it up while this one decided
+        if(choice.equals("y") && !takeRoomItem(currentRoom)){
+            typeMessage("The " + getItemName(item) + " is gone, someone got to it first.", 10);
+        }else if(choice.equals("y")){
             itemTaken = true;
-            typeMessage(getItemName(getRoomItem(currentRoom)) + " picked up.", 10);
-            addItem(player, getRoomItem(currentRoom)); // Add item to inventory
-            setRoomItem(currentRoom, null);
+            typeMessage(getItemName(item) + " picked up.", 10);
+            addItem(player, item); // Add item to inventory
         }
 
+        GameEvents.publish(GameEvents.ITEM_OFFERED, getRoomIndex(currentRoom), itemTaken ? 1 : 0);
+
         return itemTaken;
     } // END roomitemTaken
 
@@ -1019,47 +1316,67 @@ public class Ny_Gothor {
     //#region Get/Set methods
 
         // Each "block" of methods handles a record fields get and set methods (per line)
+        // Setters of state that changes during play also publish a game event for the session
 
         // Player methods
         public static int getPlayerHealth(player p) {return p.health;}
-        public static void setPlayerHealth(player p, int health) {p.health = health;}
+        public static void setPlayerHealth(player p, int health) {p.health = health; GameEvents.publish(GameEvents.PLAYER_HEALTH, p.currentRoomIndex, health);}
     
         public static int getPlayerSanity(player p) {return p.sanity;}
-        public static void setPlayerSanity(player p, int sanity) {p.sanity = sanity;}
+        public static void setPlayerSanity(player p, int sanity) {p.sanity = sanity; GameEvents.publish(GameEvents.PLAYER_SANITY, p.currentRoomIndex, sanity);}
     
         public static boolean isPlayerDead(player p) {return p.isDead;}
-        public static void setPlayerDead(player p, boolean isDead) {p.isDead = isDead;}
+        public static void setPlayerDead(player p, boolean isDead) {p.isDead = isDead; if(isDead){GameEvents.publish(GameEvents.PLAYER_DIED, p.currentRoomIndex, 0);}}
     
         public static boolean isIncantationSpoken(player p) {return p.incantationSpoken;}
-        public static void setIncantationSpoken(player p, boolean incantationSpoken) {p.incantationSpoken = incantationSpoken;}
+        public static void setIncantationSpoken(player p, boolean incantationSpoken) {p.incantationSpoken = incantationSpoken; if(incantationSpoken){GameEvents.publish(GameEvents.INCANTATION_SPOKEN, p.currentRoomIndex, 0);}}
     
         public static int getPlayerCurrentRoomIndex(player p) {return p.currentRoomIndex;}
-        public static void setPlayerCurrentRoomIndex(player p, int currentRoomIndex) {p.currentRoomIndex = currentRoomIndex;}
+        public static void setPlayerCurrentRoomIndex(player p, int currentRoomIndex) {if(currentRoomIndex != p.currentRoomIndex){p.turns++;} p.currentRoomIndex = currentRoomIndex; MovementHistory.recordVisit(GameForks.writableHistory(p), currentRoomIndex); GameEvents.publish(GameEvents.ROOM_ENTERED, currentRoomIndex, p.turns);}
+    
+        public static int getPlayerTurns(player p) {return p.turns;}
+        public static void setPlayerTurns(player p, int turns) {p.turns = turns;}
+    
+        public static int getPlayerAltarTurn(player p) {return p.altarTurn;}
+        public static void setPlayerAltarTurn(player p, int altarTurn) {p.altarTurn = altarTurn; GameEvents.publish(GameEvents.ALTAR_REACHED, p.currentRoomIndex, altarTurn);}
     
         public static items[] getPlayerInventory(player p) {return p.inventory;}
         public static void setPlayerInventory(player p, items[] inventory) {p.inventory = inventory;}
     
-        public static items[] getPlayerAllItems(player p) {return p.allItems;}
-        public static void setPlayerAllItems(player p, items[] allItems) {p.allItems = allItems;}
+        public static contentPack getPlayerContent(player p) {return p.content;}
+        public static void setPlayerContent(player p, contentPack content) {p.content = content;}
+    
+        public static items[] getPlayerAllItems(player p) {return ContentPacks.getContentItems(p.content);}
+    
+        public static boolean itemExistsInRoom(player p, int itemIndex) {return p.itemsInRooms[itemIndex];}
+        public static void setItemExistsInRoom(player p, int itemIndex, boolean existsInRoom) {p.itemsInRooms[itemIndex] = existsInRoom;}
+        public static void setPlayerItemsInRooms(player p, boolean[] itemsInRooms) {p.itemsInRooms = itemsInRooms;}
     
         public static room[] getPlayerRoomList(player p) {return p.roomList;}
         public static void setPlayerRoomList(player p, room[] roomList) {p.roomList = roomList;}
     
-        public static Stack<Integer> getPlayerPrevRooms(player p) {return p.prevRooms;}
+        public static roomHistory getPlayerPrevRooms(player p) {return p.prevRooms;}
+        public static int[] getPlayerTrail(player p) {return MovementHistory.getTrail(p.prevRooms);}
+    
+        public static worldHints getPlayerHints(player p) {return p.hints;}
+        public static void setPlayerHints(player p, worldHints hints) {p.hints = hints;}
     
         public static monster[] getPlayerMonsterList(player p) {return p.monsterList;}
         public static void setPlayerMonsterList(player p, monster[] monsterList) {p.monsterList = monsterList;}
     
+        public static byte[] getPlayerRoomMonsterKinds(player p) {return p.roomMonsterKinds;}
+        public static void setPlayerRoomMonsterKinds(player p, byte[] roomMonsterKinds) {p.roomMonsterKinds = roomMonsterKinds;}
+    
+        public static int[] getPlayerRoomMonsterHealth(player p) {return p.roomMonsterHealth;}
+        public static void setPlayerRoomMonsterHealth(player p, int[] roomMonsterHealth) {p.roomMonsterHealth = roomMonsterHealth;}
+    
+        public static boolean[] getPlayerRoomMonsterDead(player p) {return p.roomMonsterDead;}
+        public static void setPlayerRoomMonsterDead(player p, boolean[] roomMonsterDead) {p.roomMonsterDead = roomMonsterDead;}
+    
 
-        // Items methods
+        // Items methods (read only, items are shared from the content pack)
         public static int getItemDamage(items i) {return i.itemDamage;}
-        public static void setItemDamage(items i, int itemDamage) {i.itemDamage = itemDamage;}
-    
         public static String getItemName(items i) {return i.itemName;}
-        public static void setItemName(items i, String itemName) {i.itemName = itemName;}
-    
-        public static boolean itemExistsInRoom(items i) {return i.existsInRoom;}
-        public static void setItemExistsInRoom(items i, boolean existsInRoom) {i.existsInRoom = existsInRoom;}
     
 
         // Room methods
@@ -1075,39 +1392,56 @@ public class Ny_Gothor {
         public static String getRoomDescription(room r) {return r.roomDescription;}
         public static void setRoomDescription(room r, String roomDescription) {r.roomDescription = roomDescription;}
     
-        public static void setItemTaken(room r, boolean itemTaken) {r.itemTaken = itemTaken;}
-    
-        public static boolean roomHasMonster(room r) {return r.hasMonster;}
-        public static void setRoomHasMonster(room r, boolean hasMonster) {r.hasMonster = hasMonster;}
+        public static void setItemTaken(room r, boolean itemTaken) {if(r.world == null){r.itemTaken = itemTaken;} if(itemTaken){GameEvents.publish(GameEvents.ITEM_TAKEN, r.roomIndex, 0);}}
     
-        public static items getRoomItem(room r) {return r.item;}
+        public static items getRoomItem(room r) {return r.world != null ? SharedWorld.getItem(r.world, r) : r.item;}
         public static void setRoomItem(room r, items item) {r.item = item;}
-    
-        public static monster getRoomMonster(room r) {return r.monster;}
-        public static void setRoomMonster(room r, monster monster) {r.monster = monster;}
+        public static boolean takeRoomItem(room r) {if(r.world != null){return SharedWorld.takeItem(r.world, r.roomIndex);} r.item = null; return true;}
     
 
-        // Monster methods
-        public static int getMonsterHealth(monster m) {return m.health;}
-        public static void setMonsterHealth(monster m, int health) {m.health = health;}
-    
+        // Monster methods (shared stats of each kind, read only)
         public static String getMonsterName(monster m) {return m.name;}
-        public static void setMonsterName(monster m, String name) {m.name = name;}
-    
+        public static int getMonsterStartHealth(monster m) {return m.health;}
         public static int getMonsterSanityImpact(monster m) {return m.sanityImpact;}
-        public static void setMonsterSanityImpact(monster m, int sanityImpact) {m.sanityImpact = sanityImpact;}
-    
         public static int getMonsterDamage(monster m) {return m.damage;}
-        public static void setMonsterDamage(monster m, int damage) {m.damage = damage;}
-    
         public static int getMonsterAttackChance(monster m) {return m.attackChance;}
-        public static void setMonsterAttackChance(monster m, int attackChance) {m.attackChance = attackChance;}
-    
         public static int getMonsterDodgeChance(monster m) {return m.dodgeChance;}
-        public static void setMonsterDodgeChance(monster m, int dodgeChance) {m.dodgeChance = dodgeChance;}
-    
-        public static boolean isMonsterDead(monster m) {return m.isDead;}
-        public static void setMonsterDead(monster m, boolean isDead) {m.isDead = isDead;}
+
+
+        // Room monster methods (state of the monster in each room, indexed by room, held by the cavern when it is shared)
+        public static boolean roomHasMonster(player p, int roomIndex) {return p.world != null ? SharedWorld.hasMonster(p.world, roomIndex) : GameRules.meetsMonster(p.roomMonsterKinds[roomIndex], p.roomMonsterHealth[roomIndex]) && !p.roomMonsterDead[roomIndex];}
+        public static monster getRoomMonster(player p, int roomIndex) {return p.monsterList[getRoomMonsterKind(p, roomIndex)];}
+
+        public static int getRoomMonsterKind(player p, int roomIndex) {return p.world != null ? SharedWorld.getMonsterKind(p.world, roomIndex) : p.roomMonsterKinds[roomIndex];}
+        public static void setRoomMonster(player p, int roomIndex, int kind) {
+            if(p.world != null){
+                SharedWorld.summonMonster(p.world, roomIndex, kind, p.monsterList[kind].health);
+                return;
+            }
+            GameForks.ownMonsters(p);
+            p.roomMonsterKinds[roomIndex] = (byte)kind;
+            p.roomMonsterHealth[roomIndex] = p.monsterList[kind].health; // Every monster starts at full health
+            p.roomMonsterDead[roomIndex] = false;
+        }
+
+        public static void moveRoomMonster(player p, int fromRoom, int toRoom) {
+            if(p.world != null){
+                SharedWorld.moveMonster(p.world, fromRoom, toRoom);
+                return;
+            }
+            GameForks.ownMonsters(p);
+            p.roomMonsterKinds[toRoom] = p.roomMonsterKinds[fromRoom];
+            p.roomMonsterHealth[toRoom] = p.roomMonsterHealth[fromRoom]; // Wounds go with it
+            p.roomMonsterDead[toRoom] = false;
+            p.roomMonsterKinds[fromRoom] = NO_MONSTER;
+            p.roomMonsterHealth[fromRoom] = 0;
+        }
+
+        public static int getRoomMonsterHealth(player p, int roomIndex) {return p.world != null ? SharedWorld.getMonsterHealth(p.world, roomIndex) : p.roomMonsterHealth[roomIndex];}
+        public static void setRoomMonsterHealth(player p, int roomIndex, int health) {if(p.world != null){SharedWorld.setMonsterHealth(p.world, roomIndex, health);}else{GameForks.ownMonsters(p); p.roomMonsterHealth[roomIndex] = health;} GameEvents.publish(GameEvents.MONSTER_HEALTH, roomIndex, health);}
+
+        public static boolean isRoomMonsterDead(player p, int roomIndex) {return p.world != null ? SharedWorld.isMonsterDead(p.world, roomIndex) : p.roomMonsterDead[roomIndex];}
+        public static void setRoomMonsterDead(player p, int roomIndex, boolean isDead) {if(p.world != null){SharedWorld.setMonsterDead(p.world, roomIndex, isDead);}else{GameForks.ownMonsters(p); p.roomMonsterDead[roomIndex] = isDead;} if(isDead){GameEvents.publish(GameEvents.MONSTER_SLAIN, roomIndex, getRoomMonsterKind(p, roomIndex));}}
 
     //#endregion
 
@@ -1117,26 +1451,45 @@ public class Ny_Gothor {
 
     //#region misc methods
 
-    // Outputs a message and gets an input as a string
+    // Outputs a message and gets an input as a string, one command (a line can hold several typed ahead)
     public static String getChoiceAsString(String message){
-        Scanner scanner = new Scanner(System.in);
         String input;
         final int TEXT_SPEED = 50;
 
         typeMessage(message, TEXT_SPEED);
 
-        input = scanner.nextLine();
+        // Read from this session's input (the terminal, or the socket of a hosted player)
+        input = GameSession.readCommand(GameSession.current());
 
         return input;
     } // END inputInt
 
 
+    // Outputs a message and gets a whole line of input, for text that can have spaces in it
+    public static String getLineAsString(String message){
+        final int TEXT_SPEED = 50;
+
+        typeMessage(message, TEXT_SPEED);
+
+        return GameSession.readLine(GameSession.current());
+    } // END getLineAsString
+
+
+    // Outputs an invalid input message, dropping the rest of any line typed ahead as it was meant for other prompts
+    public static void invalidInput(String message){
+        GameSession.dropQueuedCommands(GameSession.current());
+        printLine(message);
+
+        return;
+    } // END invalidInput
+
+
     // Outputs a message and gets an input as an int
     public static int getChoiceAsInt(String text){
-        Scanner scanner = new Scanner(System.in);
         
         String input = getChoiceAsString(text);
         while(!isInteger(input)){
+            GameSession.dropQueuedCommands(GameSession.current());
             input = getChoiceAsString("Invalid input. Enter an integer.");
         }
 
@@ -1173,19 +1526,28 @@ public class Ny_Gothor {
 
     // Method to type a message character by character
     public static void typeMessage(String input, int speed) {
-        
-        // Loop through the text
-        for(int i = 0; i < input.length(); i++){
+        GameOutput.typeMessage(GameOutput.current(), input, speed);
 
-            // Format to character
-            System.out.printf("%c", input.charAt(i));
-            busyWait(speed); // Wait
-        }
-        System.out.println(""); // Add a space
         return;
     } // END typeMessage
 
 
+    // Method to type pre-encoded text character by character
+    public static void typeMessage(byte[] input, int speed) {
+        GameOutput.typeMessage(GameOutput.current(), input, speed);
+
+        return;
+    } // END typeMessage
+
+
+    // Method to output a line straight away
+    public static void printLine(String text){
+        GameOutput.printLine(GameOutput.current(), text);
+
+        return;
+    } // END printLine
+
+
     // Method to pause/wait CPU for a set length of time
     public static void busyWait(long waitTime){
         
@@ -1208,41 +1570,15 @@ public class Ny_Gothor {
 
     //#region large story elements
 
+    // Story text lives in storyText (bottom of this file), which is only loaded the first time story is typed
+
+
     // Introduction text for the game
     public static void introduction(){
         final int TEXT_SPEED = 10;
         
-        String message1 = "You are part of a small, close-knit group of friends, seeking solace in the Appalachian wilds. "
-        + "Packed for a month-long expedition, you set out at the dawn of autumn, the perfect time to witness the leaves turning fiery hues.";
-        
-        String message2 = "You park your truck and begin walking north.";
-
-        String message3 = "After venturing for two weeks, the idea of wandering off the trail becomes a common sentiment among the group. "
-        + "This deviation, initially undertaken with idle curiosity, soon turns into an unintended foray into regions older than memory. "
-        + "Trees of unnatural thickness loom overhead, their coiling branches forming grotesque, whispering arches beneath which you walk. "
-        + "Everyone acknowledges the heavy feeling in the air, though no one speaks of it. You venture deeper into the wilderness, straying further from the path.";
-
-        String message4 = "Two days have passed since you left the trail. Formations of rocks - perhaps carved in forgotten epochs by hands long since turned to dust - lie "
-        + "scattered among the descending hills in a way that feels intentional.";
-
-        String message5 = "The aeolian sounds passing through the trees ceased yesterday, leaving only the sound of your group's idle chatter "
-        + "and the dry scrape of boots against stone.";
-
-        String message6 = "The sun, already low, sinks behind the jagged peaks with unnatural speed, casting shadows that twist and distort the dying light. "
-        + "It is in this half-light, when the pallid sky takes on a sickly hue, that you feel a calling to the stones. Curiosity urges you to investigate, and so you do. " 
-        + "The ground softens beneath your feet as you wander from the group, and then it gives way entirely, sending you tumbling into an abyss.";
-
-        String message7 = "You awake, vision blurry. Looking up you see how far you have fallen. "
-        + "Any chance of climbing back is already rendered impossible. Viewing your surroundings you notice two paths in this cavern.";
-        
         // Print out the messages
-        typeMessage(message1, TEXT_SPEED);
-        typeMessage(message2, TEXT_SPEED);
-        typeMessage(message3, TEXT_SPEED);
-        typeMessage(message4, TEXT_SPEED);
-        typeMessage(message5, TEXT_SPEED);
-        typeMessage(message6, TEXT_SPEED);
-        typeMessage(message7, TEXT_SPEED);
+        typeBlock(storyText.INTRODUCTION_TEXT, TEXT_SPEED);
 
         return;
     } // END introduction
@@ -1252,29 +1588,15 @@ public class Ny_Gothor {
     public static player altar(player player){
         final int TEXT_SPEED = 10;
 
-        String message1 = "In the depths of this accursed cavern the atmosphere grows dense, almost choking you, and a green light emanates from some cubic monolith.";
-        String message2 = "Stalactites hang around this centrepiece in an unnatural pattern, curving into it like they are being dragged into its mass.";
-        String message3 = "This cube, wrought of stone darker than void, bears ancient symbols, cryptic and blasphemous.";
-        String message4 = "A faint whisper parades across the room to your ears, spiralling your mind into unease.";
-        String message5 = "Upon the cube lays a scroll. Its text uncomprehensible yet literate.";
-
-        String message6 = "You speak the text and feel a wave of unknowing wash over your mind";
-        String message7 = "You think it wise to not speak these words and leave.";
-
-        String message8 = "You leave the room having already spoken the text";
-
-        typeMessage(message1, TEXT_SPEED);
-        typeMessage(message2, TEXT_SPEED);
-        typeMessage(message3, TEXT_SPEED);
-        typeMessage(message4, TEXT_SPEED);
+        typeBlock(storyText.ALTAR_TEXT, TEXT_SPEED);
 
         // If incantation is already spoken leave here
         if(isIncantationSpoken(player)){
-            typeMessage(message8, TEXT_SPEED);
+            typeMessage(storyText.ALTAR_ALREADY_SPOKEN, TEXT_SPEED);
             return player;
         }
 
-        typeMessage(message5, TEXT_SPEED);
+        typeMessage(storyText.ALTAR_SCROLL, TEXT_SPEED);
 
         // Get choice for incantation
         String choice = getChoiceAsString("Do you speak the text? (y/n)");
@@ -1282,13 +1604,13 @@ public class Ny_Gothor {
             
             if(choice.equals("y")){
                 setIncantationSpoken(player, true);
-                typeMessage(message6, TEXT_SPEED);
+                typeMessage(storyText.ALTAR_SPOKEN, TEXT_SPEED);
                 return player;
             }else if(choice.equals("n")){
-                typeMessage(message7, TEXT_SPEED);
+                typeMessage(storyText.ALTAR_REFUSED, TEXT_SPEED);
                 return player;
             }else{
-                System.out.println("Invalid input. Enter y/n.");
+                invalidInput("Invalid input. Enter y/n.");
                 choice = getChoiceAsString("Do you speak the text? (y/n)");
             }
         }
@@ -1301,60 +1623,14 @@ public class Ny_Gothor {
     public static void nyGothor(player player){
         final int TEXT_SPEED = 10;
 
-        String message1 = "As you wander deeper into the cavern you find your spirit, your very soul, weighed down by the air - as if a dark blanket lay upon you. ";
-        String message2 = "The passage seems to twist unnaturally in a pattern mimicking that of a spiral, as though reality itself grows pliable. ";
-        String message3 = "The stones around you grow darker till they become uniform, only identifiable by the starry reflection cast upon them by your ever weakening light.";
-
-        String message4 = "The passage begins to widen as a cacophonous sound shakes your mind.";
-        String message5 = "Before you lies an abomination that words of this language cannot describe - a being whose very existence defies the fragile laws of the world you thought you knew. ";
-        String message6 = " Its form writhes and shifts ceaselessly, an entropic mass of tendrils and limbs oscillating with no logical pattern. ";
-        String message7 = "Your eyes, though terrified to bear witness, catch glimpses of numerous orbs glowing with an unnatural, malignant light. ";
-        String message8 = "These eyes - if eyes they can be called - stare through you, as if they perceive more than your flesh, as if they perceive the very essence of your existence.";
-        
-        String message9 = "The air here hums as if it were in pain, bending to the will of the creature. ";
-        String message10 = "The walls of this chamber could not be discerned from that of the night sky - calling them cosmic would hardly describe it - yet through your paralysed gaze you notice carving of ancient symbols, older than humanity itself, pulsing.";
-
-
-        // With incantation
-        String message11 = "You feel these marking twist your perception but you maintain your grasp on reality. Beyond the creature, at the farthest edge of the cavern, the abyss yawns wide.";
-        String message12 = "It can not be defined as a chasm, rather a gaping void revealing the infinite darkness beyond. Your eyes get caught in this void, unable to deter the thought that something far greater lies within.";
-        String message13 = "You feel a pull of madness there, a beckoning from the cosmos that promises knowledge - knowledge that will unravel your very soul.";
-        String message14 = "You realise with sickening clarity that you are no longer a part of the world you once knew. You are but a fleeting speck before the vast forces that lurk beyond the stars…";
-        String message15 = "Yet this does not deter you.";
-
-        // Without incantation
-        String message16 = "These markings twist your perception, filling your mind with fleeting glimpses of incomprehensible worlds beyond the veil of sanity. Voices whisper in your mind. You cannot understand what it is they speak of, yet their intent is clear.";
-        String message17 = "Your body begins to move further into the chamber despite your attempts not to. The floor beneath you feels strangely soft, as if the stone itself is decaying. The voices grow louder.";
-        String message18 = "You move to the centre of the room and notice you stand amongst a series of concentric rings. The creature looms over you as your vision begins to merge with the unknown.";
-        String message19 = "You drop to your knees as the voices scream at you. Reaching into your back pocket you grasp onto your pocketknife and open it.";
-        String message20 = "You penetrate your skin at the neck.";
-
-        typeMessage(message1, TEXT_SPEED);
-        typeMessage(message2, TEXT_SPEED);
-        typeMessage(message3, TEXT_SPEED);
-        typeMessage(message4, TEXT_SPEED);
-        typeMessage(message5, TEXT_SPEED);
-        typeMessage(message6, TEXT_SPEED);
-        typeMessage(message7, TEXT_SPEED);
-        typeMessage(message8, TEXT_SPEED);
-        typeMessage(message9, TEXT_SPEED);
-        typeMessage(message10, TEXT_SPEED);
-
+        typeBlock(storyText.NY_GOTHOR_TEXT, TEXT_SPEED);
 
         if(isIncantationSpoken(player)){
             // With incantation
-            typeMessage(message11, TEXT_SPEED);
-            typeMessage(message12, TEXT_SPEED);
-            typeMessage(message13, TEXT_SPEED);
-            typeMessage(message14, TEXT_SPEED);
-            typeMessage(message15, TEXT_SPEED);
+            typeBlock(storyText.NY_GOTHOR_INCANTATION_TEXT, TEXT_SPEED);
         }else{
             // No incantation
-            typeMessage(message16, TEXT_SPEED);
-            typeMessage(message17, TEXT_SPEED);
-            typeMessage(message18, TEXT_SPEED);
-            typeMessage(message19, TEXT_SPEED);
-            typeMessage(message20, TEXT_SPEED);
+            typeBlock(storyText.NY_GOTHOR_NO_INCANTATION_TEXT, TEXT_SPEED);
         }
 
         return;
@@ -1364,90 +1640,114 @@ public class Ny_Gothor {
     // Method for player winning or "winning" the game
     public static void ending(player player){
         final int TEXT_SPEED = 10;
+        GameEvents.publish(GameEvents.GAME_WON, getPlayerCurrentRoomIndex(player), getPlayerTurns(player));
 
-        String message1 = "The beast lies slain, a twisted ruin of blood and viscera strewn across the cavern floor, its unnatural form now a grotesque memory.";
-        String message2 = "A chill wind sighs from the abyssal rift, carrying with it a disquieting resonance.";
-        String message3 = "The corpse succumbs to the breeze, unravelling with unnatural haste into nothingness, its departure leaving behind an acrid tang that clings to the air.";
-
-        // Good ending text
-        String message4 = "In its absence, the shroud of darkness lifts, revealing a passage concealed in the stone - a crack holding a faint luminescence.";
-        String message5 = "Driven by desperation to leave this place, you drag your battered body toward the opening. At its base, a flight of narrow steps spirals upward, their uneven contours carved with irregularity.";
-        String message6 = "With no other recourse you brace yourself and begin the climb. Time bleeds into insignificance, and the journey becomes a blur of strained breath and trembling limbs.";
-        String message7 = "It is as though the staircase itself conspires against you, extending its winding path far beyond comprehension.";
-        String message8 = "At last, the oppressive dark yields to a blinding radiance. Sunlight strikes your face with an almost alien warmth, a piercing contrast to the cold of the depths below.";
-        String message9 = "The wind, no longer heavy with subterranean whispers, now howls clean and sharp. Blinking against the brilliance, you emerge from a jagged fissure in a mountainside, hidden amidst a tangle of ancient stones.";
-        String message10 = "Before you sprawls a valley cloaked in golden light, its contours familiar yet tinged with an uncanny, dreamlike haze. The sun hangs low.";
-        String message11 = "Upon closer inspection you realise where you are. You know the way home.";
-
-        // Bad ending text
-        String message12 = "But the wind does not stop. It whispers, subtle yet unstoppable, threading into your mind with a vile intimacy. The murmurs slither like tendrils, pressing against the fragile walls of your sanity.";
-        String message13 = "They speak no nameable language, yet their meaning saturates your being: surrender, descend, obey.";
-        String message14 = "Your limbs betray you, moving as though guided by an unseen puppeteer. The whispers do not shout, for they have no need. You are but a vessel now, your will frail and broken.";
-        String message15 = "The abyss yawns wide before you.";
-        String message16 = "And then you fall.";
-        String message17 = "Not with the terror of one cast into darkness, but with the terrible certainty of one fulfilling a long-ordained purpose. The air grows thick, cloying with the scent of decay.";
-        String message18 = "The whispers swell to a symphony of triumph, their meaning now crystal-clear: there is no escape.";
-        String message19 = "There never was.";
-
-
-        typeMessage(message1, TEXT_SPEED);
-        typeMessage(message2, TEXT_SPEED);
-        typeMessage(message3, TEXT_SPEED);
+        typeBlock(storyText.ENDING_TEXT, TEXT_SPEED);
 
         if(getPlayerSanity(player) > 90){
             // Bad ending
-            typeMessage(message12, TEXT_SPEED);
-            typeMessage(message13, TEXT_SPEED);
-            typeMessage(message14, TEXT_SPEED);
-            typeMessage(message15, TEXT_SPEED);
-            typeMessage(message16, TEXT_SPEED);
-            typeMessage(message17, TEXT_SPEED);
-            typeMessage(message18, TEXT_SPEED);
-            typeMessage(message19, TEXT_SPEED);
+            typeBlock(storyText.BAD_ENDING_TEXT, TEXT_SPEED);
         }else{
             // Good ending
-            typeMessage(message4, TEXT_SPEED);
-            typeMessage(message5, TEXT_SPEED);
-            typeMessage(message6, TEXT_SPEED);
-            typeMessage(message7, TEXT_SPEED);
-            typeMessage(message8, TEXT_SPEED);
-            typeMessage(message9, TEXT_SPEED);
-            typeMessage(message10, TEXT_SPEED);       
-            typeMessage(message11, TEXT_SPEED);
+            typeBlock(storyText.GOOD_ENDING_TEXT, TEXT_SPEED);
         }
 
         return;
     } // END ending
 
 
+    // Types each message in a block of story text
+    public static void typeBlock(byte[][] messages, int speed){
+
+        for(int i = 0; i < messages.length; i++){
+            typeMessage(messages[i], speed);
+        }
+
+        return;
+    } // END typeBlock
+
+
     //#endregion
 
 }
 
 
-class player implements Serializable{
+class player implements Serializable, Cloneable{
     int health;
     int sanity; // 0 is sane, 100 is bonkers!!!
     boolean isDead;
     boolean incantationSpoken;
 
     int currentRoomIndex;
+    int turns; // Moves into another room so far, prompts that leave the player where they are do not count
+    int altarTurn; // Turn the altar was first reached on, 0 if not yet
 
 
-    // Arrays for inventory, all items, rooms, and monsters
+    // Shared items, monsters and descriptions. Saved as the pack's id, and found again by it on load
+    transient contentPack content;
+
+    // Arrays for inventory, rooms, and monsters
     items[] inventory;
-    items[] allItems;
+    boolean[] itemsInRooms; // Which of the pack's items have been placed, ensures there is only one of each
     room[] roomList;
-    monster[] monsterList;
+    monster[] monsterList; // One shared record per kind of monster
+
+    // Monster in each room, indexed by room index. A few bytes per room instead of an object
+    byte[] roomMonsterKinds; // Index into monsterList, -1 for no monster
+    int[] roomMonsterHealth;
+    boolean[] roomMonsterDead;
+
+    transient worldHints hints; // Distances to the altar and end, worked out again after loading
+    roomHistory prevRooms = MovementHistory.createHistory(); // Rooms to backtrack through, and the trail of every room entered
+
+    transient sharedWorld world; // Cavern explored with other players, null for a game of its own (see SharedWorld)
+    transient roamingState roaming; // Rooms whose monsters wander, see MonsterRoaming
+
+    // Forking, see GameForks
+    transient int sharedParts; // Parts still shared with a fork, copied before they change
+    transient long forkStamp; // Rooms with the same stamp are this player's alone
+
+
+    // Records which content pack the game was made from
+    private void writeObject(ObjectOutputStream out) throws IOException{
+        out.defaultWriteObject();
+        out.writeObject(ContentPacks.getContentId(content));
+    }
+
+    // Attaches the pack the game was made from when a player is read back from a save, or the current pack if it
+    // is no longer loaded, and swaps the items read back for the pack's own
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException{
+        in.defaultReadObject();
+        content = ContentPacks.find((String)in.readObject());
+
+        for(int i = 0; i < inventory.length; i++){
+            inventory[i] = ContentPacks.sameItem(content, inventory[i]);
+        }
+        if(roomList != null){
+            for(room room : roomList){
+                room.item = ContentPacks.sameItem(content, room.item);
+            }
+        }
+    }
 
-    Stack<Integer> prevRooms = new Stack<>();
+    // Copies the fields but nothing they point to, for a fork
+    player shallowCopy(){
+        try{
+            return (player)super.clone();
+        }catch(CloneNotSupportedException e){
+            throw new AssertionError(e);
+        }
+    }
 }
 
 class items implements Serializable{
-    int itemDamage;
-    String itemName;
+    final int itemDamage;
+    final String itemName;
 
-    boolean existsInRoom; // Boolean to ensure there is only one of each item
+    items(String itemName, int itemDamage){
+        this.itemName = itemName;
+        this.itemDamage = itemDamage;
+    }
 }
 
 class room implements Serializable{
@@ -1458,22 +1758,133 @@ class room implements Serializable{
     String roomDescription;
 
     boolean itemTaken;
-    boolean hasMonster;
 
-    // Item and monster in room
+    // Item in room (the monster is kept by the player, see roomMonsterKinds)
     items item;
-    monster monster;
+
+    transient long forkStamp; // Player that may change the room in place, see GameForks
+    transient sharedWorld world; // Cavern the room belongs to when it is shared, see SharedWorld
 }
 
 class monster implements Serializable{
-    int health;
-    
-    String name;
+    final String name;
+
+    final int health; // Starting health, current health is kept per room
+    final int sanityImpact; // How much sanity the monster drains from player
+    final int damage;
+    final int attackChance;
+    final int dodgeChance; // Chance to dodge player attack
+
+    monster(String name, int health, int damage, int sanityImpact, int attackChance, int dodgeChance){
+        this.name = name;
+        this.health = health;
+        this.damage = damage;
+        this.sanityImpact = sanityImpact;
+        this.attackChance = attackChance;
+        this.dodgeChance = dodgeChance;
+    }
+}
 
-    int sanityImpact; // How much sanity the monster drains from player
-    int damage;
-    int attackChance;
-    int dodgeChance; // Chance to dodge player attack
 
-    boolean isDead;
+// Story text, encoded to UTF-8 once so it is never rebuilt or re-encoded when typed out. Kept apart from
+// Ny_Gothor so it is only loaded and encoded the first time story is typed, not before the first prompt
+class storyText{
+
+    // Introduction text for the game
+    static final byte[][] INTRODUCTION_TEXT = GameOutput.encodeAll(
+        "You are part of a small, close-knit group of friends, seeking solace in the Appalachian wilds. "
+        + "Packed for a month-long expedition, you set out at the dawn of autumn, the perfect time to witness the leaves turning fiery hues.",
+        "You park your truck and begin walking north.",
+        "After venturing for two weeks, the idea of wandering off the trail becomes a common sentiment among the group. "
+        + "This deviation, initially undertaken with idle curiosity, soon turns into an unintended foray into regions older than memory. "
+        + "Trees of unnatural thickness loom overhead, their coiling branches forming grotesque, whispering arches beneath which you walk. "
+        + "Everyone acknowledges the heavy feeling in the air, though no one speaks of it. You venture deeper into the wilderness, straying further from the path.",
+        "Two days have passed since you left the trail. Formations of rocks - perhaps carved in forgotten epochs by hands long since turned to dust - lie "
+        + "scattered among the descending hills in a way that feels intentional.",
+        "The aeolian sounds passing through the trees ceased yesterday, leaving only the sound of your group's idle chatter "
+        + "and the dry scrape of boots against stone.",
+        "The sun, already low, sinks behind the jagged peaks with unnatural speed, casting shadows that twist and distort the dying light. "
+        + "It is in this half-light, when the pallid sky takes on a sickly hue, that you feel a calling to the stones. Curiosity urges you to investigate, and so you do. " 
+        + "The ground softens beneath your feet as you wander from the group, and then it gives way entirely, sending you tumbling into an abyss.",
+        "You awake, vision blurry. Looking up you see how far you have fallen. "
+        + "Any chance of climbing back is already rendered impossible. Viewing your surroundings you notice two paths in this cavern."
+    );
+
+
+    // Altar room text
+    static final byte[][] ALTAR_TEXT = GameOutput.encodeAll(
+        "In the depths of this accursed cavern the atmosphere grows dense, almost choking you, and a green light emanates from some cubic monolith.",
+        "Stalactites hang around this centrepiece in an unnatural pattern, curving into it like they are being dragged into its mass.",
+        "This cube, wrought of stone darker than void, bears ancient symbols, cryptic and blasphemous.",
+        "A faint whisper parades across the room to your ears, spiralling your mind into unease."
+    );
+    // Shown when the incantation has not been spoken
+    static final byte[] ALTAR_SCROLL = GameOutput.encode("Upon the cube lays a scroll. Its text uncomprehensible yet literate.");
+    // Incantation spoken
+    static final byte[] ALTAR_SPOKEN = GameOutput.encode("You speak the text and feel a wave of unknowing wash over your mind");
+    // Incantation refused
+    static final byte[] ALTAR_REFUSED = GameOutput.encode("You think it wise to not speak these words and leave.");
+    // Returning to the altar having spoken the text
+    static final byte[] ALTAR_ALREADY_SPOKEN = GameOutput.encode("You leave the room having already spoken the text");
+
+
+    // Final room text
+    static final byte[][] NY_GOTHOR_TEXT = GameOutput.encodeAll(
+        "As you wander deeper into the cavern you find your spirit, your very soul, weighed down by the air - as if a dark blanket lay upon you. ",
+        "The passage seems to twist unnaturally in a pattern mimicking that of a spiral, as though reality itself grows pliable. ",
+        "The stones around you grow darker till they become uniform, only identifiable by the starry reflection cast upon them by your ever weakening light.",
+        "The passage begins to widen as a cacophonous sound shakes your mind.",
+        "Before you lies an abomination that words of this language cannot describe - a being whose very existence defies the fragile laws of the world you thought you knew. ",
+        " Its form writhes and shifts ceaselessly, an entropic mass of tendrils and limbs oscillating with no logical pattern. ",
+        "Your eyes, though terrified to bear witness, catch glimpses of numerous orbs glowing with an unnatural, malignant light. ",
+        "These eyes - if eyes they can be called - stare through you, as if they perceive more than your flesh, as if they perceive the very essence of your existence.",
+        "The air here hums as if it were in pain, bending to the will of the creature. ",
+        "The walls of this chamber could not be discerned from that of the night sky - calling them cosmic would hardly describe it - yet through your paralysed gaze you notice carving of ancient symbols, older than humanity itself, pulsing."
+    );
+    // With incantation
+    static final byte[][] NY_GOTHOR_INCANTATION_TEXT = GameOutput.encodeAll(
+        "You feel these marking twist your perception but you maintain your grasp on reality. Beyond the creature, at the farthest edge of the cavern, the abyss yawns wide.",
+        "It can not be defined as a chasm, rather a gaping void revealing the infinite darkness beyond. Your eyes get caught in this void, unable to deter the thought that something far greater lies within.",
+        "You feel a pull of madness there, a beckoning from the cosmos that promises knowledge - knowledge that will unravel your very soul.",
+        "You realise with sickening clarity that you are no longer a part of the world you once knew. You are but a fleeting speck before the vast forces that lurk beyond the stars…",
+        "Yet this does not deter you."
+    );
+    // Without incantation
+    static final byte[][] NY_GOTHOR_NO_INCANTATION_TEXT = GameOutput.encodeAll(
+        "These markings twist your perception, filling your mind with fleeting glimpses of incomprehensible worlds beyond the veil of sanity. Voices whisper in your mind. You cannot understand what it is they speak of, yet their intent is clear.",
+        "Your body begins to move further into the chamber despite your attempts not to. The floor beneath you feels strangely soft, as if the stone itself is decaying. The voices grow louder.",
+        "You move to the centre of the room and notice you stand amongst a series of concentric rings. The creature looms over you as your vision begins to merge with the unknown.",
+        "You drop to your knees as the voices scream at you. Reaching into your back pocket you grasp onto your pocketknife and open it.",
+        "You penetrate your skin at the neck."
+    );
+
+
+    // Ending text, shown before either ending
+    static final byte[][] ENDING_TEXT = GameOutput.encodeAll(
+        "The beast lies slain, a twisted ruin of blood and viscera strewn across the cavern floor, its unnatural form now a grotesque memory.",
+        "A chill wind sighs from the abyssal rift, carrying with it a disquieting resonance.",
+        "The corpse succumbs to the breeze, unravelling with unnatural haste into nothingness, its departure leaving behind an acrid tang that clings to the air."
+    );
+    // Good ending text
+    static final byte[][] GOOD_ENDING_TEXT = GameOutput.encodeAll(
+        "In its absence, the shroud of darkness lifts, revealing a passage concealed in the stone - a crack holding a faint luminescence.",
+        "Driven by desperation to leave this place, you drag your battered body toward the opening. At its base, a flight of narrow steps spirals upward, their uneven contours carved with irregularity.",
+        "With no other recourse you brace yourself and begin the climb. Time bleeds into insignificance, and the journey becomes a blur of strained breath and trembling limbs.",
+        "It is as though the staircase itself conspires against you, extending its winding path far beyond comprehension.",
+        "At last, the oppressive dark yields to a blinding radiance. Sunlight strikes your face with an almost alien warmth, a piercing contrast to the cold of the depths below.",
+        "The wind, no longer heavy with subterranean whispers, now howls clean and sharp. Blinking against the brilliance, you emerge from a jagged fissure in a mountainside, hidden amidst a tangle of ancient stones.",
+        "Before you sprawls a valley cloaked in golden light, its contours familiar yet tinged with an uncanny, dreamlike haze. The sun hangs low.",
+        "Upon closer inspection you realise where you are. You know the way home."
+    );
+    // Bad ending text
+    static final byte[][] BAD_ENDING_TEXT = GameOutput.encodeAll(
+        "But the wind does not stop. It whispers, subtle yet unstoppable, threading into your mind with a vile intimacy. The murmurs slither like tendrils, pressing against the fragile walls of your sanity.",
+        "They speak no nameable language, yet their meaning saturates your being: surrender, descend, obey.",
+        "Your limbs betray you, moving as though guided by an unseen puppeteer. The whispers do not shout, for they have no need. You are but a vessel now, your will frail and broken.",
+        "The abyss yawns wide before you.",
+        "And then you fall.",
+        "Not with the terror of one cast into darkness, but with the terrible certainty of one fulfilling a long-ordained purpose. The air grows thick, cloying with the scent of decay.",
+        "The whispers swell to a symphony of triumph, their meaning now crystal-clear: there is no escape.",
+        "There never was."
+    );
 }
@@ -0,0 +1,485 @@
+/* TITLE: ParameterSweep
+ DESCRIPTION:
+    Searches the generation parameters (see GenerationParams) for settings that give a target win rate and game
+    length. Every combination of the candidate values is played out in headless simulated games, with no text
+    and no input, by a bot that explores the cavern, takes the HINT command's advice and sometimes wanders off.
+    Settings are played in rounds on the fork-join pool, four times as many games each round. After each round,
+    settings whose results are clearly off target are dropped, and only the best quarter goes on. Most settings
+    are dropped after a few dozen games, so a sweep of ten thousand settings finishes in well under a minute.
+    Every setting plays the same world seeds, so settings are compared on the same caverns. The bot plays by the
+    game's own rules (GameRules), and a game's turns are its moves into another room, as the game counts them.
+    Usage: java Ny_Gothor --tune <target win %> <target turns> [seed]
+ */
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+public class ParameterSweep {
+
+    // Values tried for each generation parameter, by parameter (-Dnygothor.tune.<parameter name>=a,b,c)
+    static final int[][] DEFAULT_CANDIDATES = {
+        {6, 8, 10, 12, 16, 20}, // rooms
+        {10, 20, 30, 40}, // monsterChance
+        {30, 50, 70}, // itemChance
+        {50, 75, 100, 150}, // monsterHealth
+        {50, 75, 100, 150}, // monsterDamage
+        {50, 100, 200}, // sanity
+        {100}, // attack
+        {75, 100, 125}, // dodge
+        {100} // itemDamage
+    };
+
+    // Games each setting plays in the first round, and the most any setting plays (-Dnygothor.tune.games, -Dnygothor.tune.maxGames)
+    static final int FIRST_ROUND_GAMES = Integer.getInteger("nygothor.tune.games", 32);
+    static final int MAX_GAMES = Integer.getInteger("nygothor.tune.maxGames", 8192);
+    static final int ROUND_GROWTH = 4;
+
+    // How far off target a setting may be and still count as a hit (-Dnygothor.tune.winTolerance, percentage points,
+    // -Dnygothor.tune.turnTolerance, percent of the target turns)
+    static final double WIN_TOLERANCE = Integer.getInteger("nygothor.tune.winTolerance", 3) / 100.0;
+    static final double TURN_TOLERANCE = Integer.getInteger("nygothor.tune.turnTolerance", 15) / 100.0;
+
+    // Standard errors a setting's results must be off target by before it is dropped
+    static final double CONFIDENCE = 3;
+
+    // Settings kept each round, the best quarter but never fewer than this
+    static final int KEEP_FRACTION = 4;
+    static final int MIN_KEPT = 16;
+
+    static final int RESULTS_SHOWN = 10;
+
+    // Percentage chance the bot takes a random path instead of its choice (-Dnygothor.tune.wander)
+    static final int WANDER_CHANCE = Integer.getInteger("nygothor.tune.wander", 25);
+
+    // Turns per room the bot explores for before heading for the end (-Dnygothor.tune.patience)
+    static final int PATIENCE = Integer.getInteger("nygothor.tune.patience", 3);
+
+    // Games going on for more prompts than this are lost, as are fights neither side can win
+    static final int MAX_PROMPTS = 500;
+    static final int MAX_ROUNDS = 10_000;
+
+    // Bot's choice when no path leads to the end, a player would quit
+    static final int GIVE_UP = -1;
+
+    //#region Sweep
+
+    // Runs the sweep and prints the settings closest to the target
+    public static void tune(double targetWinRate, double targetTurns, long seed, ForkJoinPool pool) throws InterruptedException{
+
+        List<sweepSetting> settings = createSettings(readCandidates());
+        System.err.println("Sweeping " + settings.size() + " settings for a " + String.format("%.1f%%", targetWinRate * 100) + " win rate in " + targetTurns + " turns");
+
+        int played = 0;
+        int games = FIRST_ROUND_GAMES;
+        long sweepStart = System.nanoTime();
+
+        while(played < MAX_GAMES && !settings.isEmpty()){
+            long start = System.nanoTime();
+            games = Math.min(games, MAX_GAMES - played);
+            playRound(settings, seed + played, games, pool);
+            played += games;
+
+            int before = settings.size();
+            settings = prune(settings, targetWinRate, targetTurns);
+            System.err.println("Round of " + games + " games: " + before + " settings played, " + settings.size() + " kept (" + (System.nanoTime() - start) / 1_000_000 + "ms)");
+
+            games *= ROUND_GROWTH;
+        }
+
+        settings.sort(Comparator.comparingDouble(setting -> getScore(setting, targetWinRate, targetTurns)));
+        for(int i = 0; i < Math.min(RESULTS_SHOWN, settings.size()); i++){
+            System.out.println(describe(settings.get(i)));
+        }
+        if(settings.isEmpty()){
+            System.out.println("No setting came close, try wider candidates");
+        }
+        System.err.println("Sweep took " + (System.nanoTime() - sweepStart) / 1_000_000 + "ms");
+
+        return;
+    } // END tune
+
+
+    // Every combination of the candidate values
+    public static List<sweepSetting> createSettings(int[][] candidates){
+
+        List<sweepSetting> settings = new ArrayList<>();
+        int[] choice = new int[GenerationParams.PARAM_COUNT];
+        int[] values = new int[GenerationParams.PARAM_COUNT];
+
+        // Counts through the choices like an odometer, the last parameter turning fastest
+        while(true){
+            for(int param = 0; param < values.length; param++){
+                values[param] = candidates[param][choice[param]];
+            }
+            sweepSetting setting = new sweepSetting();
+            setting.params = GenerationParams.create(values);
+            settings.add(setting);
+
+            int param = values.length - 1;
+            while(param >= 0 && ++choice[param] == candidates[param].length){
+                choice[param] = 0;
+                param--;
+            }
+            if(param < 0){
+                return settings;
+            }
+        }
+    } // END createSettings
+
+
+    // Reads each parameter's candidates from its property, or the defaults
+    public static int[][] readCandidates(){
+
+        int[][] candidates = new int[GenerationParams.PARAM_COUNT][];
+
+        for(int param = 0; param < candidates.length; param++){
+            String property = System.getProperty("nygothor.tune." + GenerationParams.PARAM_NAMES[param]);
+            if(property == null){
+                candidates[param] = DEFAULT_CANDIDATES[param];
+                continue;
+            }
+
+            String[] fields = property.split(",");
+            candidates[param] = new int[fields.length];
+            for(int i = 0; i < fields.length; i++){
+                candidates[param][i] = ContentPacks.parseNumber(fields[i].trim(), "nygothor.tune." + GenerationParams.PARAM_NAMES[param]);
+            }
+        }
+
+        return candidates;
+    } // END readCandidates
+
+
+    // Plays the same games with every setting, a task per setting
+    public static void playRound(List<sweepSetting> settings, long firstSeed, int games, ForkJoinPool pool) throws InterruptedException{
+
+        List<Callable<Void>> tasks = new ArrayList<>(settings.size());
+        for(sweepSetting setting : settings){
+            tasks.add(() -> {
+                for(int game = 0; game < games; game++){
+                    long seed = firstSeed + game;
+                    simulateGame(Ny_Gothor.initialiseGame(setting.params, seed), new SplittableRandom(~seed), setting);
+                }
+                return null;
+            });
+        }
+
+        for(Future<Void> task : pool.invokeAll(tasks)){
+            try{
+                task.get();
+            }catch(ExecutionException e){
+                throw new IllegalStateException("Simulated game failed", e.getCause());
+            }
+        }
+
+        return;
+    } // END playRound
+
+
+    // Drops the settings sure to be off target, then keeps the best quarter of the rest
+    public static List<sweepSetting> prune(List<sweepSetting> settings, double targetWinRate, double targetTurns){
+
+        List<sweepSetting> kept = new ArrayList<>();
+        for(sweepSetting setting : settings){
+            double winMiss = Math.abs(getWinRate(setting) - targetWinRate) - CONFIDENCE * getWinRateError(setting);
+            double turnMiss = Math.abs(getAverageTurns(setting) - targetTurns) - CONFIDENCE * getTurnsError(setting);
+
+            if(winMiss <= WIN_TOLERANCE && turnMiss <= TURN_TOLERANCE * targetTurns){
+                kept.add(setting);
+            }
+        }
+
+        kept.sort(Comparator.comparingDouble(setting -> getScore(setting, targetWinRate, targetTurns)));
+        int keep = Math.max(MIN_KEPT, (settings.size() + KEEP_FRACTION - 1) / KEEP_FRACTION);
+
+        return new ArrayList<>(kept.subList(0, Math.min(keep, kept.size())));
+    } // END prune
+
+
+    // Distance from the target, in tolerances. Under 2 hits both targets
+    public static double getScore(sweepSetting setting, double targetWinRate, double targetTurns){
+        return Math.abs(getWinRate(setting) - targetWinRate) / WIN_TOLERANCE
+            + Math.abs(getAverageTurns(setting) - targetTurns) / (TURN_TOLERANCE * targetTurns);
+    } // END getScore
+
+
+    public static String describe(sweepSetting setting){
+
+        String params = GenerationParams.describe(setting.params);
+
+        return String.format("win %5.1f%% +-%.1f  turns %5.1f  games %d  -Dnygothor.params=%s",
+            getWinRate(setting) * 100, getWinRateError(setting) * 100, getAverageTurns(setting), setting.games, params.isEmpty() ? "(defaults)" : params);
+    } // END describe
+
+    //#endregion
+
+
+
+
+
+    //#region Simulation
+
+    // Plays a game as the bot and adds the result to the setting. Follows the rules of gameLoop, without output
+    public static void simulateGame(player player, SplittableRandom rnd, sweepSetting result){
+
+        room[] rooms = Ny_Gothor.getPlayerRoomList(player);
+        monster[] monsters = Ny_Gothor.getPlayerMonsterList(player);
+        monster boss = monsters[Ny_Gothor.getNyGothorKind(player)];
+        worldHints hints = WorldHints.computeHints(rooms);
+        roomHistory history = MovementHistory.createHistory();
+
+        int[] monsterHealth = Ny_Gothor.getPlayerRoomMonsterHealth(player).clone();
+        boolean[] visited = new boolean[rooms.length];
+        int unvisited = countReachable(rooms);
+        int health = Ny_Gothor.getPlayerHealth(player);
+        int sanity = Ny_Gothor.getPlayerSanity(player);
+        boolean incantation = false;
+        int damage = 0;
+        for(items item : Ny_Gothor.getPlayerInventory(player)){
+            damage = Math.max(damage, Ny_Gothor.getItemDamage(item)); // The bot always fights with its best item
+        }
+
+        int patience = PATIENCE * rooms.length;
+        int room = Ny_Gothor.START_ROOM;
+        boolean won = false;
+        int turns = 0; // Moves into another room, as player.turns counts them
+        int prompts = 0;
+
+        while(prompts < MAX_PROMPTS){
+            prompts++;
+
+            // Ny-Gothor, with the incantation spoken, or death without it
+            if(GameRules.isEndRoom(room)){
+                if(incantation){
+                    won = !GameRules.isDead(fight(boss, Ny_Gothor.getMonsterStartHealth(boss), damage, health, rnd));
+                }
+                break;
+            }
+
+            if(GameRules.isAltarRoom(room)){
+                incantation = true;
+            }
+
+            // Monsters are fought to the end, the bot never runs
+            int kind = Ny_Gothor.getRoomMonsterKind(player, room);
+            if(GameRules.meetsMonster(kind, monsterHealth[room])){
+                monster monster = monsters[kind];
+                sanity = GameRules.sanityOnSight(sanity, monster);
+                health = fight(monster, monsterHealth[room], damage, health, rnd);
+                if(GameRules.isDead(health)){
+                    break;
+                }
+                monsterHealth[room] = 0;
+            }
+
+            if(GameRules.isInsane(sanity)){
+                break;
+            }
+
+            // Items are taken the first time the room is entered
+            if(!visited[room]){
+                visited[room] = true;
+                unvisited--;
+
+                items item = Ny_Gothor.getRoomItem(rooms[room]);
+                if(item != null){
+                    damage = Math.max(damage, Ny_Gothor.getItemDamage(item));
+                }
+            }
+
+            boolean headForEnd = unvisited <= 0 || turns >= patience;
+            int next = chooseRoom(hints, rooms, room, history, visited, headForEnd, rnd);
+            if(next == GIVE_UP){
+                break;
+            }
+            if(next != room){
+                turns++;
+            }
+            room = next;
+        }
+
+        result.games++;
+        result.turns += turns;
+        result.turnSquares += (long)turns * turns;
+        if(won){
+            result.wins++;
+        }
+
+        return;
+    } // END simulateGame
+
+
+    // Fights the monster until one side falls, as fightMonster does round by round. Returns the player's health
+    public static int fight(monster monster, int monsterHealth, int damage, int health, SplittableRandom rnd){
+
+        for(int round = 0; round < MAX_ROUNDS; round++){
+            if(GameRules.playerHits(rnd.nextInt(GameRules.ROLL_SIDES), monster)){
+                monsterHealth = GameRules.afterBlow(monsterHealth, damage);
+                if(GameRules.isDead(monsterHealth)){
+                    return health;
+                }
+            }
+
+            if(GameRules.monsterHits(rnd.nextInt(GameRules.ROLL_SIDES), monster)){
+                health = GameRules.afterBlow(health, Ny_Gothor.getMonsterDamage(monster));
+                if(GameRules.isDead(health)){
+                    return health;
+                }
+            }
+        }
+
+        return 0; // Neither side could land a blow
+    } // END fight
+
+
+    // The bot's path, GIVE_UP if it is stuck. It explores rooms it has not seen, keeping clear of the path with no return, and takes
+    // the hint to the altar once it has nothing new nearby. Once the cavern is explored or its patience is gone
+    // it takes the hints to the altar and then the end. Now and then it wanders off at random instead
+    public static int chooseRoom(worldHints hints, room[] rooms, int here, roomHistory history, boolean[] visited, boolean headForEnd, SplittableRandom rnd){
+
+        int[] exits = Ny_Gothor.getRoomIndexArray(rooms[here]);
+
+        // Finishing, by way of the altar if it has not been there yet
+        if(headForEnd){
+            int hint = WorldHints.bestExit(hints, rooms[here], visited[Ny_Gothor.ALTAR_ROOM] ? WorldHints.END : WorldHints.ALTAR);
+            if(hint == -1){
+                hint = WorldHints.bestExit(hints, rooms[here], WorldHints.END); // No way to the altar, it gives up
+            }
+            if(hint == -1){
+                return GIVE_UP; // No way to the end either, the game can never finish
+            }
+            return goTo(history, here, hint);
+        }
+
+        if(rnd.nextInt(100) >= WANDER_CHANCE){
+            int unseen = pickExit(exits, visited, true, rnd);
+            if(unseen != -1){
+                return goTo(history, here, unseen);
+            }
+
+            int hint = WorldHints.bestExit(hints, rooms[here], WorldHints.ALTAR);
+            if(hint != -1 && !visited[Ny_Gothor.ALTAR_ROOM]){
+                return goTo(history, here, hint);
+            }
+        }
+
+        // Back the way it came, or any path but the one with no return
+        int any = pickExit(exits, visited, false, rnd);
+        if(!MovementHistory.isEmpty(history) && (any == -1 || rnd.nextInt(exits.length + 1) == 0)){
+            int back = MovementHistory.peek(history);
+            if(MovementHistory.size(history) > 1){
+                MovementHistory.pop(history); // As returnToLastRoom does
+            }
+            return back;
+        }
+
+        return any == -1 ? here : goTo(history, here, any);
+    } // END chooseRoom
+
+
+    // Picks a random exit other than the end room, only from rooms not yet visited if asked, -1 if there are none
+    public static int pickExit(int[] exits, boolean[] visited, boolean unseenOnly, SplittableRandom rnd){
+
+        int picked = -1;
+        int seen = 0;
+
+        // Reservoir sampling, so no list of the choices is needed
+        for(int exit : exits){
+            if(exit == Ny_Gothor.END_ROOM || (unseenOnly && visited[exit])){
+                continue;
+            }
+            seen++;
+            if(rnd.nextInt(seen) == 0){
+                picked = exit;
+            }
+        }
+
+        return picked;
+    } // END pickExit
+
+
+    public static int goTo(roomHistory history, int here, int exit){
+
+        MovementHistory.push(history, here);
+
+        return exit;
+    } // END goTo
+
+
+    // Rooms the bot could ever visit, all but the end room reachable from the start
+    public static int countReachable(room[] rooms){
+
+        boolean[] reached = new boolean[rooms.length];
+        int[] queue = new int[rooms.length];
+        int tail = 0;
+        reached[Ny_Gothor.START_ROOM] = true;
+        queue[tail++] = Ny_Gothor.START_ROOM;
+
+        for(int head = 0; head < tail; head++){
+            for(int exit : Ny_Gothor.getRoomIndexArray(rooms[queue[head]])){
+                if(exit != Ny_Gothor.END_ROOM && !reached[exit]){
+                    reached[exit] = true;
+                    queue[tail++] = exit;
+                }
+            }
+        }
+
+        return tail;
+    } // END countReachable
+
+    //#endregion
+
+
+
+
+
+    //#region Results
+
+    public static double getWinRate(sweepSetting setting){
+        return setting.games == 0 ? 0 : (double)setting.wins / setting.games;
+    } // END getWinRate
+
+
+    // Standard error of the win rate, never taken as less than one game's worth
+    public static double getWinRateError(sweepSetting setting){
+
+        double winRate = getWinRate(setting);
+
+        return Math.sqrt(Math.max(winRate * (1 - winRate), 1.0 / setting.games) / setting.games);
+    } // END getWinRateError
+
+
+    public static double getAverageTurns(sweepSetting setting){
+        return setting.games == 0 ? 0 : (double)setting.turns / setting.games;
+    } // END getAverageTurns
+
+
+    // Standard error of the average turns
+    public static double getTurnsError(sweepSetting setting){
+
+        double average = getAverageTurns(setting);
+        double variance = Math.max(0, (double)setting.turnSquares / setting.games - average * average);
+
+        return Math.sqrt(variance / setting.games);
+    } // END getTurnsError
+
+    //#endregion
+
+}
+
+
+class sweepSetting{
+    generationParams params;
+
+    // Totals over every game played, only written by the setting's own task
+    long games;
+    long wins;
+    long turns;
+    long turnSquares; // For the spread of game lengths
+}
@@ -0,0 +1,269 @@
+/* TITLE: SaveStore
+ DESCRIPTION:
+    Reads and writes save files for every session. Sessions saving or loading under the same name take turns
+    on one of a fixed set of locks picked by the file, so writes never interleave, and a save is written to a
+    temporary file and renamed over the old one, so a crash or a concurrent load never sees half a save.
+    Recently used saves are kept decoded in a cache bounded by their size on disk, least recently used out
+    first. Every load hands out its own copy of the cached game, so loading a popular save takes microseconds
+    and no two sessions ever share a room or a monster.
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputFilter;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class SaveStore {
+
+    // Locks shared out between save files by name (-Dnygothor.saves.stripes)
+    static final Object[] LOCKS = createLocks(Integer.getInteger("nygothor.saves.stripes", 64));
+
+    // Save file bytes the cache may hold (-Dnygothor.saves.cache, KB, 0 turns it off)
+    static final long CACHE_BYTES = Long.getLong("nygothor.saves.cache", 16 * 1024) * 1024;
+
+    // Saves being written, renamed over the save when complete. Hidden from the list of saves
+    static final String TEMP_PREFIX = ".";
+    static final String TEMP_SUFFIX = ".saving";
+
+    // Decoded saves by absolute path, in least recently used order (guarded by itself)
+    static final LinkedHashMap<Path, cachedSave> CACHE = new LinkedHashMap<>(16, 0.75f, true);
+    static long cachedBytes;
+
+    // The only classes a save, hibernated game or migrated game may decode into. Anything else, however it got
+    // into the bytes, is refused before it is created. Arrays of these and of primitives are allowed
+    static final ObjectInputFilter SAVED_CLASSES = ObjectInputFilter.Config.createFilter(
+            "maxdepth=16;player;room;items;monster;roomHistory;java.lang.String;!*");
+
+    //#region Saving and loading
+
+    // Writes the player to the save file, replacing any old save in one step
+    public static void save(player player, Path file) throws IOException{
+
+        saveEvent event = GameProfiling.beginSave();
+        Path key = file.toAbsolutePath().normalize();
+        byte[] bytes = serialise(player);
+
+        synchronized(lockFor(key)){
+            Path temp = Files.createTempFile(key.getParent(), TEMP_PREFIX + key.getFileName(), TEMP_SUFFIX);
+            try{
+                try(FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)){
+                    ByteBuffer buffer = ByteBuffer.wrap(bytes);
+                    while(buffer.hasRemaining()){
+                        channel.write(buffer);
+                    }
+                    channel.force(true); // On disk before it replaces the old save
+                }
+                Files.move(temp, key, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            }finally{
+                Files.deleteIfExists(temp);
+            }
+
+            // The live game carries on changing, cache a copy of it as saved
+            cache(key, copyPlayer(player), bytes.length, Files.getLastModifiedTime(key));
+        }
+        GameProfiling.endSave(event, key, bytes.length);
+
+        return;
+    } // END save
+
+
+    // Reads the player from the save file, from the cache if the file has not changed since
+    public static player load(Path file) throws IOException, ClassNotFoundException{
+
+        loadEvent event = GameProfiling.beginLoad();
+        Path key = file.toAbsolutePath().normalize();
+
+        synchronized(lockFor(key)){
+            BasicFileAttributes attributes = Files.readAttributes(key, BasicFileAttributes.class);
+            cachedSave cached = lookup(key);
+            boolean fromCache = true;
+
+            // Written since it was cached, by another process or by hand
+            if(cached == null || cached.size != attributes.size() || !cached.modified.equals(attributes.lastModifiedTime())){
+                byte[] bytes = Files.readAllBytes(key);
+                cached = cache(key, deserialise(bytes), bytes.length, attributes.lastModifiedTime());
+                fromCache = false;
+            }
+
+            player player = copyPlayer(cached.player);
+            GameProfiling.endLoad(event, key, cached.size, fromCache);
+
+            return player;
+        }
+    } // END load
+
+
+    // Whether the file is a save still being written
+    public static boolean isTempFile(Path file){
+
+        String name = file.getFileName().toString();
+
+        return name.startsWith(TEMP_PREFIX) && name.endsWith(TEMP_SUFFIX);
+    } // END isTempFile
+
+
+    public static byte[] serialise(player player) throws IOException{
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try(ObjectOutputStream out = new ObjectOutputStream(bytes)){
+            out.writeObject(player);
+        }
+
+        return bytes.toByteArray();
+    } // END serialise
+
+
+    public static player deserialise(byte[] bytes) throws IOException, ClassNotFoundException{
+
+        try(ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))){
+            in.setObjectInputFilter(SAVED_CLASSES);
+            return (player)in.readObject();
+        }
+    } // END deserialise
+
+
+    // Creates the locks, one object each
+    public static Object[] createLocks(int stripes){
+
+        Object[] locks = new Object[Math.max(1, stripes)];
+        for(int i = 0; i < locks.length; i++){
+            locks[i] = new Object();
+        }
+
+        return locks;
+    } // END createLocks
+
+
+    // Gets the lock for a save file, the same file always gets the same lock
+    public static Object lockFor(Path key){
+
+        int hash = key.hashCode();
+        hash ^= hash >>> 16; // Spread the high bits of the hash into the low ones
+
+        return LOCKS[Math.floorMod(hash, LOCKS.length)];
+    } // END lockFor
+
+    //#endregion
+
+
+
+
+
+    //#region Cache
+
+    // Gets a cached save, marking it most recently used
+    public static cachedSave lookup(Path key){
+
+        synchronized(CACHE){
+            return CACHE.get(key);
+        }
+    } // END lookup
+
+
+    // Caches a decoded save in place of any older one, then drops least recently used saves until it fits
+    public static cachedSave cache(Path key, player player, long size, FileTime modified){
+
+        cachedSave cached = new cachedSave();
+        cached.player = player;
+        cached.size = size;
+        cached.modified = modified;
+
+        if(size > CACHE_BYTES){
+            return cached; // Too big to keep, still handed back for this load
+        }
+
+        synchronized(CACHE){
+            cachedSave old = CACHE.put(key, cached);
+            if(old != null){
+                cachedBytes -= old.size;
+            }
+            cachedBytes += size;
+
+            Iterator<Map.Entry<Path, cachedSave>> eldest = CACHE.entrySet().iterator();
+            while(cachedBytes > CACHE_BYTES && eldest.hasNext()){
+                Map.Entry<Path, cachedSave> entry = eldest.next();
+                cachedBytes -= entry.getValue().size;
+                eldest.remove();
+            }
+        }
+
+        return cached;
+    } // END cache
+
+    //#endregion
+
+
+
+
+
+    //#region Copying
+
+    // Copies everything a game changes as it is played. Items and monster kinds are immutable and shared, as
+    // they are between games. Keep in step with the fields of player
+    public static player copyPlayer(player original){
+
+        player copy = new player();
+        copy.health = original.health;
+        copy.sanity = original.sanity;
+        copy.isDead = original.isDead;
+        copy.incantationSpoken = original.incantationSpoken;
+        copy.currentRoomIndex = original.currentRoomIndex;
+        copy.turns = original.turns;
+        copy.altarTurn = original.altarTurn;
+
+        copy.content = original.content; // Found again by its id when the save was read
+        copy.inventory = original.inventory.clone();
+        copy.itemsInRooms = original.itemsInRooms.clone();
+        copy.monsterList = original.monsterList.clone();
+
+        copy.roomList = new room[original.roomList.length];
+        for(int i = 0; i < copy.roomList.length; i++){
+            copy.roomList[i] = copyRoom(original.roomList[i]);
+        }
+
+        copy.roomMonsterKinds = original.roomMonsterKinds.clone();
+        copy.roomMonsterHealth = original.roomMonsterHealth.clone();
+        copy.roomMonsterDead = original.roomMonsterDead.clone();
+
+        copy.prevRooms = MovementHistory.copyHistory(original.prevRooms);
+
+        return copy;
+    } // END copyPlayer
+
+
+    public static room copyRoom(room original){
+
+        room copy = new room();
+        copy.roomIndex = original.roomIndex;
+        copy.roomIndexArray = original.roomIndexArray.clone();
+        copy.pathDescription = original.pathDescription;
+        copy.roomDescription = original.roomDescription;
+        copy.itemTaken = original.itemTaken;
+        copy.item = original.item;
+
+        return copy;
+    } // END copyRoom
+
+    //#endregion
+
+}
+
+
+class cachedSave{
+    player player; // Never handed out, only copies of it
+    long size; // Bytes on disk
+    FileTime modified; // When the file was written, a different time means it changed
+}
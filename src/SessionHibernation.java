@@ -0,0 +1,156 @@
+/* TITLE: SessionHibernation
+ DESCRIPTION:
+    Packs away the game of a hosted session that has sat idle at the room prompt. The player's state is
+    compacted into a compressed blob, kept off-heap or in a spill file, so heap use follows the players who are
+    actually playing rather than everyone connected. The game is unpacked again when the next input arrives.
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+public class SessionHibernation {
+
+    // Time a hosted session can sit at the room prompt before its game is packed away (seconds, 0 turns it off)
+    static final long IDLE_MILLIS = Long.getLong("nygothor.hibernate.idle", 120) * 1000;
+
+    // Folder for spill files, blobs are kept off-heap when it is not set
+    static final String SPILL_DIRECTORY = System.getProperty("nygothor.hibernate.spill");
+
+    // Sessions currently hibernated
+    static final AtomicInteger HIBERNATED = new AtomicInteger();
+
+    //#region Hibernation
+
+    // Only hosted sessions hibernate, the console player is the only player
+    public static boolean shouldHibernate(session session){
+        return IDLE_MILLIS > 0 && GameSession.isSessionHosted(session);
+    } // END shouldHibernate
+
+
+    // Compacts the player into a blob stored off the heap, the caller must drop its own references to the player
+    public static hibernatedPlayer hibernate(player player) throws IOException{
+
+        byte[] blob = compact(player);
+        MonsterRoaming.release(player.roaming); // Monsters near an idle player keep still until they are back
+
+        hibernatedPlayer hibernated = new hibernatedPlayer();
+        hibernated.length = blob.length;
+        hibernated.world = player.world;
+        hibernated.content = Ny_Gothor.getPlayerContent(player);
+
+        if(SPILL_DIRECTORY != null){
+            Path directory = Paths.get(SPILL_DIRECTORY);
+            Files.createDirectories(directory);
+
+            hibernated.spillFile = Files.createTempFile(directory, "session-", ".hibernated");
+            Files.write(hibernated.spillFile, blob);
+        }else{
+            hibernated.offHeap = ByteBuffer.allocateDirect(blob.length);
+            hibernated.offHeap.put(blob);
+            hibernated.offHeap.flip();
+        }
+
+        HIBERNATED.incrementAndGet();
+
+        return hibernated;
+    } // END hibernate
+
+
+    // Unpacks a hibernated player, removing its spill file
+    public static player rehydrate(hibernatedPlayer hibernated) throws IOException{
+
+        byte[] blob;
+        try{
+            if(hibernated.spillFile != null){
+                blob = Files.readAllBytes(hibernated.spillFile);
+            }else{
+                blob = new byte[hibernated.length];
+                hibernated.offHeap.get(blob);
+            }
+        }finally{
+            discard(hibernated);
+        }
+
+        // A player in a shared cavern goes back to it, rather than the copy of its rooms in the blob
+        player player = expand(blob);
+        if(hibernated.world != null){
+            SharedWorld.attach(player, hibernated.world);
+        }
+
+        return player;
+    } // END rehydrate
+
+
+    // Lets go of a hibernated player's blob and spill file, once only. Used when it is unpacked and when the
+    // session ends without waking it
+    public static void discard(hibernatedPlayer hibernated){
+
+        if(hibernated.discarded){
+            return;
+        }
+        hibernated.discarded = true;
+        hibernated.offHeap = null;
+        HIBERNATED.decrementAndGet();
+
+        if(hibernated.spillFile != null){
+            try{
+                Files.deleteIfExists(hibernated.spillFile);
+            }catch(IOException e){
+                System.err.println("Spill file " + hibernated.spillFile + " could not be removed: " + e.getMessage());
+            }
+        }
+
+        return;
+    } // END discard
+
+
+    // Serialises and deflates the player. A player in a shared cavern is packed without it, as the cavern is
+    // attached again on waking, so idle players in a large cavern do not each keep a copy of it
+    public static byte[] compact(player player) throws IOException{
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try(ObjectOutputStream out = new ObjectOutputStream(new DeflaterOutputStream(bytes))){
+            out.writeObject(SharedWorld.isShared(player) ? SharedWorld.withoutCavern(player) : player);
+        }
+
+        return bytes.toByteArray();
+    } // END compact
+
+
+    // Inflates and reads back a compacted player
+    public static player expand(byte[] blob) throws IOException{
+
+        try(ObjectInputStream in = new ObjectInputStream(new InflaterInputStream(new ByteArrayInputStream(blob)))){
+            in.setObjectInputFilter(SaveStore.SAVED_CLASSES); // Migrated games arrive from another process
+            return (player)in.readObject();
+        }catch(ClassNotFoundException e){
+            throw new IOException("Hibernated game could not be read", e);
+        }
+    } // END expand
+
+    //#endregion
+
+}
+
+
+class hibernatedPlayer{
+    int length;
+
+    // One of these holds the blob
+    ByteBuffer offHeap;
+    Path spillFile;
+    boolean discarded; // Blob let go, see SessionHibernation.discard
+
+    sharedWorld world; // Cavern the player was exploring with others, null for a game of its own
+    contentPack content; // Held so the pack is still loaded, and found by its id, when the player wakes
+}
@@ -0,0 +1,461 @@
+/* TITLE: SessionMigration
+ DESCRIPTION:
+    Moves live games between game servers on the same host, to spread players over several processes or to
+    drain one before a redeploy. A game is frozen at the room prompt, its player compacted into a binary
+    snapshot (as for hibernation) and sent over a loopback socket to the other server, which carries on from the
+    same prompt. Nothing is lost if the move fails: the game only stops here once the other server has it.
+    A player's connection cannot be handed to another process, so the old server passes the player's bytes
+    through to the new one until the player leaves: a drained server stops running games at once, but can only
+    exit once its relayed players have gone. Every session moves itself on its own thread, so a drain moves
+    thousands of sessions in parallel.
+    Migration is off unless a server is given a port (-Dnygothor.migrate.port), and every request must prove it
+    knows the secret shared by the servers on the host (-Dnygothor.migrate.secret=<file holding it>): the server
+    sends a random challenge, answered with an HMAC of it under the secret. Snapshots are only ever decoded into
+    the game's own classes (see SaveStore.SAVED_CLASSES).
+    Usage: java Ny_Gothor --drain <from migration port> <to migration port>
+ */
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SessionMigration {
+
+    // Snapshot header
+    static final int MAGIC = 0x4E59474D; // "NYGM"
+    static final int FORMAT_VERSION = 3;
+
+    // Requests to the migration port
+    static final int REQUEST_SNAPSHOT = 'S';
+    static final int REQUEST_DRAIN = 'D';
+
+    static final int ACCEPTED = 1;
+    static final int REFUSED = 0;
+
+    // Sessions reported by a drain that was refused
+    static final int DRAIN_REFUSED = -1;
+
+    // File holding the secret every migration request is signed with (-Dnygothor.migrate.secret)
+    static final String SECRET_FILE = System.getProperty("nygothor.migrate.secret");
+
+    static final String MAC_ALGORITHM = "HmacSHA256";
+    static final int CHALLENGE_BYTES = 16;
+    static final int MAC_BYTES = 32;
+
+    static final SecureRandom CHALLENGES = new SecureRandom();
+
+    // How often a session waiting at the prompt checks for a drain (-Dnygothor.migrate.poll, ms)
+    static final long POLL_MILLIS = Long.getLong("nygothor.migrate.poll", 1000);
+
+    // How long to wait on the other server, and before trying again after a failed move (-Dnygothor.migrate.timeout, ms)
+    static final int TIMEOUT_MILLIS = Integer.getInteger("nygothor.migrate.timeout", 2000);
+
+    static final int RELAY_BUFFER_SIZE = 8192;
+
+    // Migration port of the server this one is draining to, -1 when not draining
+    static volatile int drainPort = -1;
+
+    // This server's own migration port, -1 when it takes no migrations
+    static volatile int ownPort = -1;
+
+    // Sessions moved out of this server
+    static final AtomicInteger MIGRATED = new AtomicInteger();
+
+    //#region Moving out
+
+    // Asks every session to move to the server on the port, now and as new players arrive. Refused for this
+    // server's own port, where every session would move back in and out again for as long as it ran
+    public static int drain(int targetPort){
+
+        if(targetPort <= 0 || targetPort > 65535 || targetPort == ownPort){
+            System.err.println("Drain to migration port " + targetPort + " refused");
+            return DRAIN_REFUSED;
+        }
+
+        drainPort = targetPort;
+        int sessions = GameServer.SESSIONS.size();
+        System.err.println("Draining " + sessions + " sessions to migration port " + targetPort);
+
+        return sessions;
+    } // END drain
+
+
+    // Whether the session should move from the prompt it is waiting at. Only socket players can be passed through
+    public static boolean isRequested(session session){
+        return drainPort >= 0 && session.socket != null && session.migration == null && System.currentTimeMillis() >= session.migrateAfter;
+    } // END isRequested
+
+
+    // Whether the session's game has moved to another server
+    public static boolean hasMigrated(session session){
+        return session.migration != null;
+    } // END hasMigrated
+
+
+    // Sends the game at the prompt to the draining target, returns false if it stays here
+    public static boolean migrate(session session, player player){
+
+        long start = System.nanoTime();
+        Socket target = new Socket();
+
+        try{
+            target.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), drainPort), TIMEOUT_MILLIS);
+            target.setTcpNoDelay(true);
+            target.setSoTimeout(TIMEOUT_MILLIS);
+
+            GameOutput.flush(GameSession.getSessionOutput(session));
+
+            // A game in a shared cavern carries on alone over there, in the cavern as it stands
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(target.getOutputStream()));
+            sign(target.getInputStream(), out, REQUEST_SNAPSHOT);
+            writeSnapshot(out, session, SharedWorld.isShared(player) ? SharedWorld.snapshot(player) : player);
+
+            // The game is only the other server's once it says so
+            if(target.getInputStream().read() != ACCEPTED){
+                throw new IOException("refused");
+            }
+            target.setSoTimeout(0);
+        }catch(IOException e){
+            System.err.println("Session " + GameSession.getSessionId(session) + " could not move, trying again later: " + e.getMessage());
+            closeQuietly(target);
+            session.migrateAfter = System.currentTimeMillis() + TIMEOUT_MILLIS;
+            return false;
+        }
+
+        GameSession.clearTypedAhead(session); // Typed ahead input went with the game
+        session.migration = target;
+        MIGRATED.incrementAndGet();
+
+        System.err.println("Session " + GameSession.getSessionId(session) + " moved to migration port " + drainPort + " in " + (System.nanoTime() - start) / 1000 + "us");
+
+        return true;
+    } // END migrate
+
+
+    // Snapshot layout, big endian, after the signed request (see sign):
+    //   int magic "NYGM", int version, UTF save token ("" if none), int player length, int input length,
+    //   the player compacted as for hibernation, then any input typed ahead but not yet used
+    public static void writeSnapshot(DataOutputStream out, session session, player player) throws IOException{
+
+        byte[] snapshot = SessionHibernation.compact(player);
+        byte[] typedAhead = GameSession.getTypedAhead(session);
+        int pending = typedAhead.length;
+
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        out.writeUTF(session.saveToken != null ? session.saveToken : ""); // Saves made before the move stay the player's
+        out.writeInt(snapshot.length);
+        out.writeInt(pending);
+        out.write(snapshot);
+        out.write(typedAhead);
+        out.flush();
+
+        return;
+    } // END writeSnapshot
+
+
+    // Passes bytes between the player and the server their game moved to until either side closes
+    public static void relay(session session){
+
+        Socket target = session.migration;
+
+        try{
+            session.socket.setSoTimeout(0); // The prompt's timed waits are over
+            OutputStream toPlayer = session.socket.getOutputStream();
+            OutputStream toTarget = target.getOutputStream();
+
+            // Player to the other server on a second thread, the other way on this one
+            Thread upstream = new Thread(() -> {
+                pump(session.in, toTarget);
+                try{
+                    target.shutdownOutput(); // Player left, the other server ends its session
+                }catch(IOException e){
+                    // Already closed
+                }
+            }, "relay-" + GameSession.getSessionId(session));
+            upstream.setDaemon(true);
+            upstream.start();
+
+            pump(target.getInputStream(), toPlayer);
+        }catch(IOException e){
+            // Either side already gone
+        }finally{
+            closeQuietly(target);
+        }
+
+        return;
+    } // END relay
+
+
+    // Copies from one stream to the other until the first ends or either fails
+    public static void pump(InputStream in, OutputStream out){
+
+        byte[] buffer = new byte[RELAY_BUFFER_SIZE];
+
+        try{
+            int read;
+            while((read = in.read(buffer)) >= 0){
+                out.write(buffer, 0, read);
+                out.flush();
+            }
+        }catch(IOException e){
+            // Connection closed
+        }
+
+        return;
+    } // END pump
+
+
+    // Asks the server with the first migration port to drain into the second
+    public static void requestDrain(int fromPort, int toPort) throws IOException{
+
+        try(Socket socket = new Socket(InetAddress.getLoopbackAddress(), fromPort)){
+            socket.setSoTimeout(TIMEOUT_MILLIS);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            sign(socket.getInputStream(), out, REQUEST_DRAIN);
+            out.writeInt(toPort);
+            out.flush();
+
+            int sessions;
+            try{
+                sessions = new DataInputStream(socket.getInputStream()).readInt();
+            }catch(EOFException e){ // Closed on us, the request was not signed with its secret
+                System.out.println("The server on migration port " + fromPort + " did not accept the request, check the migration secret");
+                return;
+            }
+            if(sessions == DRAIN_REFUSED){
+                System.out.println("The server on migration port " + fromPort + " refused to drain to " + toPort);
+            }else{
+                System.out.println("Moving " + sessions + " sessions from migration port " + fromPort + " to " + toPort);
+            }
+        }
+
+        return;
+    } // END requestDrain
+
+    //#endregion
+
+
+
+
+
+    //#region Moving in
+
+    // Accepts games moved from other servers on this host, and drain requests, on a daemon thread
+    public static void serveMigrations(int port) throws IOException{
+
+        // Without a secret any process on the host could hand this server a game, or drain it
+        if(readSecret() == null){
+            System.err.println("Migrations not accepted, -Dnygothor.migrate.secret must name a file holding the shared secret");
+            return;
+        }
+
+        ServerSocket server = new ServerSocket(port, 0, InetAddress.getLoopbackAddress()); // Other processes on this host only
+        ownPort = server.getLocalPort();
+        System.err.println("Migrations accepted on port " + server.getLocalPort());
+
+        Thread acceptor = new Thread(() -> {
+            while(true){
+                try{
+                    Socket socket = server.accept();
+                    socket.setTcpNoDelay(true);
+
+                    Thread handler = new Thread(() -> handleRequest(socket), "migration-in");
+                    handler.start();
+                }catch(IOException e){
+                    System.err.println("Migration port failed: " + e.getMessage());
+                    return;
+                }
+            }
+        }, "migration-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        return;
+    } // END serveMigrations
+
+
+    // Reads one request from the connection, a moved game keeps the connection as its session
+    public static void handleRequest(Socket socket){
+
+        try{
+            socket.setSoTimeout(TIMEOUT_MILLIS);
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            int request = verify(in, socket.getOutputStream());
+
+            if(request == REQUEST_DRAIN){
+                int sessions = drain(in.readInt());
+                DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                out.writeInt(sessions);
+                out.flush();
+                socket.close();
+            }else if(request == REQUEST_SNAPSHOT){
+                resume(socket, in);
+            }else{
+                socket.close();
+            }
+        }catch(IOException e){
+            System.err.println("Migration request failed: " + e.getMessage());
+            closeQuietly(socket);
+        }
+
+        return;
+    } // END handleRequest
+
+
+    // Reads a snapshot and starts a session carrying on its game, over the connection it came on
+    public static void resume(Socket socket, DataInputStream in) throws IOException{
+
+        if(in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION){
+            socket.getOutputStream().write(REFUSED);
+            throw new IOException("Not a session snapshot this server can read");
+        }
+
+        // A draining server sends its games on, taking them in would bounce them between two draining servers
+        if(drainPort >= 0){
+            socket.getOutputStream().write(REFUSED);
+            throw new IOException("Draining, not taking games in");
+        }
+
+        String saveToken = in.readUTF();
+        byte[] snapshot = new byte[in.readInt()];
+        byte[] pending = new byte[in.readInt()];
+        in.readFully(snapshot);
+        in.readFully(pending);
+
+        player player = SessionHibernation.expand(snapshot);
+
+        session session = GameSession.createSocketSession(socket, GameServer.PACED);
+        if(pending.length > session.inputBuffer.length){
+            session.inputBuffer = new byte[pending.length * 2];
+        }
+        System.arraycopy(pending, 0, session.inputBuffer, 0, pending.length);
+        session.inputEnd = pending.length;
+        session.resumed = player;
+        session.saveToken = GameSession.isSaveToken(saveToken) ? saveToken : null;
+
+        socket.setSoTimeout(0);
+        socket.getOutputStream().write(ACCEPTED);
+        GameServer.startSession(session);
+
+        return;
+    } // END resume
+
+    //#endregion
+
+
+
+
+
+    //#region Signing
+
+    // Answers the server's challenge: sends the request and an HMAC of the challenge and request under the secret
+    public static void sign(InputStream in, DataOutputStream out, int request) throws IOException{
+
+        byte[] challenge = new byte[CHALLENGE_BYTES];
+        new DataInputStream(in).readFully(challenge);
+
+        out.writeByte(request);
+        out.write(computeMac(challenge, request));
+
+        return;
+    } // END sign
+
+
+    // Sends a challenge and checks the answer, returns the request. Throws without reading anything else if
+    // the answer was not signed with the secret
+    public static int verify(DataInputStream in, OutputStream out) throws IOException{
+
+        byte[] challenge = new byte[CHALLENGE_BYTES];
+        CHALLENGES.nextBytes(challenge);
+        out.write(challenge);
+        out.flush();
+
+        int request = in.readUnsignedByte();
+        byte[] mac = new byte[MAC_BYTES];
+        in.readFully(mac);
+
+        if(!MessageDigest.isEqual(mac, computeMac(challenge, request))){ // Takes the same time however much matches
+            throw new IOException("Request not signed with the migration secret");
+        }
+
+        return request;
+    } // END verify
+
+
+    public static byte[] computeMac(byte[] challenge, int request) throws IOException{
+
+        byte[] secret = readSecret();
+        if(secret == null){
+            throw new IOException("No migration secret, set -Dnygothor.migrate.secret");
+        }
+
+        try{
+            Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(new SecretKeySpec(secret, MAC_ALGORITHM));
+            mac.update(challenge);
+            mac.update((byte)request);
+
+            return mac.doFinal();
+        }catch(GeneralSecurityException e){
+            throw new IOException("Could not sign migration request", e);
+        }
+    } // END computeMac
+
+
+    // Reads the shared secret from its file, null if there is none. Read each time, so it can be changed
+    // without a restart
+    public static byte[] readSecret(){
+
+        if(SECRET_FILE == null){
+            return null;
+        }
+
+        try{
+            byte[] secret = new String(Files.readAllBytes(Paths.get(SECRET_FILE)), StandardCharsets.UTF_8).trim().getBytes(StandardCharsets.UTF_8);
+            return secret.length > 0 ? secret : null;
+        }catch(IOException e){
+            System.err.println("Migration secret could not be read: " + e.getMessage());
+            return null;
+        }
+    } // END readSecret
+
+    //#endregion
+
+
+
+
+
+    //#region Connections
+
+    public static void closeQuietly(Socket socket){
+
+        try{
+            socket.close();
+        }catch(IOException e){
+            // Already closed
+        }
+
+        return;
+    } // END closeQuietly
+
+    //#endregion
+
+}
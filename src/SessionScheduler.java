@@ -0,0 +1,247 @@
+/* TITLE: SessionScheduler
+ DESCRIPTION:
+    Shares the machine fairly between hosted sessions. A session only runs while it holds one of a fixed number
+    of run slots, handed out first come first served. It gives its slot up whenever it waits: for input, between
+    typed characters, and while each frame is written to the player, so a player who stops reading never keeps a
+    slot from anyone else. Taking a slot back goes to the back of the queue. CPU time is counted per session and the time sessions queue for a slot is kept in a
+    histogram, so the p99 delay shows how the server copes when there are more players than cores.
+ */
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+public class SessionScheduler {
+
+    // Sessions that can run at once (-Dnygothor.scheduler.workers, defaults to the number of cores)
+    static final int WORKERS = Integer.getInteger("nygothor.scheduler.workers", Runtime.getRuntime().availableProcessors());
+
+    // Seconds between scheduler reports on stderr, 0 turns them off
+    static final long REPORT_SECONDS = Long.getLong("nygothor.scheduler.report", 60);
+
+    // Run slots, fair so they go to sessions in the order they asked
+    static final Semaphore SLOTS = new Semaphore(WORKERS, true);
+
+    // Queue delay histogram in microseconds: 8 buckets for every power of two
+    static final int SUB_BUCKETS = 8;
+    static final LongAdder[] QUEUE_DELAY = GameStatistics.createAdders(64 * SUB_BUCKETS);
+
+    static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    static final boolean CPU_TIME = THREADS.isCurrentThreadCpuTimeSupported();
+
+    //#region Slots
+
+    // Session starts running, waits for a slot
+    public static void begin(session session){
+
+        if(!GameSession.isSessionHosted(session)){
+            return; // The console player has the machine to themselves
+        }
+
+        session.scheduled = true;
+        resume(session);
+
+        return;
+    } // END begin
+
+
+    // Session has finished, gives its slot back for good
+    public static void end(session session){
+
+        if(session.scheduled){
+            pause(session);
+            session.scheduled = false;
+        }
+
+        return;
+    } // END end
+
+
+    // Gives the slot up before waiting, counting the CPU used in the slice
+    public static void pause(session session){
+
+        if(!session.scheduled || !session.running){
+            return;
+        }
+
+        session.cpuNanos += cpuTime() - session.sliceStart;
+        session.running = false;
+        SLOTS.release();
+
+        return;
+    } // END pause
+
+
+    // Waits for a slot to carry on
+    public static void resume(session session){
+
+        if(!session.scheduled || session.running){
+            return;
+        }
+
+        long asked = System.nanoTime();
+        SLOTS.acquireUninterruptibly();
+        recordQueueDelay(System.nanoTime() - asked);
+
+        session.running = true;
+        session.sliceStart = cpuTime();
+
+        return;
+    } // END resume
+
+
+    // Waits between typed characters without holding a slot
+    public static void tick(session session, long millis){
+
+        pause(session);
+        LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(millis));
+        resume(session);
+
+        return;
+    } // END tick
+
+
+    // CPU time of this thread, wall time where the JVM cannot measure it
+    public static long cpuTime(){
+        return CPU_TIME ? THREADS.getCurrentThreadCpuTime() : System.nanoTime();
+    } // END cpuTime
+
+    //#endregion
+
+
+
+
+
+    //#region Queue delay
+
+    // Counts a wait for a slot
+    public static void recordQueueDelay(long nanos){
+        QUEUE_DELAY[bucketOf(nanos / 1000)].increment();
+
+        return;
+    } // END recordQueueDelay
+
+
+    // Bucket of a delay: the power of two it falls in, then which eighth of it
+    public static int bucketOf(long micros){
+
+        if(micros < SUB_BUCKETS){
+            return (int)micros;
+        }
+
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        int sub = (int)(micros >>> (exponent - 3)) & (SUB_BUCKETS - 1);
+
+        return (exponent - 2) * SUB_BUCKETS + sub;
+    } // END bucketOf
+
+
+    // Largest delay that falls in a bucket
+    public static long bucketLimit(int bucket){
+
+        if(bucket < SUB_BUCKETS){
+            return bucket;
+        }
+
+        int exponent = bucket / SUB_BUCKETS + 2;
+        long sub = bucket % SUB_BUCKETS;
+
+        return ((SUB_BUCKETS + sub + 1) << (exponent - 3)) - 1;
+    } // END bucketLimit
+
+
+    // Queue delay that the given fraction of waits were within, in microseconds
+    public static long getQueueDelayPercentile(double fraction){
+
+        long[] counts = new long[QUEUE_DELAY.length];
+        long total = 0;
+        for(int i = 0; i < counts.length; i++){
+            counts[i] = QUEUE_DELAY[i].sum();
+            total += counts[i];
+        }
+        if(total == 0){
+            return 0;
+        }
+
+        long wanted = (long)Math.ceil(total * fraction);
+        long seen = 0;
+        for(int i = 0; i < counts.length; i++){
+            seen += counts[i];
+            if(seen >= wanted){
+                return bucketLimit(i);
+            }
+        }
+
+        return bucketLimit(counts.length - 1);
+    } // END getQueueDelayPercentile
+
+
+    // Queue delay p99, in microseconds
+    public static long getQueueDelayP99(){
+        return getQueueDelayPercentile(0.99);
+    } // END getQueueDelayP99
+
+    //#endregion
+
+
+
+
+
+    //#region Reporting
+
+    // Prints a report every REPORT_SECONDS on a background thread
+    public static void startReporting(){
+
+        if(REPORT_SECONDS <= 0){
+            return;
+        }
+
+        Thread reporter = new Thread(() -> {
+            while(true){
+                LockSupport.parkNanos(TimeUnit.SECONDS.toNanos(REPORT_SECONDS));
+                System.err.print(describe());
+                if(WorldPool.isEnabled()){
+                    System.err.print(WorldPool.describe());
+                }
+            }
+        }, "scheduler-report");
+        reporter.setDaemon(true);
+        reporter.start();
+
+        return;
+    } // END startReporting
+
+
+    // Describes the slots, queue delay and CPU used by each connected session
+    public static String describe(){
+
+        StringBuilder text = new StringBuilder();
+        text.append("Scheduler: ").append(WORKERS - SLOTS.availablePermits()).append('/').append(WORKERS).append(" running, ");
+        text.append(SLOTS.getQueueLength()).append(" waiting, queue delay p50 ").append(getQueueDelayPercentile(0.5));
+        text.append("us p99 ").append(getQueueDelayP99()).append("us\n");
+
+        for(session session : GameServer.SESSIONS.values()){
+            text.append(" - session ").append(GameSession.getSessionId(session)).append(": ");
+            text.append(TimeUnit.NANOSECONDS.toMillis(getSessionCpuNanos(session))).append("ms CPU\n");
+        }
+
+        return text.toString();
+    } // END describe
+
+    //#endregion
+
+
+
+
+
+    //#region Get/Set methods
+
+        // Session methods
+        public static long getSessionCpuNanos(session s) {return s.cpuNanos;}
+
+    //#endregion
+
+}
@@ -0,0 +1,334 @@
+/* TITLE: SharedWorld
+ DESCRIPTION:
+    Lets several players explore the same cavern at once (-Dnygothor.shared=<players per cavern>). Monsters
+    killed by one player stay dead for all of them, and an item taken by one is gone for everyone else.
+    The rooms themselves never change once generated, so every player in the cavern reads the same room
+    objects. What does change is held in atomic arrays indexed by room: the monster in each room packed into
+    one long (kind, dead flag and health), and whether each room's item is still there. Every change is a
+    compare-and-set on one element, so players in different rooms never touch the same memory, and two in
+    the same room settle who landed the killing blow or took the item without either of them locking.
+ */
+
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class SharedWorld {
+
+    // Players put in each cavern before a new one is generated (-Dnygothor.shared, 0 gives every player their own)
+    static final int PLAYERS_PER_CAVERN = Integer.getInteger("nygothor.shared", 0);
+
+    // Cavern new players join
+    static final AtomicReference<sharedWorld> CURRENT = new AtomicReference<>();
+
+    static final SplittableRandom SEEDS = new SplittableRandom();
+
+    // Monster state, packed: kind in bits 40-47, dead flag in bit 32, health in the low 32 bits
+    static final int KIND_SHIFT = 40;
+    static final long DEAD_BIT = 1L << 32;
+    static final long NO_MONSTER_STATE = pack(Ny_Gothor.NO_MONSTER, false, 0);
+
+    //#region Caverns
+
+    public static boolean isEnabled(){
+        return PLAYERS_PER_CAVERN > 0;
+    } // END isEnabled
+
+
+    public static boolean isShared(player player){
+        return player.world != null;
+    } // END isShared
+
+
+    // Creates a player in the current cavern, starting a new cavern once it is full
+    public static player join(){
+
+        while(true){
+            sharedWorld world = CURRENT.get();
+
+            if(world != null && world.players.getAndIncrement() < PLAYERS_PER_CAVERN){
+                player player = Ny_Gothor.createPlayer();
+                Ny_Gothor.setPlayerContent(player, world.content);
+                Ny_Gothor.declareItems(player); // Starting inventory of their own
+                attach(player, world);
+
+                return player;
+            }
+
+            // Full or not made yet, whoever loses the race to replace it joins the winner's cavern
+            CURRENT.compareAndSet(world, createWorld(GenerationParams.current(), nextSeed()));
+        }
+    } // END join
+
+
+    public static long nextSeed(){
+
+        synchronized(SEEDS){
+            return SEEDS.nextLong();
+        }
+    } // END nextSeed
+
+
+    // Generates a cavern and moves its changing state into the shared arrays
+    public static sharedWorld createWorld(generationParams params, long seed){
+
+        player generated = Ny_Gothor.initialiseGame(params, seed);
+        room[] roomList = Ny_Gothor.getPlayerRoomList(generated);
+
+        sharedWorld world = new sharedWorld();
+        world.content = Ny_Gothor.getPlayerContent(generated);
+        world.roomList = roomList;
+        world.monsterList = Ny_Gothor.getPlayerMonsterList(generated);
+        world.itemsInRooms = generated.itemsInRooms;
+        world.hints = WorldHints.computeHints(roomList);
+        world.roaming = MonsterRoaming.createWorld();
+        world.players = new AtomicInteger();
+
+        // Kept as generated, for the fields of each player (which only the shared state is read through)
+        world.startMonsterKinds = Ny_Gothor.getPlayerRoomMonsterKinds(generated);
+        world.startMonsterHealth = Ny_Gothor.getPlayerRoomMonsterHealth(generated);
+        world.startMonsterDead = Ny_Gothor.getPlayerRoomMonsterDead(generated);
+
+        world.monsters = new AtomicLongArray(roomList.length);
+        world.items = new AtomicIntegerArray(roomList.length);
+        for(int i = 0; i < roomList.length; i++){
+            world.monsters.set(i, pack(world.startMonsterKinds[i], world.startMonsterDead[i], world.startMonsterHealth[i]));
+            world.items.set(i, roomList[i].item != null ? 1 : 0);
+            roomList[i].world = world;
+        }
+
+        return world;
+    } // END createWorld
+
+
+    // Points the player at the cavern's rooms and monsters, also used when a hibernated player wakes
+    public static void attach(player player, sharedWorld world){
+
+        player.world = world;
+        Ny_Gothor.setPlayerRoomList(player, world.roomList);
+        Ny_Gothor.setPlayerMonsterList(player, world.monsterList);
+        Ny_Gothor.setPlayerItemsInRooms(player, world.itemsInRooms);
+        Ny_Gothor.setPlayerRoomMonsterKinds(player, world.startMonsterKinds);
+        Ny_Gothor.setPlayerRoomMonsterHealth(player, world.startMonsterHealth);
+        Ny_Gothor.setPlayerRoomMonsterDead(player, world.startMonsterDead);
+        Ny_Gothor.setPlayerHints(player, world.hints);
+
+        return;
+    } // END attach
+
+
+    // Copies the player's own fields without the cavern's rooms and monsters, which attach points a player back at
+    public static player withoutCavern(player player){
+
+        player copy = player.shallowCopy();
+        copy.world = null;
+        copy.roomList = null;
+        copy.monsterList = null;
+        copy.itemsInRooms = null;
+        copy.roomMonsterKinds = null;
+        copy.roomMonsterHealth = null;
+        copy.roomMonsterDead = null;
+        copy.hints = null;
+
+        return copy;
+    } // END withoutCavern
+
+
+    // Copies the player into a game of their own, with the cavern as it stands now. Used for saves, and for games moved to another server
+    public static player snapshot(player player){
+
+        sharedWorld world = player.world;
+        player copy = SaveStore.copyPlayer(player);
+        room[] rooms = Ny_Gothor.getPlayerRoomList(copy);
+        byte[] kinds = Ny_Gothor.getPlayerRoomMonsterKinds(copy);
+        int[] health = Ny_Gothor.getPlayerRoomMonsterHealth(copy);
+        boolean[] dead = Ny_Gothor.getPlayerRoomMonsterDead(copy);
+
+        for(int i = 0; i < rooms.length; i++){
+            if(world.items.get(i) == 0 && rooms[i].item != null){
+                rooms[i].item = null;
+                rooms[i].itemTaken = true;
+            }
+
+            long state = world.monsters.get(i);
+            kinds[i] = (byte)kindOf(state);
+            health[i] = healthOf(state);
+            dead[i] = isDead(state);
+        }
+
+        return copy;
+    } // END snapshot
+
+    //#endregion
+
+
+
+
+
+    //#region Room state
+
+    public static int getMonsterKind(sharedWorld world, int roomIndex){
+        return kindOf(world.monsters.get(roomIndex));
+    } // END getMonsterKind
+
+
+    public static int getMonsterHealth(sharedWorld world, int roomIndex){
+        return healthOf(world.monsters.get(roomIndex));
+    } // END getMonsterHealth
+
+
+    public static boolean isMonsterDead(sharedWorld world, int roomIndex){
+        return isDead(world.monsters.get(roomIndex));
+    } // END isMonsterDead
+
+
+    public static boolean hasMonster(sharedWorld world, int roomIndex){
+
+        long state = world.monsters.get(roomIndex);
+
+        return kindOf(state) != Ny_Gothor.NO_MONSTER && !isDead(state);
+    } // END hasMonster
+
+
+    // Takes health off the monster, returns the health left. The blow that takes it to 0 also marks it dead,
+    // so a monster dies once however many players are fighting it, and blows landing after that do nothing
+    public static int damageMonster(sharedWorld world, int roomIndex, int damage){
+
+        while(true){
+            long state = world.monsters.get(roomIndex);
+            int health = healthOf(state);
+            if(isDead(state) || health <= 0){
+                return health;
+            }
+
+            int left = health - damage;
+            if(world.monsters.compareAndSet(roomIndex, state, pack(kindOf(state), left <= 0, left))){
+                return left;
+            }
+        }
+    } // END damageMonster
+
+
+    public static void setMonsterHealth(sharedWorld world, int roomIndex, int health){
+
+        long state;
+        do{
+            state = world.monsters.get(roomIndex);
+        }while(!world.monsters.compareAndSet(roomIndex, state, pack(kindOf(state), isDead(state), health)));
+
+        return;
+    } // END setMonsterHealth
+
+
+    public static void setMonsterDead(sharedWorld world, int roomIndex, boolean dead){
+
+        long state;
+        do{
+            state = world.monsters.get(roomIndex);
+        }while(!world.monsters.compareAndSet(roomIndex, state, pack(kindOf(state), dead, healthOf(state))));
+
+        return;
+    } // END setMonsterDead
+
+
+    // Puts a fresh monster in the room, unless that kind is already there and alive, when the player joins the fight
+    public static void summonMonster(sharedWorld world, int roomIndex, int kind, int health){
+
+        while(true){
+            long state = world.monsters.get(roomIndex);
+            if(kindOf(state) == kind && !isDead(state) && healthOf(state) > 0){
+                return;
+            }
+            if(world.monsters.compareAndSet(roomIndex, state, pack(kind, false, health))){
+                return;
+            }
+        }
+    } // END summonMonster
+
+
+    // Moves a living monster and its wounds into a room without one, false if it could not go. It is taken out of
+    // its room first and then put in the other, each a compare-and-set, so a blow or a summon landing on either
+    // room meanwhile stops the move rather than being lost
+    public static boolean moveMonster(sharedWorld world, int fromRoom, int toRoom){
+
+        long moving = world.monsters.get(fromRoom);
+        long target = world.monsters.get(toRoom);
+        if(kindOf(moving) == Ny_Gothor.NO_MONSTER || isDead(moving) || healthOf(moving) <= 0){
+            return false;
+        }
+        if(kindOf(target) != Ny_Gothor.NO_MONSTER && !isDead(target)){
+            return false;
+        }
+
+        if(!world.monsters.compareAndSet(fromRoom, moving, NO_MONSTER_STATE)){
+            return false;
+        }
+        if(world.monsters.compareAndSet(toRoom, target, moving)){
+            return true;
+        }
+
+        // The other room changed, back it goes. Only a summon can have filled its empty room since, and then the
+        // summoned monster stays in its place
+        world.monsters.compareAndSet(fromRoom, NO_MONSTER_STATE, moving);
+
+        return false;
+    } // END moveMonster
+
+
+    // Gets the room's item, null once any player has taken it
+    public static items getItem(sharedWorld world, room room){
+        return world.items.get(room.roomIndex) != 0 ? room.item : null;
+    } // END getItem
+
+
+    // Takes the room's item, false if another player got to it first
+    public static boolean takeItem(sharedWorld world, int roomIndex){
+        return world.items.compareAndSet(roomIndex, 1, 0);
+    } // END takeItem
+
+
+    public static long pack(int kind, boolean dead, int health){
+        return ((long)(kind & 0xFF) << KIND_SHIFT) | (dead ? DEAD_BIT : 0) | (health & 0xFFFFFFFFL);
+    } // END pack
+
+
+    public static int kindOf(long state){
+        return (byte)(state >>> KIND_SHIFT); // Sign extended, so no monster stays -1
+    } // END kindOf
+
+
+    public static boolean isDead(long state){
+        return (state & DEAD_BIT) != 0;
+    } // END isDead
+
+
+    public static int healthOf(long state){
+        return (int)state;
+    } // END healthOf
+
+    //#endregion
+
+}
+
+
+class sharedWorld{
+    contentPack content;
+    room[] roomList; // Never changed once generated, read by every player in the cavern
+    monster[] monsterList;
+    boolean[] itemsInRooms;
+    worldHints hints;
+
+    // Changing state, by room index
+    AtomicLongArray monsters; // Kind, dead flag and health, see SharedWorld.pack
+    AtomicIntegerArray items; // 1 while the room's item is there
+
+    // Monsters as generated, the arrays each player's own fields point at
+    byte[] startMonsterKinds;
+    int[] startMonsterHealth;
+    boolean[] startMonsterDead;
+
+    roamingWorld roaming; // Rooms in range of the cavern's players, see MonsterRoaming
+    AtomicInteger players; // Players put in the cavern so far
+}
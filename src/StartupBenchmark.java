@@ -0,0 +1,147 @@
+/* TITLE: StartupBenchmark
+ DESCRIPTION:
+    Measures time to first prompt: from starting a fresh JVM to the main menu waiting for input. Runs the game
+    jar a number of times both plainly and the way ny-gothor.sh launches it (from a class-data-sharing archive
+    of the game's classes), and fails if the fast launch is over budget.
+    Usage: java -cp build/ny-gothor.jar StartupBenchmark [jar] [archive]
+ */
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class StartupBenchmark {
+
+    // Flags the fast launch uses on top of the archive, keep in step with ny-gothor.sh
+    static final String[] FAST_FLAGS = {"-XX:TieredStopAtLevel=1", "-XX:+UseSerialGC", "-Xshare:auto"};
+
+    // Launches per configuration (-Dnygothor.bench.runs) and the median the fast launch must beat (-Dnygothor.bench.budget, ms)
+    static final int RUNS = Integer.getInteger("nygothor.bench.runs", 20);
+    static final long BUDGET_MILLIS = Long.getLong("nygothor.bench.budget", 100);
+
+    // Last line of the main menu, the prompt follows it
+    static final byte[] MENU_END = "4. Quit game\n".getBytes(StandardCharsets.UTF_8);
+
+    //#region Benchmark
+
+    public static void main(String[] args) throws Exception {
+
+        String jar = args.length > 0 ? args[0] : "build/ny-gothor.jar";
+        String archive = args.length > 1 ? args[1] : "build/ny-gothor.jsa";
+
+        if(!Files.exists(Paths.get(archive))){
+            createArchive(jar, archive);
+        }
+
+        long[] plain = measure(launchCommand(jar, null));
+        long[] fast = measure(launchCommand(jar, archive));
+
+        System.out.println(describe("Plain launch", plain));
+        System.out.println(describe("Archived launch", fast));
+
+        long median = fast[fast.length / 2];
+        if(median > BUDGET_MILLIS){
+            System.out.println("Over budget: median " + median + "ms, budget " + BUDGET_MILLIS + "ms");
+            System.exit(1);
+        }
+
+        return;
+    } // END main
+
+
+    // Records the archive with a fast launch to the first prompt and straight out
+    public static void createArchive(String jar, String archive) throws IOException, InterruptedException{
+
+        List<String> command = launchCommand(jar, null);
+        command.add(1, "-XX:ArchiveClassesAtExit=" + archive);
+        command.addAll(2, Arrays.asList(FAST_FLAGS));
+
+        timeToPrompt(command);
+
+        return;
+    } // END createArchive
+
+
+    // Builds the command for a launch, with the fast flags and archive when one is given
+    public static List<String> launchCommand(String jar, String archive){
+
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+
+        if(archive != null){
+            command.add("-XX:SharedArchiveFile=" + archive);
+            command.addAll(Arrays.asList(FAST_FLAGS));
+        }
+        command.add("-jar");
+        command.add(jar);
+
+        return command;
+    } // END launchCommand
+
+
+    // Launches the command RUNS times, returns the sorted times to first prompt in milliseconds
+    public static long[] measure(List<String> command) throws IOException, InterruptedException{
+
+        timeToPrompt(command); // Warm the file cache
+
+        long[] times = new long[RUNS];
+        for(int i = 0; i < RUNS; i++){
+            times[i] = timeToPrompt(command);
+        }
+        Arrays.sort(times);
+
+        return times;
+    } // END measure
+
+
+    // Starts the game, waits for the main menu, then quits it
+    public static long timeToPrompt(List<String> command) throws IOException, InterruptedException{
+
+        ProcessBuilder builder = new ProcessBuilder(command);
+        builder.redirectError(ProcessBuilder.Redirect.DISCARD);
+
+        long start = System.nanoTime();
+        Process process = builder.start();
+
+        // Read until the output ends with the last menu line
+        InputStream out = process.getInputStream();
+        byte[] seen = new byte[MENU_END.length];
+        int read;
+        while((read = out.read()) >= 0){
+            System.arraycopy(seen, 1, seen, 0, seen.length - 1);
+            seen[seen.length - 1] = (byte)read;
+            if(Arrays.equals(seen, MENU_END)){
+                break;
+            }
+        }
+        long elapsed = (System.nanoTime() - start) / 1_000_000;
+
+        if(read < 0){
+            throw new IOException("Game exited before the first prompt: " + String.join(" ", command));
+        }
+
+        // Quit from the menu
+        try(OutputStream in = process.getOutputStream()){
+            in.write("4\n".getBytes(StandardCharsets.UTF_8));
+        }
+        out.transferTo(OutputStream.nullOutputStream());
+        process.waitFor();
+
+        return elapsed;
+    } // END timeToPrompt
+
+
+    // Describes sorted launch times
+    public static String describe(String name, long[] times){
+        return name + ": min " + times[0] + "ms, median " + times[times.length / 2] + "ms, p90 " + times[(int)(times.length * 0.9)] + "ms (" + times.length + " runs)";
+    } // END describe
+
+    //#endregion
+
+}
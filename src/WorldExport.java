@@ -0,0 +1,352 @@
+/* TITLE: WorldExport
+ DESCRIPTION:
+    Writes a world's room graph out for viewing or analysis: the paths between rooms, the item and monster in
+    each room and which rooms are special. Rooms are streamed one at a time through a single buffer into a file
+    channel, so memory stays the same however big the world is and multi-million room caverns write in seconds.
+    Formats, picked by file extension:
+     - .dot    Graphviz digraph
+     - .jsonl  one JSON object per room
+     - .bin    compact edge list, see writeBinary for the layout
+    Usage: java Ny_Gothor --export <file> [rooms] [seed]
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.IdentityHashMap;
+
+public class WorldExport {
+
+    static final int BUFFER_SIZE = 1 << 16;
+
+    // Binary format header
+    static final int MAGIC = 0x4E594757; // "NYGW"
+    static final int FORMAT_VERSION = 1;
+
+    // Binary room flags
+    static final int FLAG_START = 1;
+    static final int FLAG_ALTAR = 2;
+    static final int FLAG_END = 4;
+    static final int FLAG_ITEM = 8;
+    static final int FLAG_MONSTER = 16;
+
+    //#region Export
+
+    // Writes the player's world to the file, in the format its extension names
+    public static void exportWorld(player player, Path file) throws IOException{
+
+        String name = file.getFileName().toString();
+
+        try(FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)){
+            exportWriter writer = createWriter(channel);
+
+            if(name.endsWith(".dot")){
+                writeDot(player, writer);
+            }else if(name.endsWith(".jsonl")){
+                writeJsonLines(player, writer);
+            }else if(name.endsWith(".bin")){
+                writeBinary(player, writer);
+            }else{
+                throw new IllegalArgumentException("Unknown export format, use .dot, .jsonl or .bin: " + name);
+            }
+
+            flush(writer);
+        }
+
+        return;
+    } // END exportWorld
+
+
+    // Graphviz: a node for every room with something in it, then every path
+    public static void writeDot(player player, exportWriter writer) throws IOException{
+
+        room[] rooms = Ny_Gothor.getPlayerRoomList(player);
+        putAscii(writer, "digraph nygothor {\n");
+
+        for(int i = 0; i < rooms.length; i++){
+            String special = getSpecialName(i);
+            items item = Ny_Gothor.getRoomItem(rooms[i]);
+            boolean hasMonster = Ny_Gothor.roomHasMonster(player, i);
+
+            if(special != null || item != null || hasMonster){
+                putAscii(writer, "  ");
+                putNumber(writer, i);
+                putAscii(writer, " [label=\"");
+                putNumber(writer, i);
+                if(special != null){
+                    putAscii(writer, "\\n");
+                    putAscii(writer, special);
+                }
+                if(item != null){
+                    putAscii(writer, "\\n");
+                    putEscaped(writer, Ny_Gothor.getItemName(item));
+                }
+                if(hasMonster){
+                    putAscii(writer, "\\n");
+                    putEscaped(writer, Ny_Gothor.getMonsterName(Ny_Gothor.getRoomMonster(player, i)));
+                }
+                putAscii(writer, special != null ? "\" shape=doublecircle];\n" : "\"];\n");
+            }
+
+            for(int exit : Ny_Gothor.getRoomIndexArray(rooms[i])){
+                putAscii(writer, "  ");
+                putNumber(writer, i);
+                putAscii(writer, " -> ");
+                putNumber(writer, exit);
+                putAscii(writer, ";\n");
+            }
+        }
+
+        putAscii(writer, "}\n");
+
+        return;
+    } // END writeDot
+
+
+    // JSON lines: {"room":5,"exits":[3,9],"item":"...","monster":"...","special":"altar"}
+    public static void writeJsonLines(player player, exportWriter writer) throws IOException{
+
+        room[] rooms = Ny_Gothor.getPlayerRoomList(player);
+
+        for(int i = 0; i < rooms.length; i++){
+            putAscii(writer, "{\"room\":");
+            putNumber(writer, i);
+
+            putAscii(writer, ",\"exits\":[");
+            int[] exits = Ny_Gothor.getRoomIndexArray(rooms[i]);
+            for(int e = 0; e < exits.length; e++){
+                if(e > 0){
+                    putByte(writer, ',');
+                }
+                putNumber(writer, exits[e]);
+            }
+            putByte(writer, ']');
+
+            items item = Ny_Gothor.getRoomItem(rooms[i]);
+            if(item != null){
+                putAscii(writer, ",\"item\":\"");
+                putEscaped(writer, Ny_Gothor.getItemName(item));
+                putByte(writer, '"');
+            }
+            if(Ny_Gothor.roomHasMonster(player, i)){
+                putAscii(writer, ",\"monster\":\"");
+                putEscaped(writer, Ny_Gothor.getMonsterName(Ny_Gothor.getRoomMonster(player, i)));
+                putByte(writer, '"');
+            }
+            String special = getSpecialName(i);
+            if(special != null){
+                putAscii(writer, ",\"special\":\"");
+                putAscii(writer, special);
+                putByte(writer, '"');
+            }
+
+            putAscii(writer, "}\n");
+        }
+
+        return;
+    } // END writeJsonLines
+
+
+    // Binary edge list, every number after the header is an unsigned varint:
+    //   header   int magic "NYGW", int version, int room count (big endian)
+    //   per room byte flags (FLAG_*), item index into the content pack's items if FLAG_ITEM,
+    //            monster kind if FLAG_MONSTER, exit count, then each exit
+    public static void writeBinary(player player, exportWriter writer) throws IOException{
+
+        room[] rooms = Ny_Gothor.getPlayerRoomList(player);
+        ensureSpace(writer, 12);
+        writer.buffer.putInt(MAGIC);
+        writer.buffer.putInt(FORMAT_VERSION);
+        writer.buffer.putInt(rooms.length);
+
+        // Items are shared records, look up each one's place in the pack once
+        IdentityHashMap<items, Integer> itemIndexes = new IdentityHashMap<>();
+        items[] allItems = Ny_Gothor.getPlayerAllItems(player);
+        for(int i = 0; i < allItems.length; i++){
+            itemIndexes.put(allItems[i], i);
+        }
+
+        for(int i = 0; i < rooms.length; i++){
+            items item = Ny_Gothor.getRoomItem(rooms[i]);
+            boolean hasMonster = Ny_Gothor.roomHasMonster(player, i);
+            Integer itemIndex = item == null ? null : itemIndexes.get(item);
+
+            int flags = (i == Ny_Gothor.START_ROOM ? FLAG_START : 0)
+                | (i == Ny_Gothor.ALTAR_ROOM ? FLAG_ALTAR : 0)
+                | (i == Ny_Gothor.END_ROOM ? FLAG_END : 0)
+                | (itemIndex != null ? FLAG_ITEM : 0)
+                | (hasMonster ? FLAG_MONSTER : 0);
+            putByte(writer, flags);
+
+            if(itemIndex != null){
+                putVarint(writer, itemIndex);
+            }
+            if(hasMonster){
+                putVarint(writer, Ny_Gothor.getRoomMonsterKind(player, i));
+            }
+
+            int[] exits = Ny_Gothor.getRoomIndexArray(rooms[i]);
+            putVarint(writer, exits.length);
+            for(int exit : exits){
+                putVarint(writer, exit);
+            }
+        }
+
+        return;
+    } // END writeBinary
+
+
+    // Gets the name of a special room, null for any other room
+    public static String getSpecialName(int roomIndex){
+
+        if(roomIndex == Ny_Gothor.START_ROOM){
+            return "start";
+        }else if(roomIndex == Ny_Gothor.ALTAR_ROOM){
+            return "altar";
+        }else if(roomIndex == Ny_Gothor.END_ROOM){
+            return "end";
+        }
+
+        return null;
+    } // END getSpecialName
+
+    //#endregion
+
+
+
+
+
+    //#region Writing
+
+    // Creates a writer with a single reused buffer for the channel
+    public static exportWriter createWriter(FileChannel channel){
+
+        exportWriter writer = new exportWriter();
+        writer.channel = channel;
+        writer.buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+        return writer;
+    } // END createWriter
+
+
+    // Makes sure the buffer has room for the bytes, writing it out if not
+    public static void ensureSpace(exportWriter writer, int bytes) throws IOException{
+
+        if(writer.buffer.remaining() < bytes){
+            flush(writer);
+        }
+
+        return;
+    } // END ensureSpace
+
+
+    // Writes the buffer to the channel
+    public static void flush(exportWriter writer) throws IOException{
+
+        writer.buffer.flip();
+        while(writer.buffer.hasRemaining()){
+            writer.channel.write(writer.buffer);
+        }
+        writer.buffer.clear();
+
+        return;
+    } // END flush
+
+
+    public static void putByte(exportWriter writer, int b) throws IOException{
+        ensureSpace(writer, 1);
+        writer.buffer.put((byte)b);
+
+        return;
+    } // END putByte
+
+
+    // Writes fixed ASCII text
+    public static void putAscii(exportWriter writer, String text) throws IOException{
+
+        for(int i = 0; i < text.length(); i++){
+            putByte(writer, text.charAt(i));
+        }
+
+        return;
+    } // END putAscii
+
+
+    // Writes text inside quotes as UTF-8, escaping what JSON and DOT both need escaped
+    public static void putEscaped(exportWriter writer, String text) throws IOException{
+
+        for(int i = 0; i < text.length(); i++){
+            char c = text.charAt(i);
+
+            if(c == '"' || c == '\\'){
+                putByte(writer, '\\');
+                putByte(writer, c);
+            }else if(c < 0x20){
+                putAscii(writer, c == '\n' ? "\\n" : " ");
+            }else if(c < 0x80){
+                putByte(writer, c);
+            }else{
+                int end = Character.isHighSurrogate(c) && i + 1 < text.length() ? i + 2 : i + 1;
+                byte[] encoded = GameOutput.encode(text.substring(i, end)); // Rare, item and monster names are ASCII
+                ensureSpace(writer, encoded.length);
+                writer.buffer.put(encoded);
+                i = end - 1;
+            }
+        }
+
+        return;
+    } // END putEscaped
+
+
+    // Writes a number as decimal digits without making a string
+    public static void putNumber(exportWriter writer, long number) throws IOException{
+
+        ensureSpace(writer, 20);
+        ByteBuffer buffer = writer.buffer;
+
+        if(number < 0){
+            buffer.put((byte)'-');
+            number = -number;
+        }
+
+        // Digits come out backwards, write them and then reverse them in place
+        int start = buffer.position();
+        do{
+            buffer.put((byte)('0' + number % 10));
+            number /= 10;
+        }while(number > 0);
+
+        for(int left = start, right = buffer.position() - 1; left < right; left++, right--){
+            byte b = buffer.get(left);
+            buffer.put(left, buffer.get(right));
+            buffer.put(right, b);
+        }
+
+        return;
+    } // END putNumber
+
+
+    // Writes an unsigned varint, 7 bits per byte with the top bit set on all but the last
+    public static void putVarint(exportWriter writer, int value) throws IOException{
+
+        ensureSpace(writer, 5);
+        while((value & ~0x7F) != 0){
+            writer.buffer.put((byte)((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        writer.buffer.put((byte)value);
+
+        return;
+    } // END putVarint
+
+    //#endregion
+
+}
+
+
+class exportWriter{
+    FileChannel channel;
+    ByteBuffer buffer; // Direct, filled and written out over and over
+}
@@ -0,0 +1,300 @@
+/* TITLE: WorldGenerator
+ DESCRIPTION:
+    Seeded, parallel generation of the cavern. The rooms are split into fixed size chunks which are filled on a
+    fork-join pool, each chunk drawing from its own split random stream. As the chunks and their streams never
+    depend on the number of threads, the same seed always builds the same cavern.
+ */
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class WorldGenerator {
+
+    // Rooms handled by one task. Fixed rather than based on thread count so each chunk always gets the same stream
+    static final int CHUNK_SIZE = 4096;
+
+    //#region Generation
+
+    // Declares the parameters' amount of rooms in parallel and assigns their paths and details
+    public static void declareRoomsParallel(player player, generationParams params, long seed, ForkJoinPool pool){
+
+        generationEvent generation = GameProfiling.beginGeneration();
+        int roomCount = GenerationParams.getRoomCount(params);
+
+        // The start, altar and end rooms must all exist
+        if(roomCount < 3){
+            throw new IllegalArgumentException("A cavern needs at least 3 rooms, got " + roomCount);
+        }
+
+        room[] roomList = new room[roomCount];
+        Ny_Gothor.setPlayerRoomList(player, roomList);
+        Ny_Gothor.declareRoomMonsters(player, roomCount);
+
+        // One stream per phase, then one per chunk. All splitting is done here on one thread so it never changes
+        int chunkCount = chunkCount(roomCount);
+        SplittableRandom root = new SplittableRandom(seed);
+        SplittableRandom[] roomStreams = splitStreams(root.split(), chunkCount);
+        SplittableRandom[] linkStreams = splitStreams(root.split(), chunkCount);
+        SplittableRandom[] detailStreams = splitStreams(root.split(), chunkCount);
+
+        // Create the rooms and roll how many unique paths lead out of each
+        int[] linkCount = new int[roomCount];
+        runChunks(pool, roomCount, (chunk, from, to) -> createRooms(roomList, linkCount, roomStreams[chunk], from, to));
+
+        // Running total of paths, so each room knows where its paths sit in the list of all paths
+        int[] slotEnd = linkCount.clone();
+        Arrays.parallelPrefix(slotEnd, Integer::sum);
+        int slotCount = slotEnd[roomCount - 1];
+
+        // Shuffle the paths and the rooms they can lead to by sorting on random keys (index kept in the low bits)
+        long[] slotKeys = new long[slotCount];
+        long[] targetKeys = new long[roomCount];
+        runChunks(pool, roomCount, (chunk, from, to) -> rollLinkKeys(slotKeys, targetKeys, linkCount, slotEnd, linkStreams[chunk], from, to));
+        Arrays.parallelSort(slotKeys);
+        Arrays.parallelSort(targetKeys);
+
+        // Position of each path in the shuffled order
+        int[] slotRank = new int[slotCount];
+        runChunks(pool, slotCount, (chunk, from, to) -> {
+            for(int i = from; i < to; i++){
+                slotRank[(int)slotKeys[i]] = i;
+            }
+        });
+
+        // The start room's paths are first in the order, make sure neither of them leads back to itself
+        for(int i = 0; i < 2; i++){
+            if((int)targetKeys[i] == 0){
+                long swap = targetKeys[i];
+                targetKeys[i] = targetKeys[2];
+                targetKeys[2] = swap;
+            }
+        }
+
+        // The n-th path leads to the n-th shuffled room, so every room is led to by at most one path
+        runChunks(pool, roomCount, (chunk, from, to) -> assignLinks(roomList, linkCount, slotEnd, slotRank, targetKeys, from, to));
+
+        // Set room details, items are claimed by the room with the lowest random key so only one instance exists
+        AtomicLongArray itemClaims = new AtomicLongArray(Ny_Gothor.getPlayerAllItems(player).length);
+        for(int i = 0; i < itemClaims.length(); i++){
+            itemClaims.set(i, Long.MAX_VALUE);
+        }
+        runChunks(pool, roomCount, (chunk, from, to) -> setRoomDetails(roomList, player, params, itemClaims, detailStreams[chunk], from, to));
+        placeClaimedItems(player, itemClaims);
+        GameProfiling.endGeneration(generation, roomCount, true);
+
+        return;
+    } // END declareRoomsParallel
+
+
+    // Creates the rooms in range and rolls the amount of paths from each
+    public static void createRooms(room[] roomList, int[] linkCount, SplittableRandom rnd, int from, int to){
+
+        for(int i = from; i < to; i++){
+            room room = new room();
+            Ny_Gothor.setRoomIndex(room, i);
+
+            // Get a random number for the amount of connections the room can have (1-3)
+            int connections = rnd.nextInt(3) + 1;
+
+            // Ensure that important rooms have/don't have connection
+            if(i == 0){
+                connections = 2;
+                Ny_Gothor.setRoomIndexArray(room, new int[connections]);
+            }else if(i == 1 || i == 2){ // Altar room/end room, any paths out lead back to the start
+                Ny_Gothor.setRoomIndexArray(room, new int[connections]);
+                connections = 0;
+            }else{
+                Ny_Gothor.setRoomIndexArray(room, new int[connections]);
+            }
+
+            linkCount[i] = connections;
+            roomList[i] = room;
+        }
+
+        return;
+    } // END createRooms
+
+
+    // Rolls the random sort keys for the paths of each room in range and for the rooms themselves
+    public static void rollLinkKeys(long[] slotKeys, long[] targetKeys, int[] linkCount, int[] slotEnd, SplittableRandom rnd, int from, int to){
+
+        for(int i = from; i < to; i++){
+            targetKeys[i] = ((long)rnd.nextInt() << 32) | i;
+
+            for(int slot = slotEnd[i] - linkCount[i]; slot < slotEnd[i]; slot++){
+                if(i == 0){
+                    slotKeys[slot] = Long.MIN_VALUE | slot; // Start room always gets its paths first
+                }else{
+                    slotKeys[slot] = ((long)rnd.nextInt() << 32) | slot;
+                }
+            }
+        }
+
+        return;
+    } // END rollLinkKeys
+
+
+    // Fills the index array of each room in range from the shuffled paths and rooms
+    public static void assignLinks(room[] roomList, int[] linkCount, int[] slotEnd, int[] slotRank, long[] targetKeys, int from, int to){
+
+        for(int i = from; i < to; i++){
+            int[] roomIndexArray = Ny_Gothor.getRoomIndexArray(roomList[i]);
+            int firstSlot = slotEnd[i] - linkCount[i];
+
+            for(int x = 0; x < linkCount[i]; x++){
+                int rank = slotRank[firstSlot + x];
+
+                // When there are more paths than rooms, or the path would lead to itself, it loops back to start
+                int target = 0;
+                if(rank < targetKeys.length){
+                    target = (int)targetKeys[rank];
+                }
+                if(target == i){
+                    target = 0;
+                }
+
+                roomIndexArray[x] = target;
+            }
+        }
+
+        return;
+    } // END assignLinks
+
+
+    // Sets the monster, descriptions and item claims of each room in range
+    public static void setRoomDetails(room[] roomList, player player, generationParams params, AtomicLongArray itemClaims, SplittableRandom rnd, int from, int to){
+
+        items[] allItems = Ny_Gothor.getPlayerAllItems(player);
+        int monsterCount = Ny_Gothor.getCavernMonsterCount(player);
+        contentPack content = Ny_Gothor.getPlayerContent(player);
+
+        for(int i = from; i < to; i++){
+            room room = roomList[i];
+            Ny_Gothor.setItemTaken(room, false);
+
+            // Random chance for room to claim an item unless start room
+            if(GenerationParams.getItemChance(params) > rnd.nextInt(101) && i != 0){
+                int item = rnd.nextInt(allItems.length);
+                long claim = ((long)rnd.nextInt() << 32) | i;
+
+                if(!Ny_Gothor.itemExistsInRoom(player, item)){
+                    itemClaims.accumulateAndGet(item, claim, Math::min);
+                }
+            }
+
+            // Random chance for room to have a monster unless start room
+            if(GenerationParams.getMonsterChance(params) > rnd.nextInt(101) && i != 0){
+                Ny_Gothor.setRoomMonster(player, i, rnd.nextInt(monsterCount));
+            }
+
+            // Assigning room descriptions
+            if(!Ny_Gothor.setSpecialRoomDescriptions(room)){
+                Ny_Gothor.setRoomDescription(room, Ny_Gothor.getRndRoomDescription(content, rnd));
+                Ny_Gothor.setPathDescription(room, Ny_Gothor.getRndPathDescription(content, rnd));
+            }
+        }
+
+        return;
+    } // END setRoomDetails
+
+
+    // Places each claimed item in the room that won it
+    public static void placeClaimedItems(player player, AtomicLongArray itemClaims){
+
+        items[] allItems = Ny_Gothor.getPlayerAllItems(player);
+        room[] roomList = Ny_Gothor.getPlayerRoomList(player);
+
+        for(int i = 0; i < allItems.length; i++){
+            long claim = itemClaims.get(i);
+
+            if(claim != Long.MAX_VALUE){
+                Ny_Gothor.setRoomItem(roomList[(int)claim], allItems[i]);
+                Ny_Gothor.setItemExistsInRoom(player, i, true);
+            }
+        }
+
+        return;
+    } // END placeClaimedItems
+
+    //#endregion
+
+
+
+
+
+    //#region Chunks
+
+    // Work done over one chunk of a range
+    interface chunkWork{
+        void run(int chunk, int from, int to);
+    }
+
+
+    // Runs the work over every chunk of the range on the pool and waits for it to finish
+    public static void runChunks(ForkJoinPool pool, int size, chunkWork work){
+
+        if(size == 0){
+            return;
+        }
+
+        pool.invoke(new ChunkTask(work, size, 0, chunkCount(size)));
+
+        return;
+    } // END runChunks
+
+
+    // Gets the amount of chunks needed to cover the size
+    public static int chunkCount(int size){
+        return (size + CHUNK_SIZE - 1) / CHUNK_SIZE;
+    } // END chunkCount
+
+
+    // Splits a stream for each chunk, in chunk order
+    public static SplittableRandom[] splitStreams(SplittableRandom parent, int chunkCount){
+
+        SplittableRandom[] streams = new SplittableRandom[chunkCount];
+        for(int i = 0; i < chunkCount; i++){
+            streams[i] = parent.split();
+        }
+
+        return streams;
+    } // END splitStreams
+
+
+    // Fork-join task that halves its chunk range until it is left with a single chunk
+    static class ChunkTask extends RecursiveAction{
+        final chunkWork work;
+        final int size;
+        final int firstChunk;
+        final int lastChunk; // Exclusive
+
+        ChunkTask(chunkWork work, int size, int firstChunk, int lastChunk){
+            this.work = work;
+            this.size = size;
+            this.firstChunk = firstChunk;
+            this.lastChunk = lastChunk;
+        }
+
+        @Override
+        protected void compute(){
+
+            // Run a single chunk directly
+            if(lastChunk - firstChunk == 1){
+                int from = firstChunk * CHUNK_SIZE;
+                work.run(firstChunk, from, Math.min(size, from + CHUNK_SIZE));
+                return;
+            }
+
+            int middle = (firstChunk + lastChunk) >>> 1;
+            invokeAll(new ChunkTask(work, size, firstChunk, middle), new ChunkTask(work, size, middle, lastChunk));
+
+            return;
+        }
+    }
+
+    //#endregion
+
+}
@@ -0,0 +1,149 @@
+/* TITLE: WorldHints
+ DESCRIPTION:
+    Distances from every room to the altar and to the end, for hints. They are found once per world with a
+    breadth first search backwards from each target over the reversed paths, kept in flat int arrays. A hint only
+    looks at the exits of the room the player is in, so it costs the same on a million room cavern as on ten.
+ */
+
+import java.util.Arrays;
+
+public class WorldHints {
+
+    static final int UNREACHABLE = -1;
+
+    // Rooms hints lead to, by slot
+    static final int ALTAR = 0;
+    static final int END = 1;
+    static final int[] TARGET_ROOMS = {Ny_Gothor.ALTAR_ROOM, Ny_Gothor.END_ROOM};
+
+    //#region Distances
+
+    // Builds the reversed paths of the world and the distances to each target
+    public static worldHints computeHints(room[] rooms){
+
+        int roomCount = rooms.length;
+        worldHints hints = new worldHints();
+
+        // Count the paths into each room, then lay them out back to back (where each path comes from)
+        int[] reverseStart = new int[roomCount + 1];
+        for(int i = 0; i < roomCount; i++){
+            for(int exit : Ny_Gothor.getRoomIndexArray(rooms[i])){
+                if(exit >= 0 && exit < roomCount){
+                    reverseStart[exit + 1]++;
+                }
+            }
+        }
+        for(int i = 0; i < roomCount; i++){
+            reverseStart[i + 1] += reverseStart[i];
+        }
+
+        int[] reverseFrom = new int[reverseStart[roomCount]];
+        int[] filled = new int[roomCount];
+        for(int i = 0; i < roomCount; i++){
+            for(int exit : Ny_Gothor.getRoomIndexArray(rooms[i])){
+                if(exit >= 0 && exit < roomCount){
+                    reverseFrom[reverseStart[exit] + filled[exit]++] = i;
+                }
+            }
+        }
+
+        hints.reverseStart = reverseStart;
+        hints.reverseFrom = reverseFrom;
+
+        hints.queue = new int[roomCount];
+        hints.distances = new int[TARGET_ROOMS.length][];
+        for(int target = 0; target < TARGET_ROOMS.length; target++){
+            hints.distances[target] = new int[roomCount];
+            if(TARGET_ROOMS[target] < roomCount){
+                search(hints, target);
+            }else{
+                Arrays.fill(hints.distances[target], UNREACHABLE);
+            }
+        }
+
+        return hints;
+    } // END computeHints
+
+
+    // Breadth first search backwards from the target, filling in its distances
+    public static void search(worldHints hints, int target){
+
+        int[] distance = hints.distances[target];
+        Arrays.fill(distance, UNREACHABLE);
+
+        int start = TARGET_ROOMS[target];
+        distance[start] = 0;
+        hints.queue[0] = start;
+        spread(hints, distance, 0, 1);
+
+        return;
+    } // END search
+
+
+    // Works through the queue, giving every room that leads into a queued room one more than it
+    public static void spread(worldHints hints, int[] distance, int head, int tail){
+
+        int[] queue = hints.queue;
+
+        while(head < tail){
+            int room = queue[head++];
+            int next = distance[room] + 1;
+
+            for(int i = hints.reverseStart[room]; i < hints.reverseStart[room + 1]; i++){
+                int from = hints.reverseFrom[i];
+                if(distance[from] == UNREACHABLE){
+                    distance[from] = next;
+                    queue[tail++] = from;
+                }
+            }
+        }
+
+        return;
+    } // END spread
+
+    //#endregion
+
+
+
+
+
+    //#region Hints
+
+    // Gets the exit of the room closest to the target, -1 if none of them lead there
+    public static int bestExit(worldHints hints, room room, int target){
+
+        int[] distance = hints.distances[target];
+        int best = -1;
+
+        for(int exit : Ny_Gothor.getRoomIndexArray(room)){
+            if(exit < 0 || exit >= distance.length || distance[exit] == UNREACHABLE){
+                continue;
+            }
+            if(best == -1 || distance[exit] < distance[best]){
+                best = exit;
+            }
+        }
+
+        return best;
+    } // END bestExit
+
+
+    // Gets how many rooms away the target is, -1 if it cannot be reached
+    public static int getDistance(worldHints hints, int roomIndex, int target){
+        return hints.distances[target][roomIndex];
+    } // END getDistance
+
+    //#endregion
+
+}
+
+
+class worldHints{
+
+    // Paths reversed: the rooms leading into room r are reverseFrom[reverseStart[r]] up to reverseStart[r + 1]
+    int[] reverseStart;
+    int[] reverseFrom;
+
+    int[][] distances; // Rooms to each target, by target slot then room
+    int[] queue; // Reused by every search
+}
@@ -0,0 +1,295 @@
+/* TITLE: WorldPool
+ DESCRIPTION:
+    Worlds generated ahead of time on background threads (-Dnygothor.pool=<most worlds kept>), so a new game
+    takes one that is ready rather than building its rooms before the first prompt, and starts as quickly on a
+    million room cavern as on ten. Each world is checked before it is kept, every room made and every path
+    leading to a room of the world, and its hints are worked out then too so the game never waits on them.
+    The pool keeps about as many worlds as are taken while one is being made, from the recent rate of new
+    games and the recent time to generate one, so a busy server keeps more ready and a quiet one stops making
+    them. Worlds are kept with the version of the content pack they were made from, and once the pack is
+    reloaded the ones made from the old pack are dropped.
+ */
+
+import java.util.ArrayDeque;
+import java.util.SplittableRandom;
+
+public class WorldPool {
+
+    // Most worlds kept ready (-Dnygothor.pool, 0 builds each world as its game starts)
+    static final int MAX_SIZE = Integer.getInteger("nygothor.pool", 0);
+
+    // Threads generating worlds (-Dnygothor.pool.threads)
+    static final int THREADS = Integer.getInteger("nygothor.pool.threads", 1);
+
+    // Worlds kept ready however quiet it is, so the next new game never waits
+    static final int MIN_SIZE = 1;
+
+    // Worlds kept per world expected to be taken while one is being made
+    static final double HEADROOM = 2.0;
+
+    // Weight of the newest sample in the averages of the new game rate and the generation time
+    static final double SMOOTHING = 0.2;
+
+    // Longest a generating thread sleeps before checking for a reloaded pack or a quieter rate
+    static final long IDLE_CHECK_MILLIS = 1000;
+
+    // Worlds ready to be taken, oldest first, and everything below is guarded by its monitor
+    static final ArrayDeque<pooledWorld> READY = new ArrayDeque<>();
+
+    static int generating; // Worlds being made right now
+    static double takeRate; // New games per second, averaged
+    static long lastTakeNanos;
+    static double generateSeconds; // Time to make a world, averaged
+
+    static long taken;
+    static long missed; // New games that found the pool empty
+    static long rejected; // Worlds that failed the check
+    static long dropped; // Worlds made from an old pack, or no longer needed
+
+    static final SplittableRandom SEEDS = new SplittableRandom();
+
+    //#region Pool
+
+    public static boolean isEnabled(){
+        return MAX_SIZE > 0;
+    } // END isEnabled
+
+
+    // Starts the threads that keep the pool filled
+    public static void start(){
+
+        for(int i = 0; i < THREADS; i++){
+            Thread filler = new Thread(WorldPool::fill, "world-pool-" + i);
+            filler.setDaemon(true);
+            filler.setPriority(Thread.MIN_PRIORITY); // Games being played come first
+            filler.start();
+        }
+
+        return;
+    } // END start
+
+
+    // Gets the player of a new game, with a world from the pool when there is one ready
+    public static player take(){
+
+        if(!isEnabled()){
+            return Ny_Gothor.initialiseGame();
+        }
+
+        pooledWorld world;
+        synchronized(READY){
+            recordTake();
+            dropStale();
+            world = READY.pollFirst();
+            if(world == null){
+                missed++;
+            }
+            READY.notifyAll(); // A thread may be needed to make another
+        }
+
+        // Too many new games at once, made here as it would have been without the pool
+        if(world == null){
+            pooledWorld made = generate();
+            return made != null ? made.player : Ny_Gothor.initialiseGame();
+        }
+
+        return world.player;
+    } // END take
+
+
+    // Makes worlds while the pool is below its target size, run by each of the pool's threads
+    public static void fill(){
+
+        while(true){
+            synchronized(READY){
+                dropStale();
+                while(READY.size() + generating >= targetSize()){
+                    trim();
+                    try{
+                        READY.wait(IDLE_CHECK_MILLIS);
+                    }catch(InterruptedException e){
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                    dropStale();
+                }
+                generating++;
+            }
+
+            pooledWorld world = generate();
+            synchronized(READY){
+                generating--;
+                if(world != null && !isStale(world)){
+                    READY.addLast(world);
+                }
+                READY.notifyAll();
+            }
+        }
+    } // END fill
+
+
+    // Worlds kept ready: about as many as are taken in the time it takes to make one, with headroom
+    public static int targetSize(){
+
+        // The rate falls off while nobody starts a game, to at most one game in the time since the last
+        double rate = takeRate;
+        if(lastTakeNanos != 0 && rate > 0){
+            double idleSeconds = (System.nanoTime() - lastTakeNanos) / 1e9;
+            rate = Math.min(rate, 1 / idleSeconds);
+        }
+
+        int target = MIN_SIZE + (int)Math.ceil(rate * generateSeconds / THREADS * HEADROOM);
+
+        return Math.min(MAX_SIZE, target);
+    } // END targetSize
+
+
+    // Adds the time since the last new game to the average rate
+    public static void recordTake(){
+
+        long now = System.nanoTime();
+        if(lastTakeNanos != 0){
+            double rate = 1e9 / Math.max(1, now - lastTakeNanos);
+            takeRate = takeRate == 0 ? rate : takeRate + SMOOTHING * (rate - takeRate);
+        }
+        lastTakeNanos = now;
+        taken++;
+
+        return;
+    } // END recordTake
+
+
+    // Drops the worlds made from a pack that has since been reloaded
+    public static void dropStale(){
+
+        READY.removeIf(world -> {
+            boolean stale = isStale(world);
+            if(stale){
+                dropped++;
+            }
+            return stale;
+        });
+
+        return;
+    } // END dropStale
+
+
+    // Drops the oldest worlds once the rate has fallen, so a quiet server does not hold on to them
+    public static void trim(){
+
+        int target = targetSize();
+        while(READY.size() > target){
+            READY.pollFirst();
+            dropped++;
+        }
+
+        return;
+    } // END trim
+
+
+    public static boolean isStale(pooledWorld world){
+        return world.contentVersion != ContentPacks.getContentVersion(ContentPacks.current());
+    } // END isStale
+
+    //#endregion
+
+
+
+
+
+    //#region Generating
+
+    // Makes a world and checks it, trying again until one passes. Null if none do in MAX_ATTEMPTS
+    public static pooledWorld generate(){
+
+        final int MAX_ATTEMPTS = 10;
+
+        for(int attempt = 0; attempt < MAX_ATTEMPTS; attempt++){
+            long start = System.nanoTime();
+
+            // Version read before the pack is, so a world is only ever marked older than it is
+            int version = ContentPacks.getContentVersion(ContentPacks.current());
+            player player = null;
+            boolean valid;
+            try{
+                player = Ny_Gothor.initialiseGame(GenerationParams.current(), nextSeed());
+                valid = isValid(player);
+                if(valid){
+                    Ny_Gothor.setPlayerHints(player, WorldHints.computeHints(Ny_Gothor.getPlayerRoomList(player)));
+                }
+            }catch(RuntimeException e){
+                System.err.println("World pool could not make a world: " + e);
+                valid = false;
+            }
+
+            synchronized(READY){
+                double seconds = (System.nanoTime() - start) / 1e9;
+                generateSeconds = generateSeconds == 0 ? seconds : generateSeconds + SMOOTHING * (seconds - generateSeconds);
+                if(!valid){
+                    rejected++;
+                }
+            }
+
+            if(valid){
+                pooledWorld world = new pooledWorld();
+                world.player = player;
+                world.contentVersion = version;
+
+                return world;
+            }
+        }
+
+        return null;
+    } // END generate
+
+
+    // A world is kept only if every room was made, every path leads to one of them and the start has a way out
+    public static boolean isValid(player player){
+
+        room[] rooms = Ny_Gothor.getPlayerRoomList(player);
+        if(rooms.length <= Ny_Gothor.END_ROOM || Ny_Gothor.getPlayerRoomMonsterKinds(player).length != rooms.length){
+            return false;
+        }
+
+        for(room room : rooms){
+            if(room == null){
+                return false;
+            }
+            for(int exit : Ny_Gothor.getRoomIndexArray(room)){
+                if(exit < 0 || exit >= rooms.length){
+                    return false;
+                }
+            }
+        }
+
+        return Ny_Gothor.getRoomIndexArray(rooms[Ny_Gothor.START_ROOM]).length > 0;
+    } // END isValid
+
+
+    public static long nextSeed(){
+
+        synchronized(SEEDS){
+            return SEEDS.nextLong();
+        }
+    } // END nextSeed
+
+
+    // Describes the pool's size and how new games found it
+    public static String describe(){
+
+        synchronized(READY){
+            return "World pool: " + READY.size() + " ready, " + generating + " generating, target " + targetSize() + "/" + MAX_SIZE
+                + String.format(", %.2f games/s, %.1fms to generate", takeRate, generateSeconds * 1000)
+                + ", " + taken + " taken, " + missed + " missed, " + rejected + " rejected, " + dropped + " dropped\n";
+        }
+    } // END describe
+
+    //#endregion
+
+}
+
+
+class pooledWorld{
+    player player; // Not yet played, with the world's hints already worked out
+    int contentVersion; // Version of the content pack it was made from
+}